@@ -0,0 +1,514 @@
+package sample;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Command line classifier that trains and tests without any JavaFX window,
+ * so mail can be scored on headless servers, from cron or from mail hooks.
+ *
+ * Prints one tab separated line per email to standard output as soon as it
+ * has been scored: filename, guessed class (SPAM or HAM) and spam probability.
+ * Accuracy, precision, recall, F1 and AUC over the emails with a known class
+ * are printed to standard error at the end so the result lines stay easy to
+ * parse.
+ *
+ * Usage: BatchClassifier (--train DIR | --model FILE) [options] [PATH...]
+ *   --train DIR     directory holding the spam and ham training folders
+ *   --model FILE    load a model file instead of training
+ *   --save-model F  write the trained model to a model file
+ *   --threads N     training worker threads (default: one per core)
+ *   --memory-budget MB  train in a fixed heap budget, keeping the most frequent words
+ *   --min-df N      leave out words found in fewer than N training emails
+ *   --max-words N   keep the N best ranked words of the model
+ *   --rank R        ranking for --max-words, ig (information gain, default) or logodds
+ *   --max-bytes N   only read the first N bytes of each email
+ *   --top-tokens N  only sum the N most decisive distinct words of each email
+ *   --exit-confidence P  stop reading an email once it's spam or ham with probability P, e.g. 0.999
+ *   --cache FILE    read tokens of unchanged emails from a corpus cache file, updating it
+ *   --verdict-cache N  remember the verdicts of the last N distinct message bodies, so
+ *                   duplicate campaign mail is only scored once
+ *   --readers N     read emails on N threads ahead of the scoring threads, in a pipeline
+ *   --workers N     tokenize and score in a pipeline on N threads (default: one per core)
+ *   --queue N       emails held between two pipeline stages (default: 64)
+ *   --metrics FILE  write the latency histograms and counters to FILE at the end, JSON if it ends in .json
+ *   --metrics-interval S  also rewrite the metrics file every S seconds while running
+ *   --spam PATH     email or directory of emails known to be spam
+ *   --ham PATH      email or directory of emails known to be ham
+ *   --list FILE     file listing one email path per line, - reads standard input
+ *   PATH            email or directory of emails of unknown class
+ * Every PATH, including those of --spam and --ham, can also be an mbox, a
+ * gzip compressed mbox or email, or a Maildir.
+ *
+ * With --readers or --workers, training folders and tested directories go
+ * through an EmailPipeline, and the busy, blocked and starved time and the
+ * queue depths of its stages are printed to standard error after each run.
+ *
+ * @version 1.11
+ */
+
+public class BatchClassifier
+{
+    private static final String UNKNOWN = "UNKNOWN";
+
+    private HashMap<String, Double> wordSpamProbability;
+    private TokenWeights weights;
+    private ScoringMode mode = ScoringMode.FULL;
+    private CorpusCache cache;
+    private CorpusCache.CachedWeights cacheWeights;
+    private VerdictCache verdicts;
+    private EmailPipeline pipeline;
+    private final ArrayList<TestFile> labelled = new ArrayList<>();
+    private int tested;
+
+    public static void main(String[] args)
+    {
+        String trainingDir = null;
+        String modelPath = null;
+        String saveModelPath = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double memoryBudget = 0;
+        int minDocumentFrequency = 1;
+        int maxWords = 0;
+        int ranking = VocabularyPruner.INFORMATION_GAIN;
+        long maxBytes = 0;
+        int topTokens = 0;
+        double exitConfidence = 0.0;
+        String cachePath = null;
+        int verdictCacheSize = 0;
+        int readers = 0;
+        int workers = 0;
+        int queueCapacity = EmailPipeline.DEFAULT_QUEUE_CAPACITY;
+        String metricsPath = null;
+        long metricsInterval = 0;
+        ArrayList<String[]> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.startsWith("--") && i + 1 >= args.length)
+            {
+                usage("Missing value for " + arg);
+            }
+            switch (arg)
+            {
+                case "--train":
+                    trainingDir = args[++i];
+                    break;
+                case "--model":
+                    modelPath = args[++i];
+                    break;
+                case "--save-model":
+                    saveModelPath = args[++i];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--memory-budget":
+                    memoryBudget = Double.parseDouble(args[++i]);
+                    break;
+                case "--min-df":
+                    minDocumentFrequency = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-words":
+                    maxWords = Integer.parseInt(args[++i]);
+                    break;
+                case "--rank":
+                    ranking = VocabularyPruner.parseRanking(args[++i]);
+                    break;
+                case "--max-bytes":
+                    maxBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--top-tokens":
+                    topTokens = Integer.parseInt(args[++i]);
+                    break;
+                case "--exit-confidence":
+                    exitConfidence = Double.parseDouble(args[++i]);
+                    break;
+                case "--cache":
+                    cachePath = args[++i];
+                    break;
+                case "--verdict-cache":
+                    verdictCacheSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--readers":
+                    readers = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue":
+                    queueCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics":
+                    metricsPath = args[++i];
+                    break;
+                case "--metrics-interval":
+                    metricsInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--spam":
+                    inputs.add(new String[]{"SPAM", args[++i]});
+                    break;
+                case "--ham":
+                    inputs.add(new String[]{"HAM", args[++i]});
+                    break;
+                case "--list":
+                    inputs.add(new String[]{"LIST", args[++i]});
+                    break;
+                default:
+                    if (arg.startsWith("--"))
+                    {
+                        usage("Unknown option " + arg);
+                    }
+                    inputs.add(new String[]{UNKNOWN, arg});
+            }
+        }
+        if ((trainingDir == null) == (modelPath == null))
+        {
+            usage("Either a training directory or a model file is required");
+        }
+        if (modelPath != null && saveModelPath != null)
+        {
+            usage("--save-model writes a trained model, it needs --train");
+        }
+
+        if (metricsPath != null)
+        {
+            Metrics.registerMBean();
+            if (metricsInterval > 0)
+            {
+                Metrics.startReporter(new File(metricsPath), metricsInterval);
+            }
+        }
+
+        BatchClassifier classifier = new BatchClassifier();
+        if (cachePath != null)
+        {
+            classifier.cache = CorpusCache.open(new File(cachePath));
+        }
+        if (readers > 0 || workers > 0)
+        {
+            classifier.pipeline = new EmailPipeline(Math.max(1, readers), workers > 0 ? workers : threads,
+                                                    queueCapacity);
+        }
+        long start = System.nanoTime();
+        try
+        {
+            if (modelPath != null)
+            {
+                classifier.weights = ModelFile.loadWeights(new File(modelPath));
+                System.err.printf("Loaded %d words in %.1f ms%n", classifier.weights.size(),
+                                  (System.nanoTime() - start) / 1e6);
+            }
+            else if (memoryBudget > 0)
+            {
+                StreamingTrainer trainer = StreamingTrainer.withMemoryBudget((long)(memoryBudget * 1024 * 1024));
+                trainer.trainEmailSet(trainingDir + "/spam", true, null);
+                trainer.trainEmailSet(trainingDir + "/ham", false, null);
+                classifier.wordSpamProbability = trainer.toProbabilities(trainer.getEmailCount(true),
+                                                                         trainer.getEmailCount(false));
+                System.err.printf("Trained %d words in %.0f ms, %s%n", classifier.wordSpamProbability.size(),
+                                  (System.nanoTime() - start) / 1e6, trainer);
+            }
+            else if (classifier.cache != null)
+            {
+                TokenCounts counts = TrainFile.trainCounts(trainingDir + "/spam", trainingDir + "/ham",
+                                                           classifier.cache, null);
+                classifier.wordSpamProbability = new VocabularyPruner(minDocumentFrequency, maxWords, ranking)
+                        .toProbabilities(counts, counts.getEmailCount(true), counts.getEmailCount(false));
+                System.err.printf("Trained %d words in %.0f ms%n", classifier.wordSpamProbability.size(),
+                                  (System.nanoTime() - start) / 1e6);
+            }
+            else if (classifier.pipeline != null)
+            {
+                TokenCounts counts = TrainFile.trainCounts(trainingDir + "/spam", trainingDir + "/ham",
+                                                           classifier.pipeline, null);
+                classifier.wordSpamProbability = new VocabularyPruner(minDocumentFrequency, maxWords, ranking)
+                        .toProbabilities(counts, counts.getEmailCount(true), counts.getEmailCount(false));
+                System.err.printf("Trained %d words in %.0f ms%n", classifier.wordSpamProbability.size(),
+                                  (System.nanoTime() - start) / 1e6);
+                classifier.printStages("Training pipeline (ham folder)");
+            }
+            else
+            {
+                classifier.wordSpamProbability = TrainFile.trainModel(trainingDir + "/spam", trainingDir + "/ham",
+                        threads, new VocabularyPruner(minDocumentFrequency, maxWords, ranking));
+                System.err.printf("Trained %d words in %.0f ms%n", classifier.wordSpamProbability.size(),
+                                  (System.nanoTime() - start) / 1e6);
+            }
+            if (saveModelPath != null)
+            {
+                ModelFile.save(classifier.wordSpamProbability, new File(saveModelPath));
+            }
+        } catch (IOException ioex)
+        {
+            System.err.println(ioex.getMessage());
+            System.exit(1);
+        }
+        if (classifier.weights == null)
+        {
+            classifier.weights = TokenWeights.fromProbabilities(classifier.wordSpamProbability);
+        }
+        classifier.mode = new ScoringMode(maxBytes, topTokens, exitConfidence);
+        //cached emails are always whole, so the cheaper modes read the emails themselves
+        if (classifier.cache != null && classifier.mode.isFull())
+        {
+            classifier.cacheWeights = classifier.cache.weightsFor(classifier.weights);
+        }
+        //a verdict needs the whole email, and cached tokens are already cheaper than digesting the bytes
+        else if (verdictCacheSize > 0 && classifier.mode.isFull())
+        {
+            classifier.verdicts = new VerdictCache(verdictCacheSize);
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        start = System.nanoTime();
+        for (String[] input : inputs)
+        {
+            if (input[0].equals("LIST"))
+            {
+                classifier.testList(input[1], out);
+            }
+            else
+            {
+                classifier.testPath(new File(input[1]), input[0], out);
+            }
+        }
+        out.flush();
+        classifier.printSummary((System.nanoTime() - start) / 1e6);
+        if (classifier.cache != null)
+        {
+            try
+            {
+                classifier.cache.save();
+            } catch (IOException ioex)
+            {
+                System.err.println(ioex.getMessage());
+            }
+            System.err.printf("Token cache: %d hits, %d misses%n", classifier.cache.getHits(),
+                              classifier.cache.getMisses());
+        }
+        if (classifier.verdicts != null)
+        {
+            System.err.println("Verdict cache: " + classifier.verdicts);
+        }
+        if (metricsPath != null)
+        {
+            try
+            {
+                Metrics.write(new File(metricsPath));
+            } catch (IOException ioex)
+            {
+                System.err.println(ioex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tests an email, every email in a directory in sorted order, or every
+     * email of an mbox, gzip file or Maildir. Archive emails are always
+     * scored whole, and their result lines name mbox messages as mbox#number.
+     *
+     * @param path  The email, directory of emails or mail archive
+     * @param type  SPAM, HAM or UNKNOWN
+     * @param out   Where the result lines are written
+     */
+    public void testPath(final File path, final String type, final PrintWriter out)
+    {
+        if (MailArchive.isArchive(path))
+        {
+            try
+            {
+                MailArchive.read(path, new MailArchive.MessageSink()
+                {
+                    @Override
+                    public void message(File source, String name, ByteBuffer message)
+                    {
+                        TestFile testFile = new TestFile(name, 0.0, type);
+                        if (verdicts != null)
+                        {
+                            testFile.getSpamEmailProbability(weights, message, verdicts);
+                        }
+                        else
+                        {
+                            testFile.getSpamEmailProbability(weights, message);
+                        }
+                        record(testFile, new File(source.getParentFile(), name).getPath(), out);
+                    }
+                }, null);
+            } catch (IOException ioex)
+            {
+                System.err.println(ioex.getMessage());
+            }
+        }
+        else if (path.isDirectory())
+        {
+            File[] emailDirListing;
+            try
+            {
+                emailDirListing = TrainFile.listEmails(path);
+            } catch (IOException ioex)
+            {
+                System.err.println(ioex.getMessage());
+                return;
+            }
+            //the pipeline scores whole emails with the plain weights, the caches and cheaper modes go one by one
+            if (pipeline != null && cacheWeights == null && verdicts == null && mode.isFull())
+            {
+                pipeline.test(emailDirListing, type, weights, new EmailPipeline.ResultSink()
+                {
+                    @Override
+                    public void result(TestFile testFile)
+                    {
+                        record(testFile, new File(path, testFile.getFilename()).getPath(), out);
+                    }
+                }, null);
+                printStages("Testing pipeline (" + path + ")");
+                return;
+            }
+            for (File email : emailDirListing)
+            {
+                testEmail(email, type, out);
+            }
+        }
+        else
+        {
+            testEmail(path, type, out);
+        }
+    }
+
+    /**
+     * Tests every email listed in a file, one path per line
+     *
+     * @param listPath  The list file, - for standard input
+     * @param out       Where the result lines are written
+     */
+    public void testList(String listPath, PrintWriter out)
+    {
+        try
+        {
+            BufferedReader list = listPath.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : new BufferedReader(new FileReader(listPath));
+            String line;
+            while ((line = list.readLine()) != null)
+            {
+                line = line.trim();
+                if (!line.isEmpty())
+                {
+                    testPath(new File(line), UNKNOWN, out);
+                }
+            }
+            list.close();
+        } catch (IOException ioex)
+        {
+            System.err.println(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Scores a single email and writes its result line
+     *
+     * @param email The email being analyzed
+     * @param type  SPAM, HAM or UNKNOWN
+     * @param out   Where the result line is written
+     */
+    private void testEmail(File email, String type, PrintWriter out)
+    {
+        TestFile testFile = new TestFile(email.getName(), 0.0, type);
+        if (cacheWeights != null)
+        {
+            try
+            {
+                testFile.getSpamEmailProbability(cacheWeights, cache.get(email));
+            } catch (IOException ioex)
+            {
+                System.err.println(ioex.getMessage());
+            }
+        }
+        else if (verdicts != null)
+        {
+            testFile.getSpamEmailProbability(weights, email, verdicts);
+        }
+        else
+        {
+            testFile.getSpamEmailProbability(weights, email, mode);
+        }
+        record(testFile, email.getPath(), out);
+    }
+
+    /**
+     * Counts a scored email and writes its result line
+     *
+     * @param testFile  The tested email
+     * @param path      The path printed for it
+     * @param out       Where the result line is written
+     */
+    private void record(TestFile testFile, String path, PrintWriter out)
+    {
+        tested++;
+        if (!testFile.getActualClass().equals(UNKNOWN))
+        {
+            labelled.add(testFile);
+        }
+
+        out.print(path);
+        out.print('\t');
+        out.print(Evaluation.guessedClass(testFile));
+        out.print('\t');
+        out.println(testFile.getSpamProbFormatted());
+        //flush each line so hooks reading the output see results as they come
+        out.flush();
+    }
+
+    /**
+     * Prints the stats of the stages of the last pipeline run
+     *
+     * @param title The run they belong to
+     */
+    private void printStages(String title)
+    {
+        System.err.println(title + ":");
+        for (EmailPipeline.Stage stage : pipeline.getStages())
+        {
+            System.err.println("  " + stage);
+        }
+    }
+
+    /**
+     * Prints the counts and, when emails of known class were tested, accuracy, precision, recall, F1 and AUC
+     *
+     * @param millis    Time spent testing
+     */
+    private void printSummary(double millis)
+    {
+        System.err.printf("Tested %d emails in %.0f ms%n", tested, millis);
+        if (!labelled.isEmpty())
+        {
+            TestFile[] files = labelled.toArray(new TestFile[labelled.size()]);
+            ConfusionMatrix matrix = Evaluation.evaluate(files, Evaluation.SPAM_THRESHOLD);
+            System.err.printf("Accuracy:  %.6f%n", matrix.getAccuracy());
+            System.err.printf("Precision: %.6f%n", matrix.getPrecision());
+            System.err.printf("Recall:    %.6f%n", matrix.getRecall());
+            System.err.printf("F1:        %.6f%n", matrix.getF1());
+            System.err.printf("AUC:       %.6f%n", matrix.getAuc());
+        }
+    }
+
+    /**
+     * Prints an error and the usage, then exits
+     *
+     * @param message   What was wrong with the arguments
+     */
+    private static void usage(String message)
+    {
+        System.err.println(message);
+        System.err.println("Usage: BatchClassifier (--train DIR | --model FILE) [--save-model FILE] [--threads N] "
+                           + "[--memory-budget MB] [--min-df N] [--max-words N] [--rank ig|logodds] "
+                           + "[--max-bytes N] [--top-tokens N] [--exit-confidence P] [--cache FILE] "
+                           + "[--verdict-cache N] [--readers N] [--workers N] [--queue N] "
+                           + "[--metrics FILE] [--metrics-interval S] [--spam PATH] [--ham PATH] [--list FILE] [PATH...]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,346 @@
+package sample;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmarks the training, model building and scoring hot paths and writes
+ * the results as JSON in the layout JMH uses, so they can be tracked and
+ * compared between changes with the same tools.
+ *
+ *   train.scanEmail    training throughput, emails/s through TokenCounts.scanEmail
+ *   train.buildModel   time to turn the word counts into the weight table
+ *   score.email        average scoring latency per email, with p50/p99 and allocation per email
+ *
+ * Scale 1 runs on the bundled corpus; larger scales run on a SyntheticCorpus
+ * generated once under the corpus directory.
+ *
+ * Usage: BenchmarkSuite [--emails DIR] [--scales 1,10,100] [--corpus-dir DIR] [--warmup N]
+ *                       [--iterations N] [--out FILE]
+ *
+ * @version 1.2
+ */
+
+public class BenchmarkSuite
+{
+    //z value of a two sided 99.9% interval, the error JMH reports
+    private static final double ERROR_Z = 3.29;
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final StringBuilder json = new StringBuilder("[\n");
+    private int results;
+
+    //keeps the JIT from dropping the measured work
+    private static double sink;
+
+    /**
+     * Runs one measured block and returns the number of operations it did
+     */
+    private interface Iteration
+    {
+        long run() throws IOException;
+    }
+
+    public BenchmarkSuite(int warmupIterations, int measuredIterations)
+    {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        String corpusDir = "bench_corpus";
+        String outPath = "bench_results.json";
+        int[] scales = {1};
+        int warmup = 2;
+        int iterations = 5;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--corpus-dir":
+                    corpusDir = args[i + 1];
+                    break;
+                case "--out":
+                    outPath = args[i + 1];
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--scales":
+                    String[] parts = args[i + 1].split(",");
+                    scales = new int[parts.length];
+                    for (int s = 0; s < parts.length; s++)
+                    {
+                        scales[s] = Integer.parseInt(parts[s].trim());
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        BenchmarkSuite suite = new BenchmarkSuite(warmup, iterations);
+        SyntheticCorpus synthetic = null;
+        for (int scale : scales)
+        {
+            File corpus = new File(emailDir);
+            if (scale > 1)
+            {
+                if (synthetic == null)
+                {
+                    synthetic = new SyntheticCorpus(corpus);
+                }
+                corpus = new File(corpusDir, "x" + scale);
+                System.err.println("Generating " + scale + "x corpus in " + corpus);
+                synthetic.generate(corpus, scale, 42L * scale);
+            }
+            suite.runAll(corpus, scale);
+        }
+        suite.write(new File(outPath));
+        System.err.println("Results written to " + outPath);
+    }
+
+    /**
+     * Runs every benchmark on a corpus
+     *
+     * @param corpus        The directory holding the training and testing folders
+     * @param scale         The scale of the corpus, recorded as a parameter
+     * @throws IOException  If the corpus can't be read
+     */
+    public void runAll(File corpus, int scale) throws IOException
+    {
+        final File[] training = concat(TrainFile.listEmails(new File(corpus, "training/spam")),
+                                       TrainFile.listEmails(new File(corpus, "training/ham")));
+        final File[] testing = concat(TrainFile.listEmails(new File(corpus, "testing/spam")),
+                                      TrainFile.listEmails(new File(corpus, "testing/ham")));
+        final String spamPath = new File(corpus, "training/spam").getPath();
+        final String hamPath = new File(corpus, "training/ham").getPath();
+
+        measure("train.scanEmail", "thrpt", "emails/s", scale, new Iteration()
+        {
+            @Override
+            public long run()
+            {
+                TokenCounts counts = new TokenCounts(1 << 16);
+                for (File email : training)
+                {
+                    counts.scanEmail(email, true);
+                }
+                sink += counts.size();
+                return training.length;
+            }
+        }, null);
+
+        final TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        final int spamFiles = counts.getEmailCount(true);
+        final int hamFiles = counts.getEmailCount(false);
+        final TokenWeights[] model = new TokenWeights[1];
+
+        measure("train.buildModel", "avgt", "ms/op", scale, new Iteration()
+        {
+            @Override
+            public long run()
+            {
+                model[0] = counts.toWeights(spamFiles, hamFiles);
+                return 1;
+            }
+        }, null);
+
+        final long[] latencies = new long[testing.length * measuredIterations];
+        final int[] next = {0};
+        measure("score.email", "avgt", "us/op", scale, new Iteration()
+        {
+            @Override
+            public long run()
+            {
+                TestFile testFile = new TestFile("", 0.0, "UNKNOWN");
+                for (File email : testing)
+                {
+                    long start = System.nanoTime();
+                    testFile.getSpamEmailProbability(model[0], email);
+                    if (next[0] < latencies.length)
+                    {
+                        latencies[next[0]++] = System.nanoTime() - start;
+                    }
+                    sink += testFile.getSpamProbability();
+                }
+                return testing.length;
+            }
+        }, latencies);
+    }
+
+    /**
+     * Runs the warmup and measured iterations of a benchmark and records the result
+     *
+     * @param name      The benchmark name
+     * @param mode      thrpt for operations per second, avgt for time per operation
+     * @param unit      The unit of the score
+     * @param scale     The corpus scale
+     * @param body      The measured work
+     * @param latencies Per operation latencies filled in by the body, or null
+     */
+    private void measure(String name, String mode, String unit, int scale, Iteration body, long[] latencies)
+            throws IOException
+    {
+        for (int i = 0; i < warmupIterations; i++)
+        {
+            body.run();
+        }
+        if (latencies != null)
+        {
+            Arrays.fill(latencies, 0);
+        }
+
+        double[] scores = new double[measuredIterations];
+        long allocated = 0;
+        long operations = 0;
+        for (int i = 0; i < measuredIterations; i++)
+        {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long ops = body.run();
+            long elapsed = System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+            operations += ops;
+            scores[i] = mode.equals("thrpt") ? ops / (elapsed / 1e9) : elapsed / toNanos(unit) / ops;
+        }
+
+        LinkedHashMap<String, Double> secondary = new LinkedHashMap<>();
+        if (allocatedBytes() >= 0)
+        {
+            secondary.put("alloc.bytes/op", (double)allocated / operations);
+        }
+        if (latencies != null)
+        {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            int first = 0;
+            while (first < sorted.length && sorted[first] == 0)
+            {
+                first++;
+            }
+            if (first < sorted.length)
+            {
+                secondary.put("p50." + unit, sorted[first + (int)((sorted.length - first - 1) * 0.50)] / toNanos(unit));
+                secondary.put("p99." + unit, sorted[first + (int)((sorted.length - first - 1) * 0.99)] / toNanos(unit));
+            }
+        }
+        record(name, mode, unit, scale, scores, secondary);
+    }
+
+    /**
+     * Prints a result and adds it to the JSON output
+     */
+    private void record(String name, String mode, String unit, int scale, double[] scores,
+                        Map<String, Double> secondary)
+    {
+        double mean = 0;
+        for (double score : scores)
+        {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores)
+        {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? ERROR_Z * Math.sqrt(variance / (scores.length - 1) / scores.length) : 0;
+
+        System.out.printf(Locale.ROOT, "%-18s scale %-4d %14.3f +- %.3f %s%s%n", name, scale, mean, error, unit,
+                          secondary.isEmpty() ? "" : "  " + secondary);
+
+        json.append(results++ == 0 ? "" : ",\n");
+        json.append("  {\n");
+        json.append("    \"benchmark\" : \"sample.BenchmarkSuite.").append(name).append("\",\n");
+        json.append("    \"mode\" : \"").append(mode).append("\",\n");
+        json.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+        json.append("    \"measurementIterations\" : ").append(measuredIterations).append(",\n");
+        json.append("    \"params\" : { \"scale\" : \"").append(scale).append("\" },\n");
+        json.append("    \"primaryMetric\" : {\n");
+        json.append("      \"score\" : ").append(number(mean)).append(",\n");
+        json.append("      \"scoreError\" : ").append(number(error)).append(",\n");
+        json.append("      \"scoreUnit\" : \"").append(unit).append("\",\n");
+        json.append("      \"rawData\" : [ [ ");
+        for (int i = 0; i < scores.length; i++)
+        {
+            json.append(i == 0 ? "" : ", ").append(number(scores[i]));
+        }
+        json.append(" ] ]\n");
+        json.append("    },\n");
+        json.append("    \"secondaryMetrics\" : {");
+        int metric = 0;
+        for (Map.Entry<String, Double> entry : secondary.entrySet())
+        {
+            json.append(metric++ == 0 ? "\n" : ",\n");
+            json.append("      \"").append(entry.getKey()).append("\" : { \"score\" : ")
+                .append(number(entry.getValue())).append(" }");
+        }
+        json.append(metric == 0 ? "}\n" : "\n    }\n");
+        json.append("  }");
+    }
+
+    /**
+     * Writes the recorded results as a JSON array
+     *
+     * @param file          The output file
+     * @throws IOException  If the file can't be written
+     */
+    public void write(File file) throws IOException
+    {
+        Writer out = new FileWriter(file);
+        try
+        {
+            out.write(json.toString());
+            out.write("\n]\n");
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static String number(double value)
+    {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static double toNanos(String unit)
+    {
+        return unit.startsWith("ms") ? 1e6 : unit.startsWith("us") ? 1e3 : 1.0;
+    }
+
+    /**
+     * Gets the bytes allocated by the current thread so far, -1 if the JVM can't tell
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static File[] concat(File[] first, File[] second)
+    {
+        ArrayList<File> all = new ArrayList<>(Arrays.asList(first));
+        all.addAll(Arrays.asList(second));
+        return all.toArray(new File[all.size()]);
+    }
+}
@@ -0,0 +1,24 @@
+package sample;
+
+/**
+ * Takes the raw bytes of an email chunk by chunk, such as a Tokenizer or a MimeParser
+ *
+ * @version 1.0
+ */
+
+public interface ByteSink
+{
+    /**
+     * Takes the next chunk of an email
+     *
+     * @param buf   The bytes
+     * @param off   Where the chunk starts
+     * @param len   The length of the chunk
+     */
+    void feed(byte[] buf, int off, int len);
+
+    /**
+     * Called once the whole email has been fed
+     */
+    void finish();
+}
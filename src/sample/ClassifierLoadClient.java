@@ -0,0 +1,217 @@
+package sample;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for ClassifierServer. Sends the emails of a directory tree
+ * over a number of concurrent connections and reports requests per second
+ * and the p50, p99 and maximum latency.
+ *
+ * Usage: ClassifierLoadClient [--port N] [--concurrency N] [--requests N] [--emails DIR]
+ *
+ * @version 1.0
+ */
+
+public class ClassifierLoadClient
+{
+    public static void main(String[] args) throws Exception
+    {
+        int port = ClassifierServer.DEFAULT_PORT;
+        int concurrency = 64;
+        int requests = 20000;
+        String emailDir = "Email_Files/testing";
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        ArrayList<byte[]> emails = new ArrayList<>();
+        readEmails(new File(emailDir), emails);
+        if (emails.isEmpty())
+        {
+            System.err.println("Error, no emails found in " + emailDir + ". Please verify paths.");
+            System.exit(1);
+        }
+        System.out.printf("%d emails loaded, %d requests over %d connections%n", emails.size(), requests, concurrency);
+
+        LoadResult result = run(port, concurrency, requests, emails);
+        System.out.println(result);
+    }
+
+    /**
+     * Sends requests until the given number has been sent and times each of them
+     *
+     * @param port          The port of the server on the loopback address
+     * @param concurrency   The number of connections open at the same time
+     * @param requests      The number of requests to send
+     * @param emails        The messages sent, in turn
+     * @return              The latencies and throughput
+     * @throws Exception    If a client thread is interrupted
+     */
+    public static LoadResult run(final int port, int concurrency, final int requests, final ArrayList<byte[]> emails)
+            throws Exception
+    {
+        final long[] latencies = new long[requests];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] clients = new Thread[concurrency];
+
+        long start = System.nanoTime();
+        for (int c = 0; c < concurrency; c++)
+        {
+            clients[c] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int request;
+                    while ((request = next.getAndIncrement()) < requests)
+                    {
+                        long sent = System.nanoTime();
+                        if (!send(port, emails.get(request % emails.size())))
+                        {
+                            errors.incrementAndGet();
+                        }
+                        latencies[request] = System.nanoTime() - sent;
+                    }
+                }
+            }, "load-client-" + c);
+            clients[c].start();
+        }
+        for (Thread client : clients)
+        {
+            client.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new LoadResult(requests, errors.get(), elapsed, latencies);
+    }
+
+    /**
+     * Sends one message and reads the verdict
+     *
+     * @return  True if a verdict line came back
+     */
+    private static boolean send(int port, byte[] email)
+    {
+        try
+        {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try
+            {
+                OutputStream out = socket.getOutputStream();
+                out.write(email);
+                out.flush();
+                socket.shutdownOutput();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                String verdict = in.readLine();
+                return verdict != null && (verdict.startsWith("SPAM\t") || verdict.startsWith("HAM\t"));
+            } finally
+            {
+                socket.close();
+            }
+        } catch (IOException ioex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Reads every file under a directory into memory
+     */
+    private static void readEmails(File path, ArrayList<byte[]> emails) throws IOException
+    {
+        if (path.isDirectory())
+        {
+            File[] listing = path.listFiles();
+            if (listing != null)
+            {
+                Arrays.sort(listing);
+                for (File child : listing)
+                {
+                    readEmails(child, emails);
+                }
+            }
+        }
+        else if (path.isFile())
+        {
+            emails.add(Files.readAllBytes(path.toPath()));
+        }
+    }
+
+    /**
+     * Latency percentiles and throughput of a load run
+     */
+    public static class LoadResult
+    {
+        private final int requests;
+        private final int errors;
+        private final long elapsedNanos;
+        private final long[] sortedLatencies;
+
+        LoadResult(int requests, int errors, long elapsedNanos, long[] sortedLatencies)
+        {
+            this.requests = requests;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = sortedLatencies;
+        }
+
+        public double getRequestsPerSecond()
+        {
+            return requests / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * Gets a latency percentile
+         *
+         * @param percentile    e.g. 99.0
+         * @return              The latency in milliseconds
+         */
+        public double getLatencyMillis(double percentile)
+        {
+            if (sortedLatencies.length == 0)
+            {
+                return 0.0;
+            }
+            int index = (int)Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1e6;
+        }
+
+        public int getErrors()
+        {
+            return this.errors;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%.0f requests/s  p50 %.2f ms  p99 %.2f ms  max %.2f ms  errors %d",
+                                 getRequestsPerSecond(), getLatencyMillis(50), getLatencyMillis(99),
+                                 getLatencyMillis(100), errors);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package sample;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running classification daemon. The model is loaded once, then every
+ * connection on the local TCP port is one message: the client sends the raw
+ * RFC 822 message and shuts down its output, the server replies with one
+ * line holding the class and spam probability, tab separated, and closes
+ * the connection. e.g. nc -N localhost 7878 &lt; message
+ *
+ * Without a verdict cache the message is tokenized while it is being
+ * received, it is never buffered whole. Each connection gets its own
+ * thread: a virtual thread when the JVM has them (Java 21 and later), a
+ * pooled platform thread otherwise.
+ *
+ * With --verdict-cache N the server remembers the verdicts of the last N
+ * distinct messages. Each message is then buffered whole so it can be
+ * digested, and copies of a campaign are answered from the cache. A
+ * message longer than --max-message-bytes (default 1 MB) isn't buffered
+ * past that, it is scored as it is received without the cache.
+ *
+ * With --online DIR the server is trained on DIR into an OnlineTrainer and
+ * also takes feedback: a message sent after a first line of LEARN SPAM,
+ * LEARN HAM, UNLEARN SPAM or UNLEARN HAM is learned or unlearned with that
+ * label instead of scored, and the reply is OK. An UNLEARN of a message
+ * that wasn't learned with that label is refused with NOT LEARNED, so the
+ * counts of the training folders are never taken off. Scoring goes on
+ * while an email is learned. The verdict cache can't be used with it, the
+ * verdicts would go stale with every update.
+ *
+ * The Metrics MXBean is registered at start, and with --metrics FILE the
+ * latency histograms and counters are also written to FILE every
+ * --metrics-interval seconds (default 60), as JSON if the name ends in .json.
+ *
+ * Usage: ClassifierServer (--model FILE | --train DIR | --online DIR) [--port N] [--verdict-cache N]
+ *                         [--max-message-bytes N] [--metrics FILE] [--metrics-interval S]
+ *
+ * @version 1.8
+ */
+
+public class ClassifierServer
+{
+    public static final int DEFAULT_PORT = 7878;
+    //a client that sends nothing for this long is dropped
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    //longest message buffered for the verdict cache
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = VerdictCache.DEFAULT_MAX_MESSAGE_BYTES;
+    //longest first line read when looking for a LEARN or UNLEARN request
+    private static final int MAX_REQUEST_LINE = 64;
+
+    private final TokenWeights weights;
+    private final OnlineTrainer trainer;
+    private final VerdictCache verdicts;
+    private final int maxMessageBytes;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+
+    /**
+     * ClassifierServer constructor, binds the port on the loopback address
+     *
+     * @param weights       The log-odds weights of probable spam words
+     * @param port          The TCP port, 0 picks a free one
+     * @throws IOException  If the port can't be bound
+     */
+    public ClassifierServer(TokenWeights weights, int port) throws IOException
+    {
+        this(weights, port, null);
+    }
+
+    /**
+     * ClassifierServer constructor, binds the port on the loopback address
+     *
+     * @param weights       The log-odds weights of probable spam words
+     * @param port          The TCP port, 0 picks a free one
+     * @param verdicts      The verdicts of the messages scored before, null to score every message
+     * @throws IOException  If the port can't be bound
+     */
+    public ClassifierServer(TokenWeights weights, int port, VerdictCache verdicts) throws IOException
+    {
+        this(weights, port, verdicts, DEFAULT_MAX_MESSAGE_BYTES);
+    }
+
+    /**
+     * ClassifierServer constructor, binds the port on the loopback address
+     *
+     * @param weights           The log-odds weights of probable spam words
+     * @param port              The TCP port, 0 picks a free one
+     * @param verdicts          The verdicts of the messages scored before, null to score every message
+     * @param maxMessageBytes   The longest message buffered for the verdict cache, longer ones are scored without it
+     * @throws IOException      If the port can't be bound
+     */
+    public ClassifierServer(TokenWeights weights, int port, VerdictCache verdicts, int maxMessageBytes)
+            throws IOException
+    {
+        this.weights = weights;
+        this.trainer = null;
+        this.verdicts = verdicts;
+        this.maxMessageBytes = maxMessageBytes;
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.connections = newConnectionExecutor();
+    }
+
+    /**
+     * ClassifierServer constructor for a model that learns from feedback, binds the port on the loopback address
+     *
+     * @param trainer       The counts the messages are scored with and learned into
+     * @param port          The TCP port, 0 picks a free one
+     * @throws IOException  If the port can't be bound
+     */
+    public ClassifierServer(OnlineTrainer trainer, int port) throws IOException
+    {
+        this.weights = null;
+        this.trainer = trainer;
+        this.verdicts = null;
+        this.maxMessageBytes = DEFAULT_MAX_MESSAGE_BYTES;
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.connections = newConnectionExecutor();
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public VerdictCache getVerdictCache()
+    {
+        return this.verdicts;
+    }
+
+    /**
+     * Accepts connections until the server is closed
+     */
+    public void serve()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                connections.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                });
+            } catch (SocketException closed)
+            {
+                //the server socket was closed
+            } catch (IOException ioex)
+            {
+                System.out.println(ioex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, the ones in progress are finished
+     */
+    public void close()
+    {
+        try
+        {
+            serverSocket.close();
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        connections.shutdown();
+    }
+
+    /**
+     * Scores the message sent on a connection and writes the verdict
+     *
+     * @param socket    The client connection
+     */
+    private void handle(Socket socket)
+    {
+        try
+        {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            TestFile message = new TestFile(socket.getRemoteSocketAddress().toString(), 0.0, "UNKNOWN");
+            InputStream in = socket.getInputStream();
+            ByteBuffer buffered = verdicts != null ? readMessage(in, maxMessageBytes) : null;
+            String reply = null;
+            if (trainer != null)
+            {
+                reply = handleOnline(new BufferedInputStream(in), message);
+            }
+            else if (buffered != null && buffered.remaining() <= maxMessageBytes)
+            {
+                message.getSpamEmailProbability(weights, buffered, verdicts);
+            }
+            else if (buffered != null)
+            {
+                //too long to buffer, the part read is put back in front of the rest of the stream
+                PushbackInputStream rest = new PushbackInputStream(new BufferedInputStream(in), buffered.limit());
+                rest.unread(buffered.array(), 0, buffered.limit());
+                message.getSpamEmailProbability(weights, rest);
+            }
+            else
+            {
+                message.getSpamEmailProbability(weights, new BufferedInputStream(in));
+            }
+
+            if (reply == null)
+            {
+                reply = Evaluation.guessedClass(message) + "\t" + message.getSpamProbFormatted() + "\n";
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(reply.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        } finally
+        {
+            try
+            {
+                socket.close();
+            } catch (IOException ioex)
+            {
+                System.out.println(ioex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Learns, unlearns or scores a message with the online trainer, depending
+     * on its first line
+     *
+     * @param in            The stream the request is sent on, it must support mark
+     * @param message       The TestFile that receives the spam probability of a scored message
+     * @return              OK for a learned or unlearned message, NOT LEARNED for a message
+     *                      to unlearn that wasn't learned, null for a scored one
+     * @throws IOException  If the stream can't be read
+     */
+    private String handleOnline(InputStream in, TestFile message) throws IOException
+    {
+        in.mark(MAX_REQUEST_LINE);
+        byte[] line = new byte[MAX_REQUEST_LINE];
+        int length = 0;
+        int b;
+        while (length < line.length && (b = in.read()) != -1 && b != '\n')
+        {
+            line[length++] = (byte)b;
+        }
+        String[] request = new String(line, 0, length, StandardCharsets.US_ASCII).trim().split(" ");
+        if (request.length == 2 && (request[1].equals("SPAM") || request[1].equals("HAM")))
+        {
+            if (request[0].equals("LEARN"))
+            {
+                trainer.learn(in, request[1]);
+                return "OK\n";
+            }
+            if (request[0].equals("UNLEARN"))
+            {
+                return trainer.unlearn(in, request[1]) ? "OK\n" : "NOT LEARNED\n";
+            }
+        }
+        //not a request, the first line belongs to the message
+        in.reset();
+        trainer.score(message, in);
+        return null;
+    }
+
+    /**
+     * Reads a message to the end of its stream, or until it is longer than a limit
+     *
+     * @param in            The stream the message is sent on
+     * @param maxBytes      The longest message read whole
+     * @return              The bytes of the message, or its first maxBytes + 1 bytes if it is longer
+     * @throws IOException  If the stream can't be read
+     */
+    private static ByteBuffer readMessage(InputStream in, int maxBytes) throws IOException
+    {
+        int limit = (int)Math.min((long)maxBytes + 1, Integer.MAX_VALUE - 8);
+        byte[] buffer = new byte[Math.min(8192, limit)];
+        int length = 0;
+        int read;
+        do
+        {
+            if (length == buffer.length)
+            {
+                if (length == limit)
+                {
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, (int)Math.min((long)buffer.length * 2, limit));
+            }
+            read = in.read(buffer, length, buffer.length - length);
+            length += Math.max(read, 0);
+        } while (read != -1);
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * Creates the executor running the connections, one virtual thread per task
+     * when the JVM supports them and an unbounded thread pool otherwise
+     *
+     * @return  The executor
+     */
+    static ExecutorService newConnectionExecutor()
+    {
+        try
+        {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)virtual.invoke(null);
+        } catch (ReflectiveOperationException noVirtualThreads)
+        {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        String trainingDir = null;
+        String modelPath = null;
+        String onlineDir = null;
+        int port = DEFAULT_PORT;
+        int verdictCacheSize = 0;
+        int maxMessageBytes = DEFAULT_MAX_MESSAGE_BYTES;
+        String metricsPath = null;
+        long metricsInterval = 60;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--model":
+                    modelPath = args[i + 1];
+                    break;
+                case "--train":
+                    trainingDir = args[i + 1];
+                    break;
+                case "--online":
+                    onlineDir = args[i + 1];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--verdict-cache":
+                    verdictCacheSize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--max-message-bytes":
+                    maxMessageBytes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--metrics":
+                    metricsPath = args[i + 1];
+                    break;
+                case "--metrics-interval":
+                    metricsInterval = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        int sources = (trainingDir != null ? 1 : 0) + (modelPath != null ? 1 : 0) + (onlineDir != null ? 1 : 0);
+        if (sources != 1 || (onlineDir != null && verdictCacheSize > 0) || maxMessageBytes < 0
+            || args.length % 2 != 0)
+        {
+            System.err.println("Usage: ClassifierServer (--model FILE | --train DIR | --online DIR) [--port N] "
+                               + "[--verdict-cache N] [--max-message-bytes N] [--metrics FILE] [--metrics-interval S]");
+            System.exit(2);
+        }
+
+        Metrics.registerMBean();
+        if (metricsPath != null)
+        {
+            Metrics.startReporter(new File(metricsPath), metricsInterval);
+        }
+        try
+        {
+            if (onlineDir != null)
+            {
+                OnlineTrainer trainer = OnlineTrainer.train(onlineDir + "/spam", onlineDir + "/ham",
+                                                            Runtime.getRuntime().availableProcessors());
+                ClassifierServer server = new ClassifierServer(trainer, port);
+                System.err.println("Listening on " + server.getPort() + " with " + trainer.getEmailCount("SPAM")
+                                   + " spam and " + trainer.getEmailCount("HAM") + " ham emails learned");
+                server.serve();
+                return;
+            }
+            TokenWeights weights = modelPath != null
+                    ? ModelFile.loadWeights(new File(modelPath))
+                    : TokenWeights.fromProbabilities(TrainFile.trainModel(trainingDir + "/spam", trainingDir + "/ham",
+                                                                          Runtime.getRuntime().availableProcessors()));
+            ClassifierServer server = new ClassifierServer(weights, port,
+                                                           verdictCacheSize > 0 ? new VerdictCache(verdictCacheSize) : null,
+                                                           maxMessageBytes);
+            System.err.println("Listening on " + server.getPort() + " with " + weights.size() + " words");
+            server.serve();
+        } catch (IOException ioex)
+        {
+            System.err.println(ioex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package sample;
+
+/**
+ * How a set of tested emails was classified at one spam threshold, with
+ * spam as the positive class, and the area under the ROC curve over every
+ * threshold. Built by Evaluation.evaluate in one pass over the sorted
+ * spam probabilities.
+ *
+ * @version 1.0
+ */
+
+public class ConfusionMatrix
+{
+    private final int truePositives;
+    private final int falsePositives;
+    private final int trueNegatives;
+    private final int falseNegatives;
+    private final double auc;
+
+    /**
+     * ConfusionMatrix constructor
+     *
+     * @param truePositives     Spam emails guessed to be spam
+     * @param falsePositives    Ham emails guessed to be spam
+     * @param trueNegatives     Ham emails guessed to be ham
+     * @param falseNegatives    Spam emails guessed to be ham
+     * @param auc               The chance a spam email scores above a ham email, ties counting half
+     */
+    public ConfusionMatrix(int truePositives, int falsePositives, int trueNegatives, int falseNegatives, double auc)
+    {
+        this.truePositives = truePositives;
+        this.falsePositives = falsePositives;
+        this.trueNegatives = trueNegatives;
+        this.falseNegatives = falseNegatives;
+        this.auc = auc;
+    }
+
+    public int getTruePositives()
+    {
+        return this.truePositives;
+    }
+
+    public int getFalsePositives()
+    {
+        return this.falsePositives;
+    }
+
+    public int getTrueNegatives()
+    {
+        return this.trueNegatives;
+    }
+
+    public int getFalseNegatives()
+    {
+        return this.falseNegatives;
+    }
+
+    /**
+     * Gets the number of emails evaluated
+     */
+    public int getTotal()
+    {
+        return truePositives + falsePositives + trueNegatives + falseNegatives;
+    }
+
+    /**
+     * Accuracy = #correct guesses / #total guesses
+     */
+    public double getAccuracy()
+    {
+        return (double)(truePositives + trueNegatives) / getTotal();
+    }
+
+    /**
+     * Precision = #correct spam guesses / #total spam guesses, NaN if nothing was guessed to be spam
+     */
+    public double getPrecision()
+    {
+        return (double)truePositives / (truePositives + falsePositives);
+    }
+
+    /**
+     * Recall = #correct spam guesses / #spam emails, NaN if there were no spam emails
+     */
+    public double getRecall()
+    {
+        return (double)truePositives / (truePositives + falseNegatives);
+    }
+
+    /**
+     * F1 = the harmonic mean of precision and recall
+     */
+    public double getF1()
+    {
+        return 2.0 * truePositives / (2.0 * truePositives + falsePositives + falseNegatives);
+    }
+
+    /**
+     * Gets the area under the ROC curve, NaN without both spam and ham emails
+     */
+    public double getAuc()
+    {
+        return this.auc;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("TP %d FP %d TN %d FN %d, accuracy %.6f, precision %.6f, recall %.6f, F1 %.6f, AUC %.6f",
+                             truePositives, falsePositives, trueNegatives, falseNegatives, getAccuracy(),
+                             getPrecision(), getRecall(), getF1(), auc);
+    }
+}
@@ -0,0 +1,491 @@
+package sample;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk cache of tokenized emails, so repeated training and testing runs on
+ * an unchanged corpus don't read and tokenize the mail again. Every word gets
+ * an id in one dictionary, and every email is kept as its distinct word ids
+ * with the number of times each occurs. Training only needs the ids and
+ * scoring multiplies each weight by its count, so a parameter sweep over
+ * stop lists, pruning or thresholds runs on int arrays alone.
+ *
+ * Emails are keyed by absolute path and checked against their size and last
+ * modified time, so an edited or replaced email is tokenized again. Emails
+ * are always tokenized whole with the Tokenizer default MIME setting, so the
+ * cache serves the full scoring mode of counts and weights with that
+ * setting, and a cache built with the other setting is dropped as a whole. An email whose path is longer than 64 KB
+ * in UTF-8 is only cached for the run, it isn't saved.
+ *
+ * Layout, big endian:
+ *   int     magic "SPTC"
+ *   int     format version
+ *   byte    1 if built with MIME parsing
+ *   int     number of words, then each word as a short length and its bytes
+ *   int     number of emails, then each email as a short UTF-8 path length,
+ *           the path, long size, long last modified time, int number of
+ *           distinct words and a varint id and varint count per word
+ *   long    CRC32 of everything before it
+ *
+ * A CorpusCache isn't thread safe.
+ *
+ * @version 1.3
+ */
+
+public class CorpusCache
+{
+    public static final int MAGIC = 0x53505443;
+    public static final int VERSION = 1;
+
+    private final File file;
+    private final TokenTable words = new TokenTable(1 << 16);
+    private final HashMap<String, EmailTokens> emails = new HashMap<>();
+    private boolean dirty;
+    private int hits;
+    private int misses;
+
+    //scratch state of the email being tokenized, the same stamping TokenCounts uses
+    private int[] seen = new int[1 << 16];
+    private int[] slot = new int[1 << 16];
+    private int generation;
+    private int[] emailIds = new int[1024];
+    private int[] emailCounts = new int[1024];
+    private int emailWords;
+
+    private CorpusCache(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Opens a cache file, starting empty if it doesn't exist, is damaged or
+     * was built with the other MIME setting
+     *
+     * @param file  The cache file
+     * @return      The cache
+     */
+    public static CorpusCache open(File file)
+    {
+        CorpusCache cache = new CorpusCache(file);
+        if (file.isFile())
+        {
+            try
+            {
+                cache.read();
+            } catch (IOException ioex)
+            {
+                System.out.println("Ignoring token cache " + file + ": " + ioex.getMessage());
+                cache = new CorpusCache(file);
+                cache.dirty = true;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Makes a cache that is only kept in memory, for tokenizing a corpus once
+     * within a run. save does nothing.
+     *
+     * @return  The cache
+     */
+    public static CorpusCache inMemory()
+    {
+        return new CorpusCache(null);
+    }
+
+    /**
+     * Gets the tokens of an email, from the cache if the email hasn't changed
+     * since it was cached, otherwise by tokenizing it
+     *
+     * @param email         The email
+     * @return              Its distinct word ids and counts
+     * @throws IOException  If the email has to be read and can't be
+     */
+    public EmailTokens get(File email) throws IOException
+    {
+        String key = keyOf(email);
+        long size = email.length();
+        long modified = email.lastModified();
+        EmailTokens tokens = emails.get(key);
+        if (tokens != null && tokens.size == size && tokens.modified == modified)
+        {
+            hits++;
+            return tokens;
+        }
+
+        misses++;
+        startEmail();
+        Tokenizer.tokenize(email, new Tokenizer.TokenSink()
+        {
+            @Override
+            public void token(byte[] buf, int off, int len)
+            {
+                addToken(words.add(buf, off, len));
+            }
+        });
+        tokens = new EmailTokens(Arrays.copyOf(emailIds, emailWords), Arrays.copyOf(emailCounts, emailWords),
+                                 size, modified);
+        emails.put(key, tokens);
+        dirty = true;
+        return tokens;
+    }
+
+    /**
+     * Writes the cache back to its file if anything was added, leaving out
+     * the emails that no longer exist or have changed
+     *
+     * @throws IOException  If the file can't be written
+     */
+    public void save() throws IOException
+    {
+        if (file == null)
+        {
+            return;
+        }
+        Iterator<Map.Entry<String, EmailTokens>> entries = emails.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<String, EmailTokens> entry = entries.next();
+            File email = new File(entry.getKey());
+            if (email.length() != entry.getValue().size || email.lastModified() != entry.getValue().modified)
+            {
+                entries.remove();
+                dirty = true;
+            }
+        }
+        if (!dirty)
+        {
+            return;
+        }
+
+        //write next to the cache and rename, so a crash never leaves half a cache
+        File temp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)), crc));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(Tokenizer.DEFAULT_MIME_AWARE ? 1 : 0);
+            out.writeInt(words.size());
+            for (int id = 0; id < words.size(); id++)
+            {
+                //the Tokenizer drops words over MAX_TOKEN_LENGTH, so every length fits a short
+                byte[] word = words.token(id);
+                out.writeShort(word.length);
+                out.write(word);
+            }
+            int saved = 0;
+            for (String key : emails.keySet())
+            {
+                if (key.getBytes(StandardCharsets.UTF_8).length <= 0xFFFF)
+                {
+                    saved++;
+                }
+            }
+            out.writeInt(saved);
+            for (Map.Entry<String, EmailTokens> entry : emails.entrySet())
+            {
+                byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (path.length > 0xFFFF)
+                {
+                    //too long for its length field, the email is tokenized again next run
+                    continue;
+                }
+                EmailTokens tokens = entry.getValue();
+                out.writeShort(path.length);
+                out.write(path);
+                out.writeLong(tokens.size);
+                out.writeLong(tokens.modified);
+                out.writeInt(tokens.ids.length);
+                for (int i = 0; i < tokens.ids.length; i++)
+                {
+                    writeVarint(out, tokens.ids[i]);
+                    writeVarint(out, tokens.counts[i]);
+                }
+            }
+            out.flush();
+            //the checksum covers everything up to here, write it past the checked stream
+            long checksum = crc.getValue();
+            out.writeLong(checksum);
+        } finally
+        {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+        {
+            throw new IOException("Error, could not replace " + file);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Gets the weight of every cached word under a model, so an email can be
+     * scored with array reads only
+     *
+     * @param weights   The log-odds weights of the model
+     * @return          The weights by word id of this cache
+     */
+    public CachedWeights weightsFor(TokenWeights weights)
+    {
+        return new CachedWeights(weights);
+    }
+
+    /**
+     * Gets the cache file, null for a cache kept in memory
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Gets the dictionary of the cached words, ids index the arrays of EmailTokens
+     *
+     * @return  The word table, it must not be changed
+     */
+    public TokenTable getWords()
+    {
+        return this.words;
+    }
+
+    public int getHits()
+    {
+        return this.hits;
+    }
+
+    public int getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * Distinct word ids of one email and the number of times each occurs
+     */
+    public static class EmailTokens
+    {
+        private final int[] ids;
+        private final int[] counts;
+        private final long size;
+        private final long modified;
+
+        EmailTokens(int[] ids, int[] counts, long size, long modified)
+        {
+            this.ids = ids;
+            this.counts = counts;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Gets the number of distinct words
+         */
+        public int length()
+        {
+            return ids.length;
+        }
+
+        public int id(int i)
+        {
+            return ids[i];
+        }
+
+        public int count(int i)
+        {
+            return counts[i];
+        }
+    }
+
+    /**
+     * The weights of a model looked up once for every cached word. Words
+     * cached later, by emails tokenized after this was made, are looked up
+     * the first time an email holding them is scored.
+     */
+    public class CachedWeights
+    {
+        private final TokenWeights weights;
+        private double[] byId = new double[0];
+
+        private CachedWeights(TokenWeights weights)
+        {
+            this.weights = weights;
+            lookUp();
+        }
+
+        /**
+         * Gets the sum of the word weights of an email, eta of TestFile
+         *
+         * @param email An email of this cache
+         * @return      The weights times their counts, summed
+         */
+        public double eta(EmailTokens email)
+        {
+            if (byId.length < words.size())
+            {
+                lookUp();
+            }
+            double eta = 0.0;
+            for (int i = 0; i < email.ids.length; i++)
+            {
+                eta += email.counts[i] * byId[email.ids[i]];
+            }
+            return eta;
+        }
+
+        private void lookUp()
+        {
+            int looked = byId.length;
+            byId = Arrays.copyOf(byId, words.size());
+            for (int id = looked; id < byId.length; id++)
+            {
+                byte[] word = words.token(id);
+                byId[id] = weights.get(word, 0, word.length);
+            }
+        }
+    }
+
+    private void read() throws IOException
+    {
+        CRC32 crc = new CRC32();
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc);
+        DataInputStream in = new DataInputStream(checked);
+        try
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException("bad magic number");
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException("unsupported version " + version);
+            }
+            if ((in.readByte() == 1) != Tokenizer.DEFAULT_MIME_AWARE)
+            {
+                throw new IOException("built with the other MIME setting");
+            }
+            int wordCount = in.readInt();
+            byte[] word = new byte[256];
+            for (int id = 0; id < wordCount; id++)
+            {
+                int length = in.readUnsignedShort();
+                if (length > word.length)
+                {
+                    word = new byte[length];
+                }
+                in.readFully(word, 0, length);
+                if (words.add(word, 0, length) != id)
+                {
+                    throw new IOException("duplicate word " + id);
+                }
+            }
+            int emailCount = in.readInt();
+            for (int e = 0; e < emailCount; e++)
+            {
+                byte[] path = new byte[in.readUnsignedShort()];
+                in.readFully(path);
+                long size = in.readLong();
+                long modified = in.readLong();
+                int distinct = in.readInt();
+                if (distinct < 0 || distinct > wordCount)
+                {
+                    throw new IOException("bad word count " + distinct);
+                }
+                int[] ids = new int[distinct];
+                int[] counts = new int[distinct];
+                for (int i = 0; i < distinct; i++)
+                {
+                    ids[i] = readVarint(in);
+                    counts[i] = readVarint(in);
+                    if (ids[i] >= wordCount)
+                    {
+                        throw new IOException("bad word id " + ids[i]);
+                    }
+                }
+                emails.put(new String(path, StandardCharsets.UTF_8), new EmailTokens(ids, counts, size, modified));
+            }
+            long checksum = crc.getValue();
+            if (in.readLong() != checksum)
+            {
+                throw new IOException("checksum mismatch");
+            }
+        } catch (EOFException eof)
+        {
+            throw new IOException("truncated");
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    private void startEmail()
+    {
+        if (++generation == 0)
+        {
+            Arrays.fill(seen, 0);
+            generation = 1;
+        }
+        emailWords = 0;
+    }
+
+    private void addToken(int id)
+    {
+        if (id >= seen.length)
+        {
+            seen = Arrays.copyOf(seen, Math.max(seen.length * 2, id + 1));
+            slot = Arrays.copyOf(slot, seen.length);
+        }
+        if (seen[id] == generation)
+        {
+            emailCounts[slot[id]]++;
+            return;
+        }
+        if (emailWords == emailIds.length)
+        {
+            emailIds = Arrays.copyOf(emailIds, emailWords * 2);
+            emailCounts = Arrays.copyOf(emailCounts, emailWords * 2);
+        }
+        seen[id] = generation;
+        slot[id] = emailWords;
+        emailIds[emailWords] = id;
+        emailCounts[emailWords++] = 1;
+    }
+
+    private static String keyOf(File email)
+    {
+        return email.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+}
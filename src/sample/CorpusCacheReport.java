@@ -0,0 +1,186 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Times a train and test run on the raw emails, through a cold corpus cache
+ * that has to tokenize everything, and through the warm cache read back from
+ * disk. Then it sweeps minimum document frequencies and spam thresholds on
+ * the warm cache alone, the kind of experiment the cache is for.
+ *
+ * Usage: CorpusCacheReport [--emails DIR] [--cache FILE] [--min-df 1,2,3,5] [--threshold 0.5,0.9,0.99]
+ *
+ * @version 1.2
+ */
+
+public class CorpusCacheReport
+{
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        File cacheFile = null;
+        int[] minDfs = {1, 2, 3, 5};
+        double[] thresholds = {0.5, 0.9, 0.99};
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--cache":
+                    cacheFile = new File(args[i + 1]);
+                    break;
+                case "--min-df":
+                    String[] parts = args[i + 1].split(",");
+                    minDfs = new int[parts.length];
+                    for (int p = 0; p < parts.length; p++)
+                    {
+                        minDfs[p] = Integer.parseInt(parts[p].trim());
+                    }
+                    break;
+                case "--threshold":
+                    parts = args[i + 1].split(",");
+                    thresholds = new double[parts.length];
+                    for (int p = 0; p < parts.length; p++)
+                    {
+                        thresholds[p] = Double.parseDouble(parts[p].trim());
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (cacheFile == null)
+        {
+            cacheFile = File.createTempFile("tokens", ".cache");
+            cacheFile.deleteOnExit();
+        }
+        //the cold run has to start from nothing
+        cacheFile.delete();
+
+        String spamPath = emailDir + "/training/spam";
+        String hamPath = emailDir + "/training/ham";
+        File[] spamTests = TrainFile.listEmails(new File(emailDir, "testing/spam"));
+        File[] hamTests = TrainFile.listEmails(new File(emailDir, "testing/ham"));
+
+        //one unseen raw run so the first row isn't measured before the JIT has run
+        runRaw(spamPath, hamPath, spamTests, hamTests);
+
+        System.out.printf("%-12s %9s %9s %9s %9s %9s%n", "run", "load ms", "train ms", "test ms", "save ms",
+                          "accuracy");
+        System.out.printf("%-12s %9s %s %9s%n", "raw", "-", runRaw(spamPath, hamPath, spamTests, hamTests), "-");
+        runCached("cold cache", cacheFile, spamPath, hamPath, spamTests, hamTests);
+        CorpusCache cache = runCached("warm cache", cacheFile, spamPath, hamPath, spamTests, hamTests);
+        System.out.printf("cache file %d bytes, %d words%n%n", cacheFile.length(), cache.getWords().size());
+
+        System.out.printf("%-28s %7s %9s %9s %9s%n", "sweep", "words", "ms", "accuracy", "precision");
+        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, cache, null);
+        for (int minDf : minDfs)
+        {
+            long start = System.nanoTime();
+            TokenWeights weights = new VocabularyPruner(minDf, 0, VocabularyPruner.INFORMATION_GAIN)
+                    .toWeights(counts, counts.getEmailCount(true), counts.getEmailCount(false));
+            double[] spamProbs = score(cache, weights, spamTests);
+            double[] hamProbs = score(cache, weights, hamTests);
+            double millis = (System.nanoTime() - start) / 1e6;
+            for (double threshold : thresholds)
+            {
+                int spamGuesses = 0;
+                int correctSpam = 0;
+                int correctHam = 0;
+                for (double p : spamProbs)
+                {
+                    spamGuesses += p > threshold ? 1 : 0;
+                    correctSpam += p > threshold ? 1 : 0;
+                }
+                for (double p : hamProbs)
+                {
+                    spamGuesses += p > threshold ? 1 : 0;
+                    correctHam += p > threshold ? 0 : 1;
+                }
+                System.out.printf("%-28s %7d %9.1f %9.6f %9.6f%n", "min df " + minDf + ", threshold " + threshold,
+                                  weights.size(), millis,
+                                  (double)(correctSpam + correctHam) / (spamProbs.length + hamProbs.length),
+                                  (double)correctSpam / spamGuesses);
+            }
+        }
+    }
+
+    /**
+     * Trains and tests on the raw emails with a single thread, like the cache does
+     *
+     * @return  The train time, test time and accuracy columns of the report
+     */
+    private static String runRaw(String spamPath, String hamPath, File[] spamTests, File[] hamTests)
+    {
+        long start = System.nanoTime();
+        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        TokenWeights weights = counts.toWeights(counts.getEmailCount(true), counts.getEmailCount(false));
+        double trainMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        TestFile[] tested = new TestFile[spamTests.length + hamTests.length];
+        for (int t = 0; t < tested.length; t++)
+        {
+            File email = t < spamTests.length ? spamTests[t] : hamTests[t - spamTests.length];
+            tested[t] = new TestFile(email.getName(), 0.0, t < spamTests.length ? "SPAM" : "HAM");
+            tested[t].getSpamEmailProbability(weights, email);
+        }
+        double testMillis = (System.nanoTime() - start) / 1e6;
+        return String.format("%9.0f %9.0f %9s %9.6f", trainMillis, testMillis, "-", Evaluation.calcAccuracy(tested));
+    }
+
+    /**
+     * Opens the cache, trains and tests through it and saves it, printing the times of each step
+     *
+     * @return  The cache
+     */
+    private static CorpusCache runCached(String name, File cacheFile, String spamPath, String hamPath,
+                                         File[] spamTests, File[] hamTests) throws IOException
+    {
+        long start = System.nanoTime();
+        CorpusCache cache = CorpusCache.open(cacheFile);
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, cache, null);
+        TokenWeights weights = counts.toWeights(counts.getEmailCount(true), counts.getEmailCount(false));
+        double trainMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        CorpusCache.CachedWeights cachedWeights = cache.weightsFor(weights);
+        TestFile[] tested = new TestFile[spamTests.length + hamTests.length];
+        for (int t = 0; t < tested.length; t++)
+        {
+            File email = t < spamTests.length ? spamTests[t] : hamTests[t - spamTests.length];
+            tested[t] = new TestFile(email.getName(), 0.0, t < spamTests.length ? "SPAM" : "HAM");
+            tested[t].getSpamEmailProbability(cachedWeights, cache.get(email));
+        }
+        double testMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        cache.save();
+        double saveMillis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-12s %9.1f %9.0f %9.0f %9.1f %9.6f%n", name, loadMillis, trainMillis, testMillis,
+                          saveMillis, Evaluation.calcAccuracy(tested));
+        return cache;
+    }
+
+    /**
+     * Gets the spam probability of every email from the cache
+     */
+    private static double[] score(CorpusCache cache, TokenWeights weights, File[] emails) throws IOException
+    {
+        CorpusCache.CachedWeights cachedWeights = cache.weightsFor(weights);
+        double[] probs = new double[emails.length];
+        TestFile tested = new TestFile("", 0.0, "");
+        for (int i = 0; i < emails.length; i++)
+        {
+            tested.getSpamEmailProbability(cachedWeights, cache.get(emails[i]));
+            probs[i] = tested.getSpamProbability();
+        }
+        return probs;
+    }
+}
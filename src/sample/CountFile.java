@@ -0,0 +1,471 @@
+package sample;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Binary file holding the spam and ham document frequencies of a training
+ * shard, the slice of the corpus one host has. Shards are trained where the
+ * mail is, and only their count files are brought together and merged into
+ * the model, which is the model training on the whole corpus gives: the
+ * document frequency of a word over the corpus is the sum of its shard
+ * frequencies, and the email counts are the sums of the shard email counts.
+ *
+ * Layout, big endian:
+ *   int     magic "SPCF"
+ *   int     format version
+ *   byte    1 if trained with MIME parsing
+ *   int     number of spam emails
+ *   int     number of ham emails
+ *   int     number of words
+ *   words   sorted by their bytes, unsigned, each a short length, the raw
+ *           word bytes, the int spam count and the int ham count
+ *   long    CRC32 of everything before it
+ *
+ * Since every file is sorted the same way, the files are merged by reading
+ * all of them at once and always taking the smallest word next, a k-way
+ * merge: only the current word of each file is in memory, whatever the size
+ * of the vocabulary. Words ordered by their unsigned bytes are also in the
+ * order of their String keys, so the merged words come out in the order a
+ * model file stores them and are written straight into it.
+ *
+ * Every file records the MIME setting its shard was trained with, and the
+ * merge rejects shards trained with different settings, their words don't
+ * mix. The merged model keeps the setting of its shards.
+ *
+ * @version 1.5
+ */
+
+public class CountFile
+{
+    public static final int MAGIC = 0x53504346;
+    public static final int VERSION = 2;
+
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Receives the merged counts, the email counts first and then every word in order
+     */
+    public interface CountSink
+    {
+        /**
+         * Takes the summed email counts
+         *
+         * @param spamEmails    The number of spam emails
+         * @param hamEmails     The number of ham emails
+         * @param mimeAware     True if the shards were trained with MIME parsing
+         * @throws IOException  If the counts can't be handled
+         */
+        void emails(int spamEmails, int hamEmails, boolean mimeAware) throws IOException;
+
+        /**
+         * Takes one word. The bytes are only valid during the call.
+         *
+         * @param buf           The bytes of the word
+         * @param len           The length of the word
+         * @param spamCount     The number of spam emails it appears in
+         * @param hamCount      The number of ham emails it appears in
+         * @throws IOException  If the word can't be handled
+         */
+        void word(byte[] buf, int len, int spamCount, int hamCount) throws IOException;
+    }
+
+    /**
+     * Writes the counts of a trained shard to a count file, with their MIME setting
+     *
+     * @param counts        The spam and ham document frequencies of the shard
+     * @param file          The count file to write
+     * @throws IOException  If the file can't be written
+     */
+    public static void write(final TokenCounts counts, File file) throws IOException
+    {
+        final byte[][] tokens = new byte[counts.size()][];
+        Integer[] ids = new Integer[counts.size()];
+        for (int id = 0; id < ids.length; id++)
+        {
+            tokens[id] = counts.token(id);
+            ids[id] = id;
+        }
+        Arrays.sort(ids, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return compareBytes(tokens[a], tokens[a].length, tokens[b], tokens[b].length);
+            }
+        });
+
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try
+        {
+            ByteBuffer entry = ByteBuffer.allocate(1 << 16).order(ByteOrder.BIG_ENDIAN);
+            entry.putInt(MAGIC).putInt(VERSION).put((byte)(counts.isMimeAware() ? 1 : 0))
+                 .putInt(counts.getEmailCount(true)).putInt(counts.getEmailCount(false)).putInt(ids.length);
+            for (int id : ids)
+            {
+                //the Tokenizer drops words over MAX_TOKEN_LENGTH, so every entry fits the buffer
+                byte[] bytes = tokens[id];
+                if (entry.remaining() < 2 + bytes.length + 8)
+                {
+                    flush(entry, out, crc);
+                }
+                entry.putShort((short)bytes.length).put(bytes).putInt(counts.getCount(id, true))
+                     .putInt(counts.getCount(id, false));
+            }
+            flush(entry, out, crc);
+            out.writeLong(crc.getValue());
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Merges count files, sending the summed email counts and then every word
+     * with its summed counts in sorted order. Every file is read once, from
+     * start to end, and its checksum is checked when its end is reached.
+     *
+     * @param shards        The count files
+     * @param sink          Receives the merged counts
+     * @throws IOException  If a file can't be read, isn't a valid count file or was
+     *                      trained with another MIME setting than the first
+     */
+    public static void merge(File[] shards, CountSink sink) throws IOException
+    {
+        Reader[] readers = new Reader[shards.length];
+        try
+        {
+            int spamEmails = 0;
+            int hamEmails = 0;
+            for (int i = 0; i < shards.length; i++)
+            {
+                readers[i] = new Reader(shards[i]);
+                if (readers[i].mimeAware != readers[0].mimeAware)
+                {
+                    throw new IOException("Count file " + shards[i] + " was trained with MIME parsing "
+                                          + (readers[i].mimeAware ? "on" : "off") + ", " + shards[0]
+                                          + " with it " + (readers[0].mimeAware ? "on" : "off"));
+                }
+                spamEmails += readers[i].getEmailCount(true);
+                hamEmails += readers[i].getEmailCount(false);
+            }
+            //no shards merge into an empty model with the default setting
+            sink.emails(spamEmails, hamEmails, readers.length == 0 ? Tokenizer.DEFAULT_MIME_AWARE
+                                                                   : readers[0].mimeAware);
+
+            PriorityQueue<Reader> queue = new PriorityQueue<>(Math.max(1, shards.length), new Comparator<Reader>()
+            {
+                @Override
+                public int compare(Reader a, Reader b)
+                {
+                    return compareBytes(a.word, a.length, b.word, b.length);
+                }
+            });
+            for (Reader reader : readers)
+            {
+                if (reader.next())
+                {
+                    queue.add(reader);
+                }
+            }
+            byte[] word = new byte[256];
+            while (!queue.isEmpty())
+            {
+                Reader first = queue.poll();
+                int length = first.length;
+                if (length > word.length)
+                {
+                    word = new byte[Math.max(word.length * 2, length)];
+                }
+                System.arraycopy(first.word, 0, word, 0, length);
+                int spamCount = first.spamCount;
+                int hamCount = first.hamCount;
+                advance(first, queue);
+                //the same word in the other files is at the head of the queue now
+                while (!queue.isEmpty() && compareBytes(queue.peek().word, queue.peek().length, word, length) == 0)
+                {
+                    Reader same = queue.poll();
+                    spamCount += same.spamCount;
+                    hamCount += same.hamCount;
+                    advance(same, queue);
+                }
+                sink.word(word, length, spamCount, hamCount);
+            }
+        } finally
+        {
+            for (Reader reader : readers)
+            {
+                if (reader != null)
+                {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges count files into the word spam probability map of the whole corpus
+     *
+     * @param shards        The count files
+     * @return              A probability map that is a record of words and their probability of being spam
+     * @throws IOException  If a file can't be read, isn't a valid count file or was
+     *                      trained without MIME parsing
+     */
+    public static HashMap<String, Double> mergeProbabilities(File... shards) throws IOException
+    {
+        final HashMap<String, Double> probMap = new HashMap<>();
+        final int[] emails = new int[2];
+        merge(shards, new CountSink()
+        {
+            @Override
+            public void emails(int spamEmails, int hamEmails, boolean mimeAware) throws IOException
+            {
+                if (!mimeAware)
+                {
+                    //a probability map is always scored through a MimeParser
+                    throw new IOException("The shards were trained without MIME parsing, merge them into a model");
+                }
+                emails[0] = spamEmails;
+                emails[1] = hamEmails;
+            }
+
+            @Override
+            public void word(byte[] buf, int len, int spamCount, int hamCount)
+            {
+                double spamicity = TokenCounts.spamicity(spamCount, hamCount, emails[0], emails[1]);
+                if (!Double.isNaN(spamicity))
+                {
+                    probMap.put(Tokenizer.toWord(buf, 0, len), spamicity);
+                }
+            }
+        });
+        return probMap;
+    }
+
+    /**
+     * Merges count files straight into a model file, never holding more than
+     * one word per file. The files are merged twice, once to count the words
+     * of the model for the header and once to write them.
+     *
+     * @param shards        The count files
+     * @param modelFile     The model file to write
+     * @return              The number of words in the model
+     * @throws IOException  If a file can't be read or written
+     */
+    public static int mergeModel(File[] shards, File modelFile) throws IOException
+    {
+        final int[] emails = new int[2];
+        final int[] modelWords = {0};
+        final boolean[] mime = new boolean[1];
+        merge(shards, new CountSink()
+        {
+            @Override
+            public void emails(int spamEmails, int hamEmails, boolean mimeAware)
+            {
+                emails[0] = spamEmails;
+                emails[1] = hamEmails;
+                mime[0] = mimeAware;
+            }
+
+            @Override
+            public void word(byte[] buf, int len, int spamCount, int hamCount)
+            {
+                if (!Double.isNaN(TokenCounts.spamicity(spamCount, hamCount, emails[0], emails[1])))
+                {
+                    modelWords[0]++;
+                }
+            }
+        });
+
+        final ModelFile.Writer writer = new ModelFile.Writer(modelFile, modelWords[0], mime[0]);
+        try
+        {
+            merge(shards, new CountSink()
+            {
+                @Override
+                public void emails(int spamEmails, int hamEmails, boolean mimeAware)
+                {
+                }
+
+                @Override
+                public void word(byte[] buf, int len, int spamCount, int hamCount) throws IOException
+                {
+                    double spamicity = TokenCounts.spamicity(spamCount, hamCount, emails[0], emails[1]);
+                    if (!Double.isNaN(spamicity))
+                    {
+                        writer.add(buf, len, spamicity);
+                    }
+                }
+            });
+            writer.finish();
+        } finally
+        {
+            writer.close();
+        }
+        return modelWords[0];
+    }
+
+    /**
+     * Moves a reader to its next word and puts it back in the queue, or leaves it out at its end
+     */
+    private static void advance(Reader reader, PriorityQueue<Reader> queue) throws IOException
+    {
+        if (reader.next())
+        {
+            queue.add(reader);
+        }
+    }
+
+    /**
+     * Compares two words by their bytes, unsigned, the order of their String keys
+     */
+    private static int compareBytes(byte[] a, int aLength, byte[] b, int bLength)
+    {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++)
+        {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0)
+            {
+                return diff;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * Writes the filled part of a buffer and adds it to the checksum
+     */
+    private static void flush(ByteBuffer buffer, DataOutputStream out, CRC32 crc) throws IOException
+    {
+        crc.update(buffer.array(), 0, buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Reads a count file one word at a time, checking that the words are
+     * sorted and, at the end, the checksum
+     */
+    private static class Reader
+    {
+        private final File file;
+        private final BufferedInputStream raw;
+        private final CheckedInputStream checked;
+        private final DataInputStream in;
+        private final int spamEmails;
+        private final int hamEmails;
+        private final boolean mimeAware;
+        private int remaining;
+
+        //the current word, and the one before it to check the order
+        private byte[] word = new byte[256];
+        private int length = -1;
+        private byte[] previous = new byte[256];
+        private int previousLength = -1;
+        private int spamCount;
+        private int hamCount;
+
+        Reader(File file) throws IOException
+        {
+            this.file = file;
+            this.raw = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+            this.checked = new CheckedInputStream(raw, new CRC32());
+            this.in = new DataInputStream(checked);
+            try
+            {
+                if (in.readInt() != MAGIC)
+                {
+                    throw new IOException("Invalid count file " + file + ": bad magic number");
+                }
+                int version = in.readInt();
+                if (version != VERSION)
+                {
+                    throw new IOException("Unsupported count file version " + version + " in " + file
+                                          + ", expected " + VERSION);
+                }
+                this.mimeAware = in.readByte() == 1;
+                this.spamEmails = in.readInt();
+                this.hamEmails = in.readInt();
+                this.remaining = in.readInt();
+                if (spamEmails < 0 || hamEmails < 0 || remaining < 0)
+                {
+                    throw new IOException("Invalid count file " + file + ": negative count");
+                }
+            } catch (EOFException eof)
+            {
+                close();
+                throw new IOException("Invalid count file " + file + ": truncated header");
+            } catch (IOException ioex)
+            {
+                close();
+                throw ioex;
+            }
+        }
+
+        int getEmailCount(boolean spam)
+        {
+            return spam ? spamEmails : hamEmails;
+        }
+
+        /**
+         * Reads the next word
+         *
+         * @return              False at the end of the file, once its checksum is checked
+         * @throws IOException  If the file can't be read, is out of order or fails its checksum
+         */
+        boolean next() throws IOException
+        {
+            try
+            {
+                if (remaining == 0)
+                {
+                    long expected = checked.getChecksum().getValue();
+                    //the checksum itself is read past the checked stream
+                    if (new DataInputStream(raw).readLong() != expected)
+                    {
+                        throw new IOException("Invalid count file " + file + ": checksum mismatch");
+                    }
+                    if (raw.read() != -1)
+                    {
+                        throw new IOException("Invalid count file " + file + ": trailing data after the last word");
+                    }
+                    return false;
+                }
+                byte[] swap = previous;
+                previous = word;
+                previousLength = length;
+                word = swap;
+                length = in.readShort() & 0xFFFF;
+                if (length > word.length)
+                {
+                    word = new byte[Math.max(word.length * 2, length)];
+                }
+                in.readFully(word, 0, length);
+                spamCount = in.readInt();
+                hamCount = in.readInt();
+                remaining--;
+                if (previousLength >= 0 && compareBytes(previous, previousLength, word, length) >= 0)
+                {
+                    throw new IOException("Invalid count file " + file + ": words out of order");
+                }
+                return true;
+            } catch (EOFException eof)
+            {
+                throw new IOException("Invalid count file " + file + ": truncated");
+            }
+        }
+
+        void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
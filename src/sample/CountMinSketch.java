@@ -0,0 +1,140 @@
+package sample;
+
+/**
+ * Count-min sketch of word counts in a fixed number of int counters. A word
+ * is counted in one counter of every row and its estimate is the smallest of
+ * them, so an estimate is never below the true count. With width w and depth
+ * d, an estimate is more than e/w times the total of all counts too high with
+ * a probability of at most e^-d.
+ *
+ * Counts are added with conservative update: only the counters holding the
+ * current minimum are raised, which keeps the same bounds with a smaller error.
+ *
+ * @version 1.0
+ */
+
+public class CountMinSketch
+{
+    private final int width;
+    private final int depth;
+    private final int[] counters;
+    private long total;
+
+    /**
+     * CountMinSketch constructor
+     *
+     * @param width The number of counters per row
+     * @param depth The number of rows
+     */
+    public CountMinSketch(int width, int depth)
+    {
+        if (width < 1 || depth < 1)
+        {
+            throw new IllegalArgumentException("Width and depth must be at least 1: " + width + "x" + depth);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counters = new int[width * depth];
+    }
+
+    /**
+     * Adds 1 to the count of a word
+     *
+     * @param hash  The hash of the word, from Tokenizer.hash
+     * @return      The new estimate of its count
+     */
+    public int add(int hash)
+    {
+        int estimate = estimate(hash) + 1;
+        int h2 = secondHash(hash);
+        for (int row = 0; row < depth; row++)
+        {
+            int cell = row * width + index(hash, h2, row);
+            if (counters[cell] < estimate)
+            {
+                counters[cell] = estimate;
+            }
+        }
+        total++;
+        return estimate;
+    }
+
+    /**
+     * Gets the estimated count of a word, never below its true count
+     *
+     * @param hash  The hash of the word, from Tokenizer.hash
+     * @return      The estimate
+     */
+    public int estimate(int hash)
+    {
+        int h2 = secondHash(hash);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+        {
+            min = Math.min(min, counters[row * width + index(hash, h2, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * Gets the amount an estimate is too high by at most, with probability 1 - getFailureProbability()
+     *
+     * @return  e / width times the total of all counts
+     */
+    public double getErrorBound()
+    {
+        return Math.E / width * total;
+    }
+
+    /**
+     * Gets the probability of an estimate being further off than getErrorBound()
+     *
+     * @return  e^-depth
+     */
+    public double getFailureProbability()
+    {
+        return Math.exp(-depth);
+    }
+
+    public long getTotal()
+    {
+        return this.total;
+    }
+
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    public int getDepth()
+    {
+        return this.depth;
+    }
+
+    /**
+     * Gets the heap taken by the counters, for memory reports
+     *
+     * @return  The size of the counter array in bytes
+     */
+    public long heapBytes()
+    {
+        return 4L * counters.length;
+    }
+
+    /**
+     * Picks the counter of a row, with the rows' hashes made as h1 + row * h2
+     */
+    private int index(int hash, int h2, int row)
+    {
+        return ((hash + row * h2) & 0x7FFFFFFF) % width;
+    }
+
+    /**
+     * Derives a second, odd hash so the rows don't put the same words together
+     */
+    private static int secondHash(int hash)
+    {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 15)) | 1;
+    }
+}
@@ -0,0 +1,362 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stratified k-fold cross-validation. Every email is tokenized once into a
+ * CorpusCache and the folds then run concurrently on the cached word ids.
+ * The document frequencies of the whole corpus are counted once. Each fold
+ * only counts its own held out emails and subtracts them, so all k folds
+ * together count every email twice rather than k times. A fold builds the
+ * weights of its training part the way TokenCounts.toWeights does, scores
+ * its held out emails and evaluates them with Evaluation.evaluate.
+ *
+ * Usage: CrossValidator [--spam DIR] [--ham DIR] [--folds 10] [--threads N] [--seed 1]
+ *                       [--threshold 0.5] [--cache FILE]
+ * --spam and --ham can be given more than once. The default corpus is the
+ * training and testing folders of Email_Files pooled together.
+ *
+ * @version 1.1
+ */
+
+public class CrossValidator
+{
+    private final int folds;
+    private final int parallelism;
+    private final long seed;
+    private final double threshold;
+
+    /**
+     * CrossValidator constructor
+     *
+     * @param folds         The number of folds, at least 2
+     * @param parallelism   The number of folds run at the same time
+     * @param seed          Seed of the shuffle that deals the emails into folds
+     * @param threshold     The spam probability above which an email is guessed to be spam
+     */
+    public CrossValidator(int folds, int parallelism, long seed, double threshold)
+    {
+        if (folds < 2)
+        {
+            throw new IllegalArgumentException("Folds must be at least 2: " + folds);
+        }
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.folds = folds;
+        this.parallelism = parallelism;
+        this.seed = seed;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Cross-validates a corpus
+     *
+     * @param spam          The spam emails
+     * @param ham           The ham emails
+     * @param cache         The cache the emails are tokenized into
+     * @return              The evaluation of every fold
+     * @throws IOException  If an email can't be read
+     */
+    public ConfusionMatrix[] run(File[] spam, File[] ham, CorpusCache cache) throws IOException
+    {
+        final CorpusCache.EmailTokens[] spamTokens = tokenize(spam, cache);
+        final CorpusCache.EmailTokens[] hamTokens = tokenize(ham, cache);
+
+        //nothing below changes the cache, so the folds can share it
+        TokenTable words = cache.getWords();
+        final boolean[] ignored = new boolean[words.size()];
+        for (int id = 0; id < ignored.length; id++)
+        {
+            byte[] word = words.token(id);
+            ignored[id] = TrainFile.isIgnored(word, 0, word.length);
+        }
+        final int[] spamCounts = new int[ignored.length];
+        final int[] hamCounts = new int[ignored.length];
+        count(spamTokens, null, -1, spamCounts);
+        count(hamTokens, null, -1, hamCounts);
+
+        Random random = new Random(seed);
+        final int[] spamFolds = deal(spamTokens.length, random);
+        final int[] hamFolds = deal(hamTokens.length, random);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, folds));
+        try
+        {
+            ArrayList<Future<ConfusionMatrix>> results = new ArrayList<>();
+            for (int f = 0; f < folds; f++)
+            {
+                final int fold = f;
+                results.add(pool.submit(new Callable<ConfusionMatrix>()
+                {
+                    @Override
+                    public ConfusionMatrix call()
+                    {
+                        return runFold(fold, spamTokens, hamTokens, spamFolds, hamFolds, spamCounts, hamCounts,
+                                       ignored);
+                    }
+                }));
+            }
+            ConfusionMatrix[] matrices = new ConfusionMatrix[folds];
+            for (int f = 0; f < folds; f++)
+            {
+                matrices[f] = results.get(f).get();
+            }
+            return matrices;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Cross-validation interrupted");
+        } catch (ExecutionException e)
+        {
+            throw new IOException("Fold failed: " + e.getCause(), e.getCause());
+        } finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Trains on every fold but one and evaluates the held out fold
+     */
+    private ConfusionMatrix runFold(int fold, CorpusCache.EmailTokens[] spamTokens,
+                                    CorpusCache.EmailTokens[] hamTokens, int[] spamFolds, int[] hamFolds,
+                                    int[] spamCounts, int[] hamCounts, boolean[] ignored)
+    {
+        int[] heldSpamCounts = new int[ignored.length];
+        int[] heldHamCounts = new int[ignored.length];
+        int heldSpam = count(spamTokens, spamFolds, fold, heldSpamCounts);
+        int heldHam = count(hamTokens, hamFolds, fold, heldHamCounts);
+        int spamFiles = Math.max(1, spamTokens.length - heldSpam);
+        int hamFiles = Math.max(1, hamTokens.length - heldHam);
+
+        double[] weights = new double[ignored.length];
+        for (int id = 0; id < weights.length; id++)
+        {
+            double p = ignored[id] ? Double.NaN
+                       : TokenCounts.spamicity(spamCounts[id] - heldSpamCounts[id], hamCounts[id] - heldHamCounts[id],
+                                               spamFiles, hamFiles);
+            weights[id] = Double.isNaN(p) ? 0.0 : Math.log(1 - p) - Math.log(p);
+        }
+        return Evaluation.evaluate(score(spamTokens, spamFolds, fold, heldSpam, weights),
+                                   score(hamTokens, hamFolds, fold, heldHam, weights), threshold);
+    }
+
+    /**
+     * Adds 1 per email to the count of every word of the emails of one fold
+     *
+     * @param emails    The emails
+     * @param emailFold The fold of every email, null to count them all
+     * @param fold      The fold counted
+     * @param counts    The counts by word id
+     * @return          The number of emails counted
+     */
+    private static int count(CorpusCache.EmailTokens[] emails, int[] emailFold, int fold, int[] counts)
+    {
+        int counted = 0;
+        for (int e = 0; e < emails.length; e++)
+        {
+            if (emailFold == null || emailFold[e] == fold)
+            {
+                CorpusCache.EmailTokens email = emails[e];
+                for (int i = 0; i < email.length(); i++)
+                {
+                    counts[email.id(i)]++;
+                }
+                counted++;
+            }
+        }
+        return counted;
+    }
+
+    /**
+     * Gets the spam probability of every email of one fold
+     */
+    private static double[] score(CorpusCache.EmailTokens[] emails, int[] emailFold, int fold, int held,
+                                  double[] weights)
+    {
+        double[] probs = new double[held];
+        int scored = 0;
+        for (int e = 0; e < emails.length; e++)
+        {
+            if (emailFold[e] == fold)
+            {
+                CorpusCache.EmailTokens email = emails[e];
+                double eta = 0.0;
+                for (int i = 0; i < email.length(); i++)
+                {
+                    eta += email.count(i) * weights[email.id(i)];
+                }
+                probs[scored++] = 1.0 / (1.0 + Math.pow(Math.E, eta));
+            }
+        }
+        return probs;
+    }
+
+    /**
+     * Deals emails into folds in a random order, so every fold gets an equal share of each class
+     */
+    private int[] deal(int emails, Random random)
+    {
+        int[] order = new int[emails];
+        for (int i = 0; i < emails; i++)
+        {
+            order[i] = i;
+        }
+        for (int i = emails - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        int[] emailFold = new int[emails];
+        for (int i = 0; i < emails; i++)
+        {
+            emailFold[order[i]] = i % folds;
+        }
+        return emailFold;
+    }
+
+    private static CorpusCache.EmailTokens[] tokenize(File[] emails, CorpusCache cache) throws IOException
+    {
+        CorpusCache.EmailTokens[] tokens = new CorpusCache.EmailTokens[emails.length];
+        for (int i = 0; i < emails.length; i++)
+        {
+            tokens[i] = cache.get(emails[i]);
+        }
+        return tokens;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        ArrayList<String> spamDirs = new ArrayList<>();
+        ArrayList<String> hamDirs = new ArrayList<>();
+        int folds = 10;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 1;
+        double threshold = Evaluation.SPAM_THRESHOLD;
+        String cachePath = null;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--spam":
+                    spamDirs.add(args[i + 1]);
+                    break;
+                case "--ham":
+                    hamDirs.add(args[i + 1]);
+                    break;
+                case "--folds":
+                    folds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--cache":
+                    cachePath = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (spamDirs.isEmpty() && hamDirs.isEmpty())
+        {
+            spamDirs.add("Email_Files/training/spam");
+            spamDirs.add("Email_Files/testing/spam");
+            hamDirs.add("Email_Files/training/ham");
+            hamDirs.add("Email_Files/testing/ham");
+        }
+
+        File[] spam = listEmails(spamDirs);
+        File[] ham = listEmails(hamDirs);
+        CorpusCache cache = cachePath != null ? CorpusCache.open(new File(cachePath)) : CorpusCache.inMemory();
+        CrossValidator validator = new CrossValidator(folds, threads, seed, threshold);
+
+        long start = System.nanoTime();
+        ConfusionMatrix[] matrices = validator.run(spam, ham, cache);
+        double millis = (System.nanoTime() - start) / 1e6;
+        cache.save();
+
+        System.out.printf("%-5s %6s %6s %6s %6s %9s %9s %9s %9s %9s%n", "fold", "TP", "FP", "TN", "FN", "accuracy",
+                          "precision", "recall", "F1", "AUC");
+        double[][] columns = new double[5][folds];
+        int[] pooled = new int[4];
+        for (int f = 0; f < folds; f++)
+        {
+            ConfusionMatrix matrix = matrices[f];
+            double[] values = {matrix.getAccuracy(), matrix.getPrecision(), matrix.getRecall(), matrix.getF1(),
+                               matrix.getAuc()};
+            for (int c = 0; c < values.length; c++)
+            {
+                columns[c][f] = values[c];
+            }
+            pooled[0] += matrix.getTruePositives();
+            pooled[1] += matrix.getFalsePositives();
+            pooled[2] += matrix.getTrueNegatives();
+            pooled[3] += matrix.getFalseNegatives();
+            System.out.printf("%-5d %6d %6d %6d %6d %9.6f %9.6f %9.6f %9.6f %9.6f%n", f + 1,
+                              matrix.getTruePositives(), matrix.getFalsePositives(), matrix.getTrueNegatives(),
+                              matrix.getFalseNegatives(), values[0], values[1], values[2], values[3], values[4]);
+        }
+        System.out.printf("%-5s %6d %6d %6d %6d", "sum", pooled[0], pooled[1], pooled[2], pooled[3]);
+        for (double[] column : columns)
+        {
+            System.out.printf(" %9.6f", mean(column));
+        }
+        System.out.printf("%n%-33s", "stdev");
+        for (double[] column : columns)
+        {
+            System.out.printf(" %9.6f", stdev(column));
+        }
+        System.out.printf("%n%d spam, %d ham, %d folds on %d threads in %.0f ms, %d emails tokenized%n",
+                          spam.length, ham.length, folds, Math.min(threads, folds), millis, cache.getMisses());
+    }
+
+    private static double mean(double[] values)
+    {
+        double sum = 0.0;
+        for (double value : values)
+        {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double stdev(double[] values)
+    {
+        double mean = mean(values);
+        double squares = 0.0;
+        for (double value : values)
+        {
+            squares += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(squares / (values.length - 1));
+    }
+
+    private static File[] listEmails(ArrayList<String> directories) throws IOException
+    {
+        ArrayList<File> emails = new ArrayList<>();
+        for (String directory : directories)
+        {
+            emails.addAll(Arrays.asList(TrainFile.listEmails(new File(directory))));
+        }
+        return emails.toArray(new File[emails.size()]);
+    }
+}
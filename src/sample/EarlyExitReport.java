@@ -0,0 +1,103 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Scores the testing set in a few ScoringModes and reports what the cheaper
+ * modes save and cost: bytes read against the full emails, emails that
+ * stopped early, mean and p99 latency, and accuracy and precision.
+ *
+ * Usage: EarlyExitReport [--emails DIR] [--model FILE]
+ *
+ * @version 1.2
+ */
+
+public class EarlyExitReport
+{
+    private static final ScoringMode[] MODES = {
+            ScoringMode.FULL,
+            new ScoringMode(16 * 1024, 0, 0.0),
+            new ScoringMode(4 * 1024, 0, 0.0),
+            new ScoringMode(0, 15, 0.0),
+            new ScoringMode(0, 0, 0.9999),
+            new ScoringMode(0, 0, 0.999),
+            new ScoringMode(16 * 1024, 15, 0.999)};
+
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        String modelPath = null;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--model":
+                    modelPath = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        TokenWeights weights = modelPath != null
+                ? ModelFile.loadWeights(new File(modelPath))
+                : TokenWeights.fromProbabilities(TrainFile.trainModel(emailDir + "/training/spam",
+                                                                      emailDir + "/training/ham", 1));
+        File[] spam = TrainFile.listEmails(new File(emailDir, "testing/spam"));
+        File[] ham = TrainFile.listEmails(new File(emailDir, "testing/ham"));
+        long totalBytes = 0;
+        for (File email : spam)
+        {
+            totalBytes += email.length();
+        }
+        for (File email : ham)
+        {
+            totalBytes += email.length();
+        }
+
+        //one unseen pass so the first mode isn't measured before the JIT has run
+        score(weights, spam, ham, ScoringMode.FULL, new long[spam.length + ham.length]);
+
+        System.out.printf("%-36s %12s %7s %7s %10s %10s %9s %9s%n", "mode", "bytes read", "read", "early",
+                          "mean us", "p99 us", "accuracy", "precision");
+        for (ScoringMode mode : MODES)
+        {
+            long[] latencies = new long[spam.length + ham.length];
+            TestFile[] tested = score(weights, spam, ham, mode, latencies);
+            long bytesRead = 0;
+            int early = 0;
+            long totalNanos = 0;
+            for (int i = 0; i < tested.length; i++)
+            {
+                bytesRead += tested[i].getBytesRead();
+                early += tested[i].isEarlyExit() ? 1 : 0;
+                totalNanos += latencies[i];
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%-36s %12d %6.1f%% %7d %10.1f %10.1f %9.6f %9.6f%n", mode, bytesRead,
+                              100.0 * bytesRead / totalBytes, early, totalNanos / 1e3 / tested.length,
+                              latencies[(int)Math.ceil(0.99 * latencies.length) - 1] / 1e3,
+                              Evaluation.calcAccuracy(tested), Evaluation.calcPrecision(tested));
+        }
+    }
+
+    private static TestFile[] score(TokenWeights weights, File[] spam, File[] ham, ScoringMode mode,
+                                    long[] latencies)
+    {
+        TestFile[] tested = new TestFile[spam.length + ham.length];
+        for (int i = 0; i < tested.length; i++)
+        {
+            File email = i < spam.length ? spam[i] : ham[i - spam.length];
+            tested[i] = new TestFile(email.getName(), 0.0, i < spam.length ? "SPAM" : "HAM");
+            long start = System.nanoTime();
+            tested[i].getSpamEmailProbability(weights, email, mode);
+            latencies[i] = System.nanoTime() - start;
+        }
+        return tested;
+    }
+}
@@ -0,0 +1,544 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests or trains a listing of emails in three stages, so that waiting on
+ * the disk and tokenizing overlap:
+ *
+ *   read   reader threads load whole emails into memory, in listing order
+ *   score  worker threads tokenize and score (or count) the loaded emails
+ *   sink   the calling thread hands the results on in listing order
+ *
+ * The stages are joined by bounded queues. A stage that gets ahead blocks
+ * on the full queue in front of the next one, and the readers never run
+ * more than a window of emails ahead of the sink, so memory stays bounded
+ * however slow one email is.
+ *
+ * Every stage records how long its threads were busy, blocked on a full
+ * queue or starved on an empty one, and how deep its input queue was. A
+ * read stage that is busy while the workers starve is I/O bound, workers
+ * that are busy while the readers block are CPU bound.
+ *
+ * A pipeline can run one listing at a time, the stats are those of the last run.
+ *
+ * Only the command line tools use it, BatchClassifier and TrainFile. The
+ * Test button of the GUI reads its emails through the corpus cache instead,
+ * where they are already tokenized.
+ *
+ * @version 1.3
+ */
+
+public class EmailPipeline
+{
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    //marks the end of a queue
+    private static final Item END = new Item(-1, null, null);
+
+    private final int readers;
+    private final int workers;
+    private final int queueCapacity;
+    private Stage[] stages = new Stage[0];
+
+    /**
+     * Receives the tested emails in listing order, on the thread that runs the pipeline
+     */
+    public interface ResultSink
+    {
+        void result(TestFile testFile);
+    }
+
+    /**
+     * EmailPipeline constructor
+     *
+     * @param readers       The number of reader threads
+     * @param workers       The number of tokenize and score threads
+     * @param queueCapacity The number of emails each queue holds before its producers block
+     */
+    public EmailPipeline(int readers, int workers, int queueCapacity)
+    {
+        if (readers < 1 || workers < 1 || queueCapacity < 1)
+        {
+            throw new IllegalArgumentException("A pipeline needs at least 1 reader, worker and queue slot: "
+                                               + readers + ", " + workers + ", " + queueCapacity);
+        }
+        this.readers = readers;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getReaders()
+    {
+        return this.readers;
+    }
+
+    public int getWorkers()
+    {
+        return this.workers;
+    }
+
+    public int getQueueCapacity()
+    {
+        return this.queueCapacity;
+    }
+
+    /**
+     * Gets the stats of the read, score and sink stages of the last run
+     *
+     * @return  The stages, empty before the first run
+     */
+    public Stage[] getStages()
+    {
+        return this.stages.clone();
+    }
+
+    /**
+     * Tests every email of a listing. A cancelled or interrupted run returns
+     * the emails tested so far, which are always the first ones of the listing.
+     *
+     * @param emails    The emails, tested in this order
+     * @param type      The type of the emails, SPAM, HAM or UNKNOWN
+     * @param weights   The log-odds weights of probable spam words
+     * @param sink      Receives every tested email in order, may be null
+     * @param listener  Receives the progress and can cancel the run, may be null
+     * @return          The tested emails, in listing order
+     */
+    public TestFile[] test(File[] emails, final String type, final TokenWeights weights, ResultSink sink,
+                           ProgressListener listener)
+    {
+        Worker[] scorers = new Worker[workers];
+        for (int w = 0; w < workers; w++)
+        {
+            scorers[w] = new Worker()
+            {
+                @Override
+                void process(Item item)
+                {
+                    TestFile testFile = new TestFile(item.email.getName(), 0.0, type);
+                    testFile.getSpamEmailProbability(weights, item.data, 0, item.data.length);
+                    item.result = testFile;
+                }
+            };
+        }
+        return run(emails, scorers, sink, listener);
+    }
+
+    /**
+     * Counts the words of every email of a listing into a table. Each worker
+     * counts into a table of its own and the tables are added up at the end,
+     * which gives the counts of the serial loop. A cancelled run keeps the
+     * words of the emails counted so far.
+     *
+     * @param emails    The emails
+     * @param spam      True if the emails are spam, false if ham
+     * @param counts    The table that receives the counts
+     * @param listener  Receives the progress and can cancel the run, may be null
+     */
+    public void train(File[] emails, final boolean spam, TokenCounts counts, ProgressListener listener)
+    {
+        final TokenCounts[] workerCounts = new TokenCounts[workers];
+        Worker[] counters = new Worker[workers];
+        for (int w = 0; w < workers; w++)
+        {
+            final TokenCounts own = new TokenCounts(1 << 14, counts.isMimeAware());
+            workerCounts[w] = own;
+            counters[w] = new Worker()
+            {
+                @Override
+                void process(Item item)
+                {
+                    own.scanEmail(ByteBuffer.wrap(item.data), spam);
+                }
+            };
+        }
+        run(emails, counters, null, listener);
+
+        //the merge runs on the sink thread, after the last email
+        long start = System.nanoTime();
+        for (TokenCounts own : workerCounts)
+        {
+            counts.addAll(own);
+        }
+        long mergeNanos = System.nanoTime() - start;
+        stages[2].busyNanos.addAndGet(mergeNanos);
+        for (Stage stage : stages)
+        {
+            stage.wallNanos += mergeNanos;
+        }
+    }
+
+    /**
+     * Runs the three stages over a listing and waits for them to finish
+     */
+    private TestFile[] run(final File[] emails, final Worker[] scorers, ResultSink sink,
+                           final ProgressListener listener)
+    {
+        final Stage readStage = new Stage("read", readers);
+        final Stage scoreStage = new Stage("score", workers);
+        final Stage sinkStage = new Stage("sink", 1);
+        stages = new Stage[]{readStage, scoreStage, sinkStage};
+
+        final BlockingQueue<Item> loaded = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Item> scored = new ArrayBlockingQueue<>(queueCapacity);
+        //a permit per email between being taken by a reader and leaving the sink, so a slow
+        //email holds back the readers instead of piling the ones after it up in the sink
+        final Semaphore window = new Semaphore(2 * queueCapacity + readers + workers);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger readersLeft = new AtomicInteger(readers);
+        final AtomicInteger workersLeft = new AtomicInteger(workers);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[readers + workers];
+        long start = System.nanoTime();
+
+        for (int r = 0; r < readers; r++)
+        {
+            threads[r] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while (true)
+                        {
+                            long waitStart = System.nanoTime();
+                            window.acquire();
+                            long readStart = System.nanoTime();
+                            readStage.blockedNanos.addAndGet(readStart - waitStart);
+                            int index = next.getAndIncrement();
+                            if (index >= emails.length || (listener != null && listener.isCancelled()))
+                            {
+                                break;
+                            }
+                            Item item = new Item(index, emails[index], read(emails[index]));
+                            long readEnd = System.nanoTime();
+                            readStage.busyNanos.addAndGet(readEnd - readStart);
+                            readStage.items.incrementAndGet();
+                            loaded.put(item);
+                            readStage.blockedNanos.addAndGet(System.nanoTime() - readEnd);
+                        }
+                    } catch (InterruptedException stopped)
+                    {
+                        //the run was stopped
+                    } catch (Throwable t)
+                    {
+                        fail(failure, t, scored);
+                    } finally
+                    {
+                        if (readersLeft.decrementAndGet() == 0)
+                        {
+                            //one end mark per worker, the queue never blocks once the readers are done
+                            for (int w = 0; w < workers; w++)
+                            {
+                                putQuietly(loaded, END);
+                            }
+                        }
+                    }
+                }
+            }, "pipeline-reader-" + r);
+        }
+
+        for (int w = 0; w < workers; w++)
+        {
+            final Worker scorer = scorers[w];
+            threads[readers + w] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while (true)
+                        {
+                            long waitStart = System.nanoTime();
+                            scoreStage.sampleDepth(loaded.size());
+                            Item item = loaded.take();
+                            long scoreStart = System.nanoTime();
+                            scoreStage.starvedNanos.addAndGet(scoreStart - waitStart);
+                            if (item == END)
+                            {
+                                break;
+                            }
+                            scorer.process(item);
+                            item.bytes = item.data.length;
+                            item.data = null;
+                            long scoreEnd = System.nanoTime();
+                            scoreStage.busyNanos.addAndGet(scoreEnd - scoreStart);
+                            scoreStage.items.incrementAndGet();
+                            scored.put(item);
+                            scoreStage.blockedNanos.addAndGet(System.nanoTime() - scoreEnd);
+                        }
+                    } catch (InterruptedException stopped)
+                    {
+                        //the run was stopped
+                    } catch (Throwable t)
+                    {
+                        fail(failure, t, scored);
+                    } finally
+                    {
+                        if (workersLeft.decrementAndGet() == 0)
+                        {
+                            putQuietly(scored, END);
+                        }
+                    }
+                }
+            }, "pipeline-worker-" + w);
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        //the sink puts the results back in listing order, those that arrive early wait in pending
+        TestFile[] results = new TestFile[emails.length];
+        Item[] pending = new Item[emails.length];
+        int delivered = 0;
+        try
+        {
+            while (true)
+            {
+                long waitStart = System.nanoTime();
+                sinkStage.sampleDepth(scored.size());
+                Item item = scored.take();
+                long sinkStart = System.nanoTime();
+                sinkStage.starvedNanos.addAndGet(sinkStart - waitStart);
+                if (item == END)
+                {
+                    break;
+                }
+                pending[item.index] = item;
+                while (delivered < pending.length && pending[delivered] != null)
+                {
+                    Item ready = pending[delivered];
+                    pending[delivered] = null;
+                    results[delivered++] = ready.result;
+                    if (sink != null && ready.result != null)
+                    {
+                        sink.result(ready.result);
+                    }
+                    if (listener != null)
+                    {
+                        listener.emailProcessed(ready.email, ready.bytes);
+                    }
+                    sinkStage.items.incrementAndGet();
+                    window.release();
+                }
+                sinkStage.busyNanos.addAndGet(System.nanoTime() - sinkStart);
+            }
+        } catch (InterruptedException stopped)
+        {
+            for (Thread thread : threads)
+            {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+
+        long wallNanos = System.nanoTime() - start;
+        for (Stage stage : stages)
+        {
+            stage.wallNanos = wallNanos;
+        }
+        synchronized (failure)
+        {
+            if (failure[0] != null)
+            {
+                for (Thread thread : threads)
+                {
+                    thread.interrupt();
+                }
+                throw new IllegalStateException("Pipeline stage failed: " + failure[0], failure[0]);
+            }
+        }
+        return delivered == results.length ? results : Arrays.copyOf(results, delivered);
+    }
+
+    /**
+     * Reads a whole email, an unreadable one is reported and scored as empty like the serial loop does
+     */
+    private static byte[] read(File email)
+    {
+        try
+        {
+            return Files.readAllBytes(email.toPath());
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Records the first failure of a stage thread and ends the sink, the
+     * emails after the failed one would never reach it
+     */
+    private static void fail(Throwable[] failure, Throwable t, BlockingQueue<Item> scored)
+    {
+        synchronized (failure)
+        {
+            if (failure[0] == null)
+            {
+                failure[0] = t;
+            }
+        }
+        putQuietly(scored, END);
+    }
+
+    private static void putQuietly(BlockingQueue<Item> queue, Item item)
+    {
+        try
+        {
+            queue.put(item);
+        } catch (InterruptedException stopped)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * What a worker thread does with a loaded email
+     */
+    private abstract static class Worker
+    {
+        abstract void process(Item item);
+    }
+
+    /**
+     * An email on its way through the stages
+     */
+    private static class Item
+    {
+        private final int index;
+        private final File email;
+        private byte[] data;
+        private long bytes;
+        private TestFile result;
+
+        Item(int index, File email, byte[] data)
+        {
+            this.index = index;
+            this.email = email;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The time the threads of one stage spent working and waiting, and the depth of the queue feeding it
+     */
+    public static class Stage
+    {
+        private final String name;
+        private final int threads;
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong blockedNanos = new AtomicLong();
+        private final AtomicLong starvedNanos = new AtomicLong();
+        private final AtomicLong depthSum = new AtomicLong();
+        private final AtomicLong depthSamples = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private volatile long wallNanos;
+
+        Stage(String name, int threads)
+        {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        void sampleDepth(int depth)
+        {
+            depthSum.addAndGet(depth);
+            depthSamples.incrementAndGet();
+            int max;
+            while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth))
+            {
+            }
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public int getThreads()
+        {
+            return this.threads;
+        }
+
+        public long getItems()
+        {
+            return items.get();
+        }
+
+        /**
+         * Gets the share of the run the threads of the stage spent working
+         *
+         * @return  Busy time over threads times the run time, between 0 and 1
+         */
+        public double getUtilization()
+        {
+            return share(busyNanos.get());
+        }
+
+        /**
+         * Gets the share of the run the threads spent blocked on the full queue
+         * after them, or for the readers also on the window of the sink
+         */
+        public double getBlocked()
+        {
+            return share(blockedNanos.get());
+        }
+
+        /**
+         * Gets the share of the run the threads spent waiting on their empty input queue
+         */
+        public double getStarved()
+        {
+            return share(starvedNanos.get());
+        }
+
+        /**
+         * Gets the mean depth of the queue feeding the stage, sampled before every take
+         *
+         * @return  The mean depth, NaN for the read stage which has no input queue
+         */
+        public double getMeanQueueDepth()
+        {
+            long samples = depthSamples.get();
+            return samples == 0 ? Double.NaN : (double)depthSum.get() / samples;
+        }
+
+        public int getMaxQueueDepth()
+        {
+            return maxDepth.get();
+        }
+
+        public long getWallNanos()
+        {
+            return this.wallNanos;
+        }
+
+        private double share(long nanos)
+        {
+            return wallNanos == 0 ? 0.0 : (double)nanos / ((double)threads * wallNanos);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%-5s %2d threads %7d emails  busy %5.1f%%  blocked %5.1f%%  starved %5.1f%%  "
+                                 + "queue mean %5.1f max %3d", name, threads, getItems(), 100 * getUtilization(),
+                                 100 * getBlocked(), 100 * getStarved(), getMeanQueueDepth(), getMaxQueueDepth());
+        }
+    }
+}
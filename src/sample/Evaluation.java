@@ -0,0 +1,163 @@
+package sample;
+import java.util.Arrays;
+
+/**
+ * Accuracy and precision of the spam detector over a set of tested emails.
+ * Kept apart from Main so the numbers can be computed without JavaFX.
+ * evaluate gives the whole ConfusionMatrix, recall, F1 and AUC included, in
+ * one pass.
+ *
+ * @version 1.1
+ */
+
+public class Evaluation
+{
+    //an email with a spam probability above this is guessed to be spam
+    public static final double SPAM_THRESHOLD = 0.5;
+
+    /**
+     * This function calculates the precision of the spam detector.
+     * Uses the formula Precision = #correct spam guesses / #of total spam guesses
+     *
+     * @param testfiles An array of every TestFile object that has been tested
+     * @return          A double value that holds the precision of the spam detector
+     */
+    public static double calcPrecision(TestFile[] testfiles)
+    {
+        int spamGuesses = 0;
+        int correctSpam = 0;
+
+        for (TestFile testfile : testfiles)
+        {
+            if (testfile.getSpamProbability() > SPAM_THRESHOLD)
+            {
+                if (testfile.getActualClass().equalsIgnoreCase("ham"))
+                {
+                    spamGuesses++;
+                }
+                else
+                {
+                    spamGuesses++;
+                    correctSpam++;
+                }
+            }
+        }
+        return (double)correctSpam/((double)spamGuesses);
+    }
+
+    /**
+     * This function calculates the accuracy of the spam detector.
+     * Uses the formula Accuracy = #correct guesses / #total guesses
+     *
+     * @param testfiles An array of every TestFile object that has been tested
+     * @return          A double value that holds the accuracy of the spam detector.
+     */
+    public static double calcAccuracy(TestFile[] testfiles)
+    {
+        int correct = 0;
+        for (TestFile testfile : testfiles)
+        {
+            if (testfile.getSpamProbability() > SPAM_THRESHOLD)
+            {
+                if (testfile.getActualClass().equalsIgnoreCase("spam"))
+                {
+                    correct++;
+                }
+            } else
+            {
+                if (testfile.getActualClass().equalsIgnoreCase("ham"))
+                {
+                    correct++;
+                }
+            }
+        }
+        return (double)correct/(double)testfiles.length;
+    }
+
+    /**
+     * Evaluates tested emails at a spam threshold. Emails of a class other
+     * than spam or ham are left out.
+     *
+     * @param testfiles An array of every TestFile object that has been tested
+     * @param threshold The spam probability above which an email is guessed to be spam
+     * @return          The confusion matrix and AUC
+     */
+    public static ConfusionMatrix evaluate(TestFile[] testfiles, double threshold)
+    {
+        double[] spam = new double[testfiles.length];
+        double[] ham = new double[testfiles.length];
+        int spamFiles = 0;
+        int hamFiles = 0;
+        for (TestFile testfile : testfiles)
+        {
+            if (testfile.getActualClass().equalsIgnoreCase("spam"))
+            {
+                spam[spamFiles++] = testfile.getSpamProbability();
+            }
+            else if (testfile.getActualClass().equalsIgnoreCase("ham"))
+            {
+                ham[hamFiles++] = testfile.getSpamProbability();
+            }
+        }
+        return evaluate(Arrays.copyOf(spam, spamFiles), Arrays.copyOf(ham, hamFiles), threshold);
+    }
+
+    /**
+     * Evaluates spam probabilities at a threshold. Both arrays are sorted,
+     * then one walk up through them counts the guesses on either side of the
+     * threshold and, for every spam email, the ham emails scoring below it,
+     * which sums to the Mann-Whitney form of the AUC.
+     *
+     * @param spamProbs The spam probabilities of the spam emails, sorted in place
+     * @param hamProbs  The spam probabilities of the ham emails, sorted in place
+     * @param threshold The spam probability above which an email is guessed to be spam
+     * @return          The confusion matrix and AUC
+     */
+    public static ConfusionMatrix evaluate(double[] spamProbs, double[] hamProbs, double threshold)
+    {
+        Arrays.sort(spamProbs);
+        Arrays.sort(hamProbs);
+        int truePositives = 0;
+        int falsePositives = 0;
+        double wins = 0.0;
+        int below = 0;      //ham emails scoring below the current spam email
+        int tiedEnd = 0;    //end of the ham emails scoring the same as it
+        for (int s = 0; s < spamProbs.length; s++)
+        {
+            double p = spamProbs[s];
+            if (s == 0 || p != spamProbs[s - 1])
+            {
+                while (below < hamProbs.length && hamProbs[below] < p)
+                {
+                    falsePositives += hamProbs[below] > threshold ? 1 : 0;
+                    below++;
+                }
+                tiedEnd = below;
+                while (tiedEnd < hamProbs.length && hamProbs[tiedEnd] == p)
+                {
+                    tiedEnd++;
+                }
+            }
+            wins += below + 0.5 * (tiedEnd - below);
+            truePositives += p > threshold ? 1 : 0;
+        }
+        for (int h = below; h < hamProbs.length; h++)
+        {
+            falsePositives += hamProbs[h] > threshold ? 1 : 0;
+        }
+        double auc = wins / ((double)spamProbs.length * hamProbs.length);
+        return new ConfusionMatrix(truePositives, falsePositives, hamProbs.length - falsePositives,
+                                   spamProbs.length - truePositives, auc);
+    }
+
+    /**
+     * Gets the class the detector guessed for a tested email
+     *
+     * @param testfile  A TestFile that has been tested
+     * @return          SPAM or HAM
+     */
+    public static String guessedClass(TestFile testfile)
+    {
+        return testfile.getSpamProbability() > SPAM_THRESHOLD ? "SPAM" : "HAM";
+    }
+}
@@ -0,0 +1,395 @@
+package sample;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Spam model over hashed word n-grams. Every word, and with a higher order
+ * every pair and triple of consecutive words, is hashed straight to a slot
+ * of fixed size arrays, the hashing trick: no word is stored, so memory is
+ * set up front by the number of slots whatever the size of the vocabulary,
+ * and scoring is one hash and one array read per n-gram.
+ *
+ * Training counts the spam and ham emails each slot appears in, once per
+ * email like TokenCounts, and the weights are built from those counts with
+ * the same spamicity rule as the word model. N-grams that share a slot
+ * share their counts, so a table that is too small for the vocabulary
+ * blurs the weights instead of growing.
+ *
+ * Ignored words (TrainFile.isIgnored) are dropped before the n-grams are
+ * formed, when training and when scoring, so a bigram can span one.
+ *
+ * A HashedNgramModel isn't thread safe while training. Once the weights
+ * are built it can be scored from any number of threads.
+ *
+ * @version 1.1
+ */
+
+public class HashedNgramModel
+{
+    public static final int MAX_ORDER = 3;
+    public static final int DEFAULT_HASH_BITS = 20;
+
+    //mixed into the hash of each order so a bigram doesn't land where one of its words does
+    private static final int[] ORDER_SEEDS = {0x9E3779B9, 0x7F4A7C15, 0x2545F491};
+    private static final int WORD_PRIME = 0x01000193;
+    //fewest emails a slot must appear in to get a weight, one email says little about a bigram
+    private static final int MIN_EMAILS = 2;
+    //spamicity is kept within this distance of 0 and 1 so one n-gram can't decide an email alone
+    private static final double SPAMICITY_BOUND = 0.01;
+
+    private final int order;
+    private final int mask;
+    private int[] spamCounts;
+    private int[] hamCounts;
+    //generation of the last email that counted each slot
+    private int[] seen;
+    private int generation;
+    private int spamEmails;
+    private int hamEmails;
+    private double[] weights;
+
+    /**
+     * HashedNgramModel constructor
+     *
+     * @param order     The longest n-gram, 1 for words only, 2 adds bigrams, 3 adds trigrams
+     * @param hashBits  The slots of the tables as a power of 2, e.g. 20 for 1048576 slots
+     */
+    public HashedNgramModel(int order, int hashBits)
+    {
+        if (order < 1 || order > MAX_ORDER)
+        {
+            throw new IllegalArgumentException("N-gram order must be 1 to " + MAX_ORDER + ": " + order);
+        }
+        if (hashBits < 4 || hashBits > 28)
+        {
+            throw new IllegalArgumentException("Hash bits must be 4 to 28: " + hashBits);
+        }
+        this.order = order;
+        this.mask = (1 << hashBits) - 1;
+        this.spamCounts = new int[1 << hashBits];
+        this.hamCounts = new int[1 << hashBits];
+        this.seen = new int[1 << hashBits];
+    }
+
+    public int getOrder()
+    {
+        return this.order;
+    }
+
+    /**
+     * Gets the number of slots of the tables
+     *
+     * @return  The slots
+     */
+    public int size()
+    {
+        return mask + 1;
+    }
+
+    public int getEmailCount(boolean spam)
+    {
+        return spam ? spamEmails : hamEmails;
+    }
+
+    /**
+     * Record the n-grams of an email and increase their occurrence by 1
+     *
+     * @param email The email that will be analyzed
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(File email, boolean spam)
+    {
+        long start = Metrics.start();
+        long bytes = 0;
+        NgramSink counter = emailCounter(spam);
+        try
+        {
+            bytes = Tokenizer.tokenize(email, counter);
+        } catch(FileNotFoundException e)
+        {
+            System.out.println("Error, file not found. Please verify paths.");
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        countEmail(spam);
+        Metrics.emailTrained(start, bytes, counter.tokens);
+    }
+
+    /**
+     * Record the n-grams of an email held in a buffer, such as an mbox message,
+     * and increase their occurrence by 1
+     *
+     * @param email The bytes of the email, its position is moved to its limit
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(ByteBuffer email, boolean spam)
+    {
+        long start = Metrics.start();
+        long bytes = email.remaining();
+        NgramSink counter = emailCounter(spam);
+        Tokenizer.tokenize(email, counter);
+        countEmail(spam);
+        Metrics.emailTrained(start, bytes, counter.tokens);
+    }
+
+    /**
+     * Runs through a train email set, reporting every scanned email. Mboxes,
+     * gzip files and Maildirs are read through MailArchive. A cancelled run
+     * keeps the n-grams of the emails scanned so far.
+     *
+     * @param directoryPath The location of emails, or of an mbox, gzip file or Maildir
+     * @param spam          True if the emails are spam, false if ham
+     * @param listener      Receives the progress and can cancel the run, may be null
+     */
+    public void trainEmailSet(String directoryPath, final boolean spam, ProgressListener listener)
+    {
+        long start = Metrics.start();
+        File path = new File(directoryPath);
+        if (MailArchive.isArchive(path))
+        {
+            try
+            {
+                MailArchive.read(path, new MailArchive.MessageSink()
+                {
+                    @Override
+                    public void message(File source, String name, ByteBuffer message)
+                    {
+                        scanEmail(message, spam);
+                    }
+                }, listener);
+            } catch(IOException ioex)
+            {
+                System.out.println(ioex.getMessage());
+            }
+        }
+        else
+        {
+            try
+            {
+                for (File email : TrainFile.listEmails(path))
+                {
+                    if (listener != null && listener.isCancelled())
+                    {
+                        break;
+                    }
+                    scanEmail(email, spam);
+                    if (listener != null)
+                    {
+                        listener.emailProcessed(email, email.length());
+                    }
+                }
+            } catch(IOException ioex)
+            {
+                System.out.println(ioex.getMessage());
+            }
+        }
+        Metrics.emailSetTrained(start);
+    }
+
+    /**
+     * Builds the log-odds weight of every slot from its counts, the same
+     * ln(1-p) - ln(p) of the spamicity the word model uses. Slots the word
+     * model would leave out, or seen in fewer than MIN_EMAILS emails, get a
+     * weight of 0. Unlike the word model the spamicity is bounded away from
+     * 0 and 1: a higher order gives many n-grams only ever seen in spam, and
+     * each of them alone would make an email spam. The counts are kept, so
+     * more emails can be trained and the weights built again.
+     *
+     * @param spamFiles The number of spam emails the frequencies are taken over
+     * @param hamFiles  The number of ham emails the frequencies are taken over
+     */
+    public void buildWeights(int spamFiles, int hamFiles)
+    {
+        long start = Metrics.start();
+        double[] built = new double[size()];
+        int used = 0;
+        for (int slot = 0; slot < built.length; slot++)
+        {
+            if (spamCounts[slot] + hamCounts[slot] < MIN_EMAILS)
+            {
+                continue;
+            }
+            double p = TokenCounts.spamicity(spamCounts[slot], hamCounts[slot], spamFiles, hamFiles);
+            if (!Double.isNaN(p))
+            {
+                p = Math.max(SPAMICITY_BOUND, Math.min(1 - SPAMICITY_BOUND, p));
+                built[slot] = Math.log(1 - p) - Math.log(p);
+                used++;
+            }
+        }
+        this.weights = built;
+        Metrics.modelBuilt(start, used);
+    }
+
+    /**
+     * Gets the sum of the weights of the n-grams of an email held in memory
+     *
+     * @param email The bytes of the email, its position is moved to its limit
+     * @return      The log-odds sum eta, the email is spam with probability 1/(1+e^eta)
+     */
+    public double eta(ByteBuffer email)
+    {
+        EtaSink eta = new EtaSink();
+        Tokenizer.tokenize(email, eta);
+        return eta.eta;
+    }
+
+    /**
+     * Gets the number of slots that hold a weight, after buildWeights
+     *
+     * @return  The slots with a weight
+     */
+    public int getUsedSlots()
+    {
+        int used = 0;
+        for (double weight : weights())
+        {
+            used += weight != 0.0 ? 1 : 0;
+        }
+        return used;
+    }
+
+    /**
+     * Gets the heap taken by the count and weight arrays, fixed by the number of slots
+     *
+     * @return  The size of the arrays in bytes, without object headers
+     */
+    public long heapBytes()
+    {
+        return (4L * 3 + 8L * (weights == null ? 0 : 1)) * size();
+    }
+
+    /**
+     * Gets the heap the weights take when only scoring
+     *
+     * @return  The size of the weight array in bytes
+     */
+    public long weightBytes()
+    {
+        return 8L * size();
+    }
+
+    private double[] weights()
+    {
+        if (weights == null)
+        {
+            throw new IllegalStateException("The weights are built with buildWeights before scoring");
+        }
+        return weights;
+    }
+
+    private void countEmail(boolean spam)
+    {
+        if (spam)
+        {
+            spamEmails++;
+        }
+        else
+        {
+            hamEmails++;
+        }
+    }
+
+    /**
+     * Starts a new email and gets the sink that adds 1 to each of its slots the first time it's seen
+     */
+    private NgramSink emailCounter(final boolean spam)
+    {
+        if (++generation == 0)
+        {
+            Arrays.fill(seen, 0);
+            generation = 1;
+        }
+        final int stamp = generation;
+        return new NgramSink()
+        {
+            @Override
+            void ngram(int slot)
+            {
+                if (seen[slot] != stamp)
+                {
+                    seen[slot] = stamp;
+                    if (spam)
+                    {
+                        spamCounts[slot]++;
+                    }
+                    else
+                    {
+                        hamCounts[slot]++;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Mixes the bits of a hash so the low bits used as the slot depend on all of them
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Adds up the weights of the n-grams of an email
+     */
+    private class EtaSink extends NgramSink
+    {
+        private final double[] table = weights();
+        private double eta = 0.0;
+
+        @Override
+        void ngram(int slot)
+        {
+            eta += table[slot];
+        }
+    }
+
+    /**
+     * Turns the words of an email into the slots of its n-grams, keeping the
+     * hashes of the last words that weren't ignored
+     */
+    private abstract class NgramSink implements Tokenizer.TokenSink
+    {
+        private int previous;
+        private int beforePrevious;
+        //words seen so far, up to 2
+        private int history;
+        //words of the email, for the metrics
+        int tokens;
+
+        abstract void ngram(int slot);
+
+        @Override
+        public void token(byte[] buf, int off, int len)
+        {
+            tokens++;
+            if (TrainFile.isIgnored(buf, off, len))
+            {
+                return;
+            }
+            int word = Tokenizer.hash(buf, off, len);
+            ngram(mix(word ^ ORDER_SEEDS[0]) & mask);
+            if (order >= 2 && history >= 1)
+            {
+                ngram(mix((previous * WORD_PRIME + word) ^ ORDER_SEEDS[1]) & mask);
+            }
+            if (order >= 3 && history >= 2)
+            {
+                ngram(mix(((beforePrevious * WORD_PRIME + previous) * WORD_PRIME + word) ^ ORDER_SEEDS[2]) & mask);
+            }
+            beforePrevious = previous;
+            previous = word;
+            history = Math.min(history + 1, 2);
+        }
+    }
+}
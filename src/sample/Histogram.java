@@ -0,0 +1,167 @@
+package sample;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non-negative longs, such as latencies in nanoseconds
+ * or tokens per email, in the log-linear buckets of an HdrHistogram: values
+ * below 32 get a bucket each, larger ones share a bucket with the values that
+ * have the same top 5 bits, so a percentile is off by at most 1/16 of its
+ * value. Recording is one array increment and two striped adds, with no
+ * allocation, and the maximum is only written when a value beats it, so it
+ * can stay on in the hot path.
+ *
+ * @version 1.1
+ */
+
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int HALF_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 2) * HALF_BUCKETS;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Histogram constructor
+     *
+     * @param name  What is recorded, used in reports
+     * @param unit  The unit of the values, e.g. ns
+     */
+    public Histogram(String name, String unit)
+    {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /**
+     * Records a value, negative values count as 0
+     *
+     * @param value The value
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        //most values are below the maximum and never touch it
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value))
+        {
+            seen = max.get();
+        }
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public String getUnit()
+    {
+        return this.unit;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values
+     *
+     * @return  The mean, 0 if nothing was recorded
+     */
+    public double getMean()
+    {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double)sum.sum() / n;
+    }
+
+    /**
+     * Gets the value at a percentile, the highest value of the bucket it falls in
+     *
+     * @param percentile    The percentile, e.g. 99.9
+     * @return              The value, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long n = count.sum();
+        if (n == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+            {
+                return Math.min(highestValueOf(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears every recorded value. Values recorded while it runs may be partly kept.
+     */
+    public void reset()
+    {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            counts.set(bucket, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Gets the bucket of a value: the value itself below 32, otherwise its top 5 bits after the exponent
+     */
+    static int bucketOf(long value)
+    {
+        if (value < (1 << SUB_BUCKET_BITS))
+        {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_BUCKETS + (int)(value >>> shift);
+    }
+
+    /**
+     * Gets the highest value that falls in a bucket
+     */
+    static long highestValueOf(int bucket)
+    {
+        if (bucket < (1 << SUB_BUCKET_BITS))
+        {
+            return bucket;
+        }
+        int shift = bucket / HALF_BUCKETS - 1;
+        long mantissa = bucket - shift * HALF_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: count %d, mean %.1f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d %s", name, getCount(),
+                             getMean(), getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99),
+                             getValueAtPercentile(99.9), getMax(), unit);
+    }
+}
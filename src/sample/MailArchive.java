@@ -0,0 +1,465 @@
+package sample;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the emails of a mail store and hands each one over as a byte slice,
+ * so training and testing don't need one file per email. Four layouts are
+ * read:
+ *
+ *   mbox       a file starting with a "From " line and holding more than one
+ *              message. The file is memory mapped and the messages are sliced
+ *              out of the mapping where a line starts with "From ", without
+ *              copying them. Files larger than the 1 GB mapping window are
+ *              mapped one window at a time.
+ *   gzip       a file ending in .gz, decompressed as a stream and split like
+ *              an mbox, or read as one email if it isn't one
+ *   Maildir    a directory with cur or new folders, whose entries are
+ *              streamed from the directory without listing it all first
+ *   directory  any other directory, the one file per email layout of
+ *              Email_Files, read in sorted order like TrainFile does
+ *
+ * Any other file is read as a single email. Every mbox message is handed
+ * over with its "From " line, the way the emails of Email_Files start with
+ * one, so a one message mbox reads the same as the email file. ">From "
+ * lines of mboxrd files are left escaped. Maildir and directory emails are
+ * read into one buffer that is reused for the whole run.
+ *
+ * @version 1.1
+ */
+
+public class MailArchive
+{
+    //largest piece of an mbox mapped at once, a message must fit in one
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    /**
+     * Receives the emails of an archive
+     */
+    public interface MessageSink
+    {
+        /**
+         * Takes one email. The buffer is only valid during the call.
+         *
+         * @param source        The file the email was read from, the mbox for mbox messages
+         * @param name          The file name of the email, or the mbox name and the message number
+         * @param message       The bytes of the email from its position to its limit
+         * @throws IOException  If the email can't be handled
+         */
+        void message(File source, String name, ByteBuffer message) throws IOException;
+    }
+
+    private MailArchive()
+    {
+    }
+
+    /**
+     * Determines whether a path is read as an archive rather than a directory
+     * of one file per email
+     *
+     * @param path  The file or directory
+     * @return      True for Maildirs, gzip files and mbox files
+     */
+    public static boolean isArchive(File path)
+    {
+        if (path.isDirectory())
+        {
+            return isMaildir(path);
+        }
+        return path.isFile() && (path.getName().endsWith(".gz") || isMbox(path));
+    }
+
+    /**
+     * Reads every email of a mail store
+     *
+     * @param path          An mbox, gzip file, Maildir, directory of emails or a single email
+     * @param sink          Receives every email
+     * @param listener      Receives the progress and can stop the run, may be null
+     * @return              The number of emails read
+     * @throws IOException  If the store can't be read
+     */
+    public static int read(File path, MessageSink sink, ProgressListener listener) throws IOException
+    {
+        if (path.isDirectory())
+        {
+            return isMaildir(path) ? readMaildir(path, sink, listener) : readDirectory(path, sink, listener);
+        }
+        if (path.getName().endsWith(".gz"))
+        {
+            InputStream in = new GZIPInputStream(new FileInputStream(path), READ_BUFFER_SIZE);
+            try
+            {
+                return readStream(path, in, sink, listener);
+            } finally
+            {
+                in.close();
+            }
+        }
+        if (isMbox(path))
+        {
+            return readMbox(path, sink, listener);
+        }
+        byte[][] buffer = {new byte[READ_BUFFER_SIZE]};
+        return readEmail(path, path.getName(), buffer, sink, listener) ? 1 : 0;
+    }
+
+    /**
+     * Counts the emails of a mail store
+     *
+     * @param path          An mbox, gzip file, Maildir, directory of emails or a single email
+     * @return              The number of emails
+     * @throws IOException  If the store can't be read
+     */
+    public static int count(File path) throws IOException
+    {
+        if (path.isDirectory() && isMaildir(path))
+        {
+            int emails = 0;
+            for (String folder : new String[]{"new", "cur"})
+            {
+                File directory = new File(path, folder);
+                if (directory.isDirectory())
+                {
+                    DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath());
+                    try
+                    {
+                        for (Path entry : entries)
+                        {
+                            emails += entry.getFileName().toString().startsWith(".") ? 0 : 1;
+                        }
+                    } finally
+                    {
+                        entries.close();
+                    }
+                }
+            }
+            return emails;
+        }
+        if (path.isDirectory())
+        {
+            File[] listing = path.listFiles();
+            return listing == null ? 0 : listing.length;
+        }
+        //the messages of an mbox are only known by finding their boundaries
+        final int[] emails = {0};
+        read(path, new MessageSink()
+        {
+            @Override
+            public void message(File source, String name, ByteBuffer message)
+            {
+                emails[0]++;
+            }
+        }, null);
+        return emails[0];
+    }
+
+    private static boolean isMaildir(File directory)
+    {
+        return new File(directory, "cur").isDirectory() || new File(directory, "new").isDirectory();
+    }
+
+    /**
+     * Determines whether a file starts with a "From " line and has a second one
+     */
+    private static boolean isMbox(File file)
+    {
+        try
+        {
+            FileInputStream in = new FileInputStream(file);
+            try
+            {
+                FileChannel channel = in.getChannel();
+                int size = (int)Math.min(MAP_WINDOW, channel.size());
+                if (size < FROM.length)
+                {
+                    return false;
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                for (int i = 0; i < FROM.length; i++)
+                {
+                    if (map.get(i) != FROM[i])
+                    {
+                        return false;
+                    }
+                }
+                return nextMessage(map, 0, size) >= 0;
+            } finally
+            {
+                in.close();
+            }
+        } catch (IOException ioex)
+        {
+            return false;
+        }
+    }
+
+    private static int readDirectory(File directory, MessageSink sink, ProgressListener listener) throws IOException
+    {
+        File[] emailDirListing = TrainFile.listEmails(directory);
+        byte[][] buffer = {new byte[READ_BUFFER_SIZE]};
+        int emails = 0;
+        for (File email : emailDirListing)
+        {
+            if (!readEmail(email, email.getName(), buffer, sink, listener))
+            {
+                break;
+            }
+            emails++;
+        }
+        return emails;
+    }
+
+    private static int readMaildir(File maildir, MessageSink sink, ProgressListener listener) throws IOException
+    {
+        byte[][] buffer = {new byte[READ_BUFFER_SIZE]};
+        int emails = 0;
+        for (String folder : new String[]{"new", "cur"})
+        {
+            File directory = new File(maildir, folder);
+            if (!directory.isDirectory())
+            {
+                continue;
+            }
+            DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath());
+            try
+            {
+                for (Path entry : entries)
+                {
+                    String name = entry.getFileName().toString();
+                    if (name.startsWith("."))
+                    {
+                        continue;
+                    }
+                    if (!readEmail(entry.toFile(), name, buffer, sink, listener))
+                    {
+                        return emails;
+                    }
+                    emails++;
+                }
+            } finally
+            {
+                entries.close();
+            }
+        }
+        return emails;
+    }
+
+    /**
+     * Reads one email file into the shared buffer, growing it when needed.
+     * An email that can't be read is reported and skipped, like TokenCounts.scanEmail does.
+     *
+     * @return  False if the run was cancelled before the email
+     */
+    private static boolean readEmail(File email, String name, byte[][] buffer, MessageSink sink,
+                                     ProgressListener listener) throws IOException
+    {
+        if (listener != null && listener.isCancelled())
+        {
+            return false;
+        }
+        int length = 0;
+        try
+        {
+            FileInputStream in = new FileInputStream(email);
+            try
+            {
+                while (true)
+                {
+                    if (length == buffer[0].length)
+                    {
+                        buffer[0] = Arrays.copyOf(buffer[0], Math.max(READ_BUFFER_SIZE, buffer[0].length * 2));
+                    }
+                    int read = in.read(buffer[0], length, buffer[0].length - length);
+                    if (read == -1)
+                    {
+                        break;
+                    }
+                    length += read;
+                }
+            } finally
+            {
+                in.close();
+            }
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+            return true;
+        }
+        sink.message(email, name, ByteBuffer.wrap(buffer[0], 0, length));
+        if (listener != null)
+        {
+            listener.emailProcessed(email, length);
+        }
+        return true;
+    }
+
+    private static int readMbox(File mbox, MessageSink sink, ProgressListener listener) throws IOException
+    {
+        FileInputStream in = new FileInputStream(mbox);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long windowStart = 0;
+            int emails = 0;
+            while (windowStart < size)
+            {
+                int windowSize = (int)Math.min(MAP_WINDOW, size - windowStart);
+                boolean lastWindow = windowStart + windowSize == size;
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+                //every window starts on a "From " line
+                int start = 0;
+                int next;
+                while ((next = nextMessage(map, start, windowSize)) >= 0)
+                {
+                    if (!deliver(mbox, ++emails, map, start, next, true, sink, listener))
+                    {
+                        return emails - 1;
+                    }
+                    start = next;
+                }
+                if (lastWindow)
+                {
+                    if (!deliver(mbox, ++emails, map, start, windowSize, true, sink, listener))
+                    {
+                        emails--;
+                    }
+                    return emails;
+                }
+                if (start == 0)
+                {
+                    throw new IOException("Error, a message of " + mbox + " is larger than " + MAP_WINDOW + " bytes");
+                }
+                //the message cut by the window end is read again from the next window
+                windowStart += start;
+            }
+            return emails;
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the start of the next "From " line after a message start
+     *
+     * @return  Its offset, or -1 if there is none before the end
+     */
+    private static int nextMessage(ByteBuffer data, int start, int end)
+    {
+        for (int i = start; i + FROM.length < end; i++)
+        {
+            if (data.get(i) == '\n' && data.get(i + 1) == 'F' && data.get(i + 2) == 'r' && data.get(i + 3) == 'o'
+                && data.get(i + 4) == 'm' && data.get(i + 5) == ' ')
+            {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hands over one email, naming mbox messages by their number
+     *
+     * @return  False if the run was cancelled before the email
+     */
+    private static boolean deliver(File source, int number, ByteBuffer data, int start, int end, boolean mbox,
+                                   MessageSink sink, ProgressListener listener) throws IOException
+    {
+        if (listener != null && listener.isCancelled())
+        {
+            return false;
+        }
+        ByteBuffer message = data.duplicate();
+        message.limit(end);
+        message.position(start);
+        sink.message(source, mbox ? source.getName() + "#" + number : source.getName(), message.slice());
+        if (listener != null)
+        {
+            listener.emailProcessed(source, end - start);
+        }
+        return true;
+    }
+
+    /**
+     * Splits a stream into mbox messages, or reads it as one email if it
+     * doesn't start with a "From " line
+     */
+    private static int readStream(File source, InputStream in, MessageSink sink, ProgressListener listener)
+            throws IOException
+    {
+        byte[] data = new byte[READ_BUFFER_SIZE];
+        int length = 0;
+        //offset the search for the next "From " line resumes at
+        int scanned = 0;
+        int emails = 0;
+        Boolean mbox = null;
+        while (true)
+        {
+            if (length == data.length)
+            {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int read = in.read(data, length, data.length - length);
+            if (read == -1)
+            {
+                break;
+            }
+            length += read;
+            if (mbox == null && length >= FROM.length)
+            {
+                mbox = startsWithFrom(data);
+            }
+            if (mbox == null || !mbox)
+            {
+                continue;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            int start = 0;
+            int next;
+            while ((next = nextMessage(buffer, Math.max(start, scanned), length)) >= 0)
+            {
+                if (!deliver(source, ++emails, buffer, start, next, true, sink, listener))
+                {
+                    return emails - 1;
+                }
+                start = next;
+            }
+            //keep the unfinished message at the front, the search resumes just before the end
+            System.arraycopy(data, start, data, 0, length - start);
+            length -= start;
+            scanned = Math.max(0, length - FROM.length - 1);
+        }
+        if (length > 0 || emails == 0)
+        {
+            boolean split = mbox != null && mbox;
+            if (!deliver(source, ++emails, ByteBuffer.wrap(data, 0, length), 0, length, split, sink, listener))
+            {
+                emails--;
+            }
+        }
+        return emails;
+    }
+
+    private static boolean startsWithFrom(byte[] data)
+    {
+        for (int i = 0; i < FROM.length; i++)
+        {
+            if (data[i] != FROM[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+package sample;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Soak test of MaildirWatcher. The testing emails of the corpus are held in
+ * memory and delivered into a Maildir again and again, each one written to
+ * tmp and renamed into new the way a delivery agent does, at a set rate and
+ * in bursts. After each pass the watcher has to catch up, then the pass is
+ * checked (every email classified, moved to the right folder for its
+ * verdict) and reported: throughput, delivery to verdict latency, heap after
+ * a full GC, threads and open files, which should all stay flat from one
+ * pass to the next. The folders are emptied between passes.
+ *
+ * Usage: MaildirSoak [--emails DIR] [--maildir DIR] [--passes N] [--rate N] [--burst N]
+ *                    [--batch-window MS]
+ *   --rate N   emails delivered per second, 0 for as fast as possible
+ *   --burst N  emails delivered back to back before pacing, default 1
+ *
+ * @version 1.1
+ */
+
+public class MaildirSoak
+{
+    //longest wait for the watcher to catch up after a pass
+    private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+
+    public static void main(String[] args) throws Exception
+    {
+        String emailDir = "Email_Files";
+        String maildirPath = null;
+        int passes = 5;
+        int rate = 1000;
+        int burst = 1;
+        long batchWindow = MaildirWatcher.DEFAULT_BATCH_WINDOW_MILLIS;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--maildir":
+                    maildirPath = args[i + 1];
+                    break;
+                case "--passes":
+                    passes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--burst":
+                    burst = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--batch-window":
+                    batchWindow = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        TokenWeights weights = TokenWeights.fromProbabilities(
+                TrainFile.trainModel(emailDir + "/training/spam", emailDir + "/training/ham",
+                                     Runtime.getRuntime().availableProcessors()));
+        ArrayList<Email> emails = new ArrayList<>();
+        load(new File(emailDir, "testing/spam"), true, emails);
+        load(new File(emailDir, "testing/ham"), false, emails);
+
+        boolean temporary = maildirPath == null;
+        File maildir = temporary ? Files.createTempDirectory("maildir-soak").toFile() : new File(maildirPath);
+        final MaildirWatcher watcher = new MaildirWatcher(weights, false, batchWindow, maildir);
+        Thread watching = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watcher.run();
+            }
+        }, "maildir-watcher");
+        watching.start();
+
+        System.out.printf("%d emails per pass into %s, %s, bursts of %d, batch window %d ms%n%n", emails.size(),
+                          maildir, rate > 0 ? rate + " emails/s" : "unpaced", burst, batchWindow);
+        System.out.printf("%4s %10s %9s %9s %9s %9s %9s %10s %7s %6s%n", "pass", "emails/s", "p50 ms", "p99 ms",
+                          "max ms", "accuracy", "batches", "heap KB", "threads", "files");
+
+        Random random = new Random(1);
+        long delivered = 0;
+        boolean passed = true;
+        for (int pass = 1; pass <= passes; pass++)
+        {
+            Collections.shuffle(emails, random);
+            watcher.getLatency().reset();
+            long batchesBefore = watcher.getBatches();
+            long start = System.nanoTime();
+            for (int i = 0; i < emails.size(); i++)
+            {
+                if (rate > 0 && i % burst == 0)
+                {
+                    long due = start + (long)(i * 1e9 / rate);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                    {
+                        Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    }
+                }
+                deliver(maildir, emails.get(i), pass, i);
+            }
+            delivered += emails.size();
+
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+            while (watcher.getMessages() + watcher.getFailed() < delivered && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(5);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int correct = countCorrect(new File(maildir, MaildirWatcher.SPAM_FOLDER + "/cur"), true)
+                          + countCorrect(new File(maildir, "cur"), false);
+            long classified = watcher.getMessages();
+            if (classified != delivered || watcher.getFailed() > 0)
+            {
+                passed = false;
+                System.out.printf("pass %d: %d of %d emails classified, %d failed%n", pass, classified, delivered,
+                                  watcher.getFailed());
+            }
+
+            empty(new File(maildir, MaildirWatcher.SPAM_FOLDER + "/cur"));
+            empty(new File(maildir, "cur"));
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            Histogram latency = watcher.getLatency();
+            System.out.printf("%4d %10.0f %9.1f %9.1f %9.1f %9.6f %9d %10d %7d %6d%n", pass, emails.size() / seconds,
+                              latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+                              latency.getMax() / 1e3, (double)correct / emails.size(),
+                              watcher.getBatches() - batchesBefore,
+                              (runtime.totalMemory() - runtime.freeMemory()) / 1024, Thread.activeCount(),
+                              openFiles());
+        }
+
+        watcher.close();
+        watching.join();
+        System.out.printf("%n%s%n", watcher);
+        if (temporary)
+        {
+            for (File folder : new File[]{new File(maildir, MaildirWatcher.SPAM_FOLDER), maildir})
+            {
+                for (String name : new String[]{"tmp", "new", "cur"})
+                {
+                    empty(new File(folder, name));
+                    new File(folder, name).delete();
+                }
+                folder.delete();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Writes an email to tmp and renames it into new, the way a delivery agent does
+     */
+    private static void deliver(File maildir, Email email, int pass, int index) throws IOException
+    {
+        String name = pass + "." + index + "." + (email.spam ? "spam" : "ham") + ".soak";
+        File temporary = new File(maildir, "tmp/" + name);
+        Files.write(temporary.toPath(), email.bytes);
+        Files.move(temporary.toPath(), new File(maildir, "new/" + name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Counts the emails of a folder that belong in it
+     *
+     * @param folder    The cur folder of spam or ham
+     * @param spam      True if the folder holds the emails found to be spam
+     * @return          The emails whose actual class is the folder's
+     */
+    private static int countCorrect(File folder, boolean spam)
+    {
+        String[] names = folder.list();
+        int correct = 0;
+        for (String name : names == null ? new String[0] : names)
+        {
+            if (name.contains(spam ? ".spam." : ".ham."))
+            {
+                correct++;
+            }
+        }
+        return correct;
+    }
+
+    private static void empty(File folder)
+    {
+        File[] files = folder.listFiles();
+        for (File file : files == null ? new File[0] : files)
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Gets the number of file descriptors the JVM has open, -1 where the platform doesn't say
+     */
+    private static long openFiles()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+        {
+            return ((com.sun.management.UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    private static void load(File directory, boolean spam, ArrayList<Email> emails) throws IOException
+    {
+        for (File email : TrainFile.listEmails(directory))
+        {
+            emails.add(new Email(Files.readAllBytes(email.toPath()), spam));
+        }
+    }
+
+    /**
+     * A testing email held in memory and its actual class
+     */
+    private static class Email
+    {
+        private final byte[] bytes;
+        private final boolean spam;
+
+        Email(byte[] bytes, boolean spam)
+        {
+            this.bytes = bytes;
+            this.spam = spam;
+        }
+    }
+}
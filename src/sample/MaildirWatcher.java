@@ -0,0 +1,505 @@
+package sample;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies mail as it is delivered into Maildirs. The new folder of every
+ * Maildir is watched with a WatchService, and each message that shows up
+ * there is scored with the loaded model and taken out of new:
+ *
+ *   move   spam goes to the .Spam subfolder of the Maildir (Maildir++), ham
+ *          goes to cur, both unchanged
+ *   tag    both go to cur with X-Spam-Flag and X-Spam-Probability headers
+ *          added, written through tmp so no client sees half a message
+ *
+ * The events only say which folders changed. The first event starts a batch
+ * that collects further events for the batch window, then every changed
+ * folder is listed once and all its messages are scored in one pass with
+ * one read buffer, so a burst of deliveries costs one listing instead of
+ * one per message. An overflowed event queue is handled the same way, the
+ * listing finds whatever the dropped events were about. Messages already in
+ * new when the watcher starts are classified first.
+ *
+ * A message that can't be classified, because it can't be read or its
+ * tagged copy can't be written, is moved to cur as it is. It is counted as
+ * failed once and not tried again with every batch.
+ *
+ * Nothing is kept per message, only counters and a fixed size latency
+ * histogram, so memory stays flat however long it runs. The latency is from
+ * the time the message was delivered, its modification time, to the time it
+ * left new.
+ *
+ * Usage: MaildirWatcher (--model FILE | --train DIR) [--action move|tag] [--batch-window MS]
+ *                       [--metrics FILE] [--metrics-interval S] MAILDIR...
+ *
+ * @version 1.2
+ */
+
+public class MaildirWatcher
+{
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 20;
+    public static final String SPAM_FOLDER = ".Spam";
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final TokenWeights weights;
+    private final boolean tag;
+    private final long batchWindowMillis;
+    private final WatchService watcher;
+    //the Maildir of each watched new folder
+    private final HashMap<WatchKey, File> maildirs = new HashMap<>();
+    private byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong spam = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile long largestBatch;
+    private final Histogram latency = new Histogram("delivery to verdict", "us");
+
+    /**
+     * MaildirWatcher constructor, creates the folders a Maildir is missing and watches their new folders
+     *
+     * @param weights           The log-odds weights of probable spam words
+     * @param tag               True to tag messages with headers, false to move spam to the .Spam folder
+     * @param batchWindowMillis How long a batch collects events before its folders are read
+     * @param maildirs          The Maildirs to watch
+     * @throws IOException      If a folder can't be created or watched
+     */
+    public MaildirWatcher(TokenWeights weights, boolean tag, long batchWindowMillis, File... maildirs)
+            throws IOException
+    {
+        this.weights = weights;
+        this.tag = tag;
+        this.batchWindowMillis = batchWindowMillis;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        for (File maildir : maildirs)
+        {
+            createFolders(maildir);
+            if (!tag)
+            {
+                createFolders(new File(maildir, SPAM_FOLDER));
+            }
+            WatchKey key = new File(maildir, "new").toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+            this.maildirs.put(key, maildir);
+        }
+    }
+
+    /**
+     * Classifies the messages waiting in new, then the ones delivered until the watcher is closed
+     */
+    public void run()
+    {
+        LinkedHashSet<File> changed = new LinkedHashSet<>(maildirs.values());
+        processBatch(changed);
+        try
+        {
+            while (true)
+            {
+                WatchKey key = watcher.take();
+                long windowEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+                while (key != null)
+                {
+                    collect(key, changed);
+                    long wait = windowEnd - System.nanoTime();
+                    key = wait > 0 ? watcher.poll(wait, TimeUnit.NANOSECONDS) : watcher.poll();
+                }
+                processBatch(changed);
+            }
+        } catch (ClosedWatchServiceException closed)
+        {
+            //the watcher was closed
+        } catch (InterruptedException interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops watching, a batch in progress is finished
+     */
+    public void close()
+    {
+        try
+        {
+            watcher.close();
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+    }
+
+    public long getMessages()
+    {
+        return messages.get();
+    }
+
+    public long getSpam()
+    {
+        return spam.get();
+    }
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    public long getBatches()
+    {
+        return batches.get();
+    }
+
+    public long getLargestBatch()
+    {
+        return this.largestBatch;
+    }
+
+    public long getOverflows()
+    {
+        return overflows.get();
+    }
+
+    /**
+     * Gets the time from delivery to verdict of the classified messages
+     *
+     * @return  The histogram, in microseconds
+     */
+    public Histogram getLatency()
+    {
+        return this.latency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d messages (%d spam, %d failed) in %d batches, largest %d, %d overflows, "
+                             + "latency p50 %.1f ms p99 %.1f ms max %.1f ms", getMessages(), getSpam(), getFailed(),
+                             getBatches(), getLargestBatch(), getOverflows(),
+                             latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+                             latency.getMax() / 1e3);
+    }
+
+    /**
+     * Notes the Maildir of a signalled key and resets the key for further events
+     */
+    private void collect(WatchKey key, LinkedHashSet<File> changed)
+    {
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                overflows.incrementAndGet();
+            }
+        }
+        File maildir = maildirs.get(key);
+        if (maildir != null)
+        {
+            changed.add(maildir);
+        }
+        key.reset();
+    }
+
+    /**
+     * Classifies every message in the new folders of the changed Maildirs and empties the set
+     */
+    private void processBatch(LinkedHashSet<File> changed)
+    {
+        long processed = 0;
+        for (File maildir : changed)
+        {
+            try
+            {
+                processed += processNew(maildir);
+            } catch (IOException ioex)
+            {
+                System.out.println(ioex.getMessage());
+            }
+        }
+        changed.clear();
+        if (processed > 0)
+        {
+            batches.incrementAndGet();
+            largestBatch = Math.max(largestBatch, processed);
+        }
+    }
+
+    private int processNew(File maildir) throws IOException
+    {
+        int processed = 0;
+        DirectoryStream<Path> entries = Files.newDirectoryStream(new File(maildir, "new").toPath());
+        try
+        {
+            for (Path entry : entries)
+            {
+                String name = entry.getFileName().toString();
+                if (name.startsWith("."))
+                {
+                    continue;
+                }
+                try
+                {
+                    if (classify(maildir, entry, name))
+                    {
+                        processed++;
+                    }
+                } catch (IOException ioex)
+                {
+                    failed.incrementAndGet();
+                    System.out.println(ioex.getMessage());
+                    setAside(maildir, entry, name);
+                }
+            }
+        } finally
+        {
+            entries.close();
+        }
+        return processed;
+    }
+
+    /**
+     * Scores one message and moves or tags it
+     *
+     * @return              False if the message was taken by someone else first
+     * @throws IOException  If the message can't be read or moved
+     */
+    private boolean classify(File maildir, Path message, String name) throws IOException
+    {
+        long delivered;
+        int length;
+        try
+        {
+            delivered = Files.getLastModifiedTime(message).to(TimeUnit.MICROSECONDS);
+            length = read(message.toFile());
+        } catch (FileNotFoundException | NoSuchFileException gone)
+        {
+            return false;
+        }
+
+        TestFile testFile = new TestFile(name, 0.0, "UNKNOWN");
+        testFile.getSpamEmailProbability(weights, buffer, 0, length);
+        boolean isSpam = testFile.getSpamProbability() > Evaluation.SPAM_THRESHOLD;
+        String curName = curName(name);
+        if (tag)
+        {
+            Path temporary = new File(maildir, "tmp/" + name).toPath();
+            try
+            {
+                OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary));
+                try
+                {
+                    writeTagged(out, length, isSpam, testFile.getSpamProbFormatted());
+                } finally
+                {
+                    out.close();
+                }
+                Files.move(temporary, new File(maildir, "cur/" + curName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ioex)
+            {
+                Files.deleteIfExists(temporary);
+                throw ioex;
+            }
+            Files.delete(message);
+        }
+        else
+        {
+            File folder = isSpam ? new File(maildir, SPAM_FOLDER) : maildir;
+            Files.move(message, new File(folder, "cur/" + curName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        messages.incrementAndGet();
+        if (isSpam)
+        {
+            spam.incrementAndGet();
+        }
+        latency.record(Math.max(0, nowMicros() - delivered));
+        return true;
+    }
+
+    /**
+     * Moves a message that couldn't be classified to cur untagged, so it leaves new
+     */
+    private static void setAside(File maildir, Path message, String name)
+    {
+        try
+        {
+            Files.move(message, new File(maildir, "cur/" + curName(name)).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException gone)
+        {
+            //taken by someone else
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Gets the name of a message in cur, the :2, info suffix marks a message that has left new
+     */
+    private static String curName(String name)
+    {
+        return name.contains(":2,") ? name : name + ":2,";
+    }
+
+    /**
+     * Reads a message into the reused buffer, growing it if the message doesn't fit
+     *
+     * @return  The length of the message
+     */
+    private int read(File message) throws IOException
+    {
+        FileInputStream in = new FileInputStream(message);
+        try
+        {
+            int length = 0;
+            int read;
+            do
+            {
+                if (length == buffer.length)
+                {
+                    byte[] grown = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, length);
+                    buffer = grown;
+                }
+                read = in.read(buffer, length, buffer.length - length);
+                length += Math.max(read, 0);
+            } while (read != -1);
+            return length;
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the message in the buffer with the verdict headers added at the
+     * top, after the "From " line if it starts with one
+     */
+    private void writeTagged(OutputStream out, int length, boolean isSpam, String probability) throws IOException
+    {
+        int headerStart = 0;
+        if (length >= 5 && buffer[0] == 'F' && buffer[1] == 'r' && buffer[2] == 'o' && buffer[3] == 'm'
+            && buffer[4] == ' ')
+        {
+            while (headerStart < length && buffer[headerStart++] != '\n')
+            {
+            }
+        }
+        String newline = headerStart >= 2 && buffer[headerStart - 2] == '\r' ? "\r\n" : "\n";
+        String headers = "X-Spam-Flag: " + (isSpam ? "YES" : "NO") + newline
+                         + "X-Spam-Probability: " + probability + newline;
+        out.write(buffer, 0, headerStart);
+        out.write(headers.getBytes(StandardCharsets.US_ASCII));
+        out.write(buffer, headerStart, length - headerStart);
+    }
+
+    private static void createFolders(File maildir) throws IOException
+    {
+        for (String folder : new String[]{"tmp", "new", "cur"})
+        {
+            File directory = new File(maildir, folder);
+            if (!directory.isDirectory() && !directory.mkdirs())
+            {
+                throw new IOException("Error, could not create " + directory + ". Please verify paths.");
+            }
+        }
+    }
+
+    /**
+     * Gets the wall clock time in microseconds, as fine as the JVM's clock goes
+     */
+    static long nowMicros()
+    {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+    }
+
+    public static void main(String[] args)
+    {
+        String trainingDir = null;
+        String modelPath = null;
+        boolean tag = false;
+        long batchWindow = DEFAULT_BATCH_WINDOW_MILLIS;
+        String metricsPath = null;
+        long metricsInterval = 60;
+        int i;
+        for (i = 0; i + 1 < args.length && args[i].startsWith("--"); i += 2)
+        {
+            switch (args[i])
+            {
+                case "--model":
+                    modelPath = args[i + 1];
+                    break;
+                case "--train":
+                    trainingDir = args[i + 1];
+                    break;
+                case "--action":
+                    if (!args[i + 1].equals("move") && !args[i + 1].equals("tag"))
+                    {
+                        System.err.println("Unknown action " + args[i + 1]);
+                        System.exit(2);
+                    }
+                    tag = args[i + 1].equals("tag");
+                    break;
+                case "--batch-window":
+                    batchWindow = Long.parseLong(args[i + 1]);
+                    break;
+                case "--metrics":
+                    metricsPath = args[i + 1];
+                    break;
+                case "--metrics-interval":
+                    metricsInterval = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if ((trainingDir == null) == (modelPath == null) || i >= args.length)
+        {
+            System.err.println("Usage: MaildirWatcher (--model FILE | --train DIR) [--action move|tag] "
+                               + "[--batch-window MS] [--metrics FILE] [--metrics-interval S] MAILDIR...");
+            System.exit(2);
+        }
+        File[] maildirs = new File[args.length - i];
+        for (int m = 0; m < maildirs.length; m++)
+        {
+            maildirs[m] = new File(args[i + m]);
+        }
+
+        Metrics.registerMBean();
+        if (metricsPath != null)
+        {
+            Metrics.startReporter(new File(metricsPath), metricsInterval);
+        }
+        try
+        {
+            TokenWeights weights = modelPath != null
+                    ? ModelFile.loadWeights(new File(modelPath))
+                    : TokenWeights.fromProbabilities(TrainFile.trainModel(trainingDir + "/spam", trainingDir + "/ham",
+                                                                          Runtime.getRuntime().availableProcessors()));
+            MaildirWatcher watcher = new MaildirWatcher(weights, tag, batchWindow, maildirs);
+            System.err.println("Watching " + maildirs.length + " Maildirs with " + weights.size() + " words");
+            watcher.run();
+        } catch (IOException ioex)
+        {
+            System.err.println(ioex.getMessage());
+            System.exit(1);
+        }
+    }
+}
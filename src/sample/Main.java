@@ -3,13 +3,19 @@ package sample;
 import java.text.DecimalFormat;
 import java.util.*;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import javafx.application.Application;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
-import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.control.cell.TextFieldTableCell;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
@@ -20,24 +26,38 @@ import javafx.event.*;
 import javafx.util.StringConverter;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * @author  Joshua  Lemmon  joshua.lemmon@uoit.net
  * @author  Tony    Wu      tony.wu@uoit.net
- * @version 1.7
+ * @version 1.23
  * @since   2016-03-02
  */
 
 public class Main extends Application
 {
+    private static final String MODEL_FILE_NAME = "spam.model";
+    private static final String CACHE_FILE_NAME = "tokens.cache";
+    //emails tested between two batches of rows added to the results table
+    private static final int RESULT_BATCH_SIZE = 64;
+    private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "spam-filter-worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private Task<?> currentTask;
+
     private TableView<TestFile> tableArea;
     private BorderPane displayResults;
-    private HashMap<String, Integer> trainHamFreq;
-    private HashMap<String, Integer> trainSpamFreq;
-    private HashMap<String, Double> probabilitySpam;
-    private HashMap<String, Double> probabilityHam;
-    private HashMap<String, Double> wordSpamProbability;
+    private TokenWeights weights;
     private File mainDirectory;
+    private CorpusCache corpusCache;
 
     @Override
     public void start(final Stage primaryStage) throws Exception
@@ -82,219 +102,471 @@ public class Main extends Application
         editArea.add(dirButton, 7, 8);
 
 
+        final ProgressBar progressBar = new ProgressBar(0);
+        progressBar.setMinWidth(300);
+        editArea.add(progressBar, 7, 16);
+
+        final Label progressLabel = new Label("");
+        editArea.add(progressLabel, 7, 17);
+
+        final Button startTrain = new Button("Train");
+        final Button startTest = new Button("Test");
+        final Button loadModel = new Button("Load Model");
+        final Button cancel = new Button("Cancel");
+        cancel.setDisable(true);
+
+
         /**
-         * This button handles the training of the spam detector.
+         * This button handles the training of the spam detector. Training runs on a worker thread
+         * so the window keeps responding and shows the progress.
          */
-        Button startTrain = new Button("Train");
         startTrain.setOnAction(new EventHandler<ActionEvent>()
         {
             @Override
             public void handle(ActionEvent e)
             {
-                String spamPath = "../" + mainDirectory.getName() + "/training/spam";
-                String hamPath = "../" + mainDirectory.getName() + "/training/ham";
-                trainSpamFreq = new HashMap<>();
-                trainHamFreq = new HashMap<>();
-                TrainFile.trainEmailSet(trainSpamFreq, spamPath);
-                TrainFile.trainEmailSet(trainHamFreq, hamPath);
-                probabilitySpam = new HashMap<>();
-                probabilitySpam = TrainFile.getWordProbability(trainSpamFreq, 500);
-                probabilityHam = new HashMap<>();
-                probabilityHam = TrainFile.getWordProbability(trainHamFreq, 2500);
-                wordSpamProbability = new HashMap<>();
-                wordSpamProbability = TrainFile.getWordSpamProbability(probabilitySpam, probabilityHam);
-                trainingLabel.setText("Done Training");
+                final String spamPath = "../" + mainDirectory.getName() + "/training/spam";
+                final String hamPath = "../" + mainDirectory.getName() + "/training/ham";
+                final long totalEmails = countFiles(spamPath) + countFiles(hamPath);
+                final ProgressTask<String> task = new ProgressTask<String>()
+                {
+                    @Override
+                    protected String call() throws Exception
+                    {
+                        ProgressTracker tracker = newTracker(totalEmails);
+                        CorpusCache cache = corpusCache();
+                        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, cache, tracker);
+                        saveCache(cache);
+                        if (isCancelled())
+                        {
+                            return null;
+                        }
+
+                        //word frequencies are over the emails actually trained, whatever the folders hold
+                        int spamFiles = counts.getEmailCount(true);
+                        int hamFiles = counts.getEmailCount(false);
+                        HashMap<String, Double> wordProb = counts.toProbabilities(spamFiles, hamFiles);
+                        TokenWeights wordWeights = counts.toWeights(spamFiles, hamFiles);
+                        String status = "Done Training";
+                        try
+                        {
+                            ModelFile.save(wordProb, new File(mainDirectory, MODEL_FILE_NAME));
+                        } catch (IOException ioex)
+                        {
+                            status = "Done Training, model not saved: " + ioex.getMessage();
+                        }
+
+                        //the field is read on the JavaFX thread once the task has succeeded
+                        weights = wordWeights;
+                        return status;
+                    }
+                };
+                trainingLabel.setText("Training in progress...");
+                runInBackground(task, trainingLabel, "Training", new Button[]{startTrain, startTest, loadModel}, cancel,
+                                progressBar, progressLabel);
             }
         });
         editArea.add(startTrain, 7, 12);
 
 
         /**
-         * This button handles the testing of the test files, then creates a new window to display
-         * the results in.
+         * This button loads the model saved by the last training run in the chosen directory,
+         * so testing can start without training again.
+         */
+        loadModel.setOnAction(new EventHandler<ActionEvent>()
+        {
+            @Override
+            public void handle(ActionEvent e)
+            {
+                try
+                {
+                    weights = ModelFile.loadWeights(new File(mainDirectory, MODEL_FILE_NAME));
+                    trainingLabel.setText("Model loaded");
+                } catch (IOException ioex)
+                {
+                    trainingLabel.setText(ioex.getMessage());
+                }
+            }
+        });
+        editArea.add(loadModel, 7, 11);
+
+
+        /**
+         * This button handles the testing of the test files. The results window opens straight away
+         * and fills up while the emails are tested on a worker thread.
          */
-        Button startTest = new Button("Test");
         startTest.setOnAction(new EventHandler<ActionEvent>()
         {
             @Override
             public void handle(ActionEvent e)
             {
-                testingLabel.setText("Testing in progress...");
-                String spamPath = "../" + mainDirectory.getName() + "/testing/spam";
-                String hamPath = "../" + mainDirectory.getName() + "/testing/ham";
-                TestFile[] spamTestFiles = testingFiles(spamPath, "SPAM");
-                TestFile[] hamTestFiles = testingFiles(hamPath, "HAM");
-                TestFile[] files = concFileList(hamTestFiles, spamTestFiles);
+                final String spamPath = "../" + mainDirectory.getName() + "/testing/spam";
+                final String hamPath = "../" + mainDirectory.getName() + "/testing/ham";
+                final long totalEmails = countFiles(spamPath) + countFiles(hamPath);
+                final ResultsTable results = new ResultsTable(workers);
+                final TokenWeights testWeights = weights;
 
-                DecimalFormat df = new DecimalFormat("0.000000");
+                final DecimalFormat df = new DecimalFormat("0.000000");
                 displayResults = new BorderPane();
-                tableArea = displayResults(files);
+                tableArea = results.getTable();
                 tableArea.setMinHeight(675);
                 displayResults.setTop(tableArea);
                 HBox stats = new HBox(5);
                 Label accuracyLabel = new Label("Accuracy:");
-                TextField accuracyField = new TextField(df.format(calcAccuracy(files)));
+                final TextField accuracyField = new TextField();
                 accuracyField.setEditable(false);
                 Label precisionLabel = new Label("Precision:");
-                TextField precisionField = new TextField(df.format(calcPrecision(files)));
+                final TextField precisionField = new TextField();
                 precisionField.setEditable(false);
                 stats.getChildren().addAll(accuracyLabel, accuracyField, precisionLabel, precisionField);
                 stats.setMinHeight(25);
-                testingLabel.setText("Done Testing");
                 displayResults.setCenter(stats);
+                displayResults.setBottom(results.createFilterBar());
                 Scene displayScene = new Scene(displayResults, 700, 700);
                 Stage displayStage = new Stage();
                 displayStage.setTitle("Spam Master 3000 Results");
                 displayStage.setScene(displayScene);
                 displayStage.show();
+
+                final ProgressTask<String> task = new ProgressTask<String>()
+                {
+                    @Override
+                    protected String call() throws Exception
+                    {
+                        ProgressTracker tracker = newTracker(totalEmails);
+                        CorpusCache cache = corpusCache();
+                        CorpusCache.CachedWeights cachedWeights = cache.weightsFor(testWeights);
+                        testInBackground(hamPath, "HAM", cache, cachedWeights, tracker, this);
+                        testInBackground(spamPath, "SPAM", cache, cachedWeights, tracker, this);
+                        saveCache(cache);
+                        return "Done Testing";
+                    }
+
+                    /**
+                     * Tests a folder, mbox or Maildir and adds its results to the table in batches
+                     */
+                    private void testInBackground(String path, final String type, CorpusCache cache,
+                                                  CorpusCache.CachedWeights cachedWeights, ProgressTracker tracker,
+                                                  Task<?> task) throws IOException
+                    {
+                        final ArrayList<TestFile> batch = new ArrayList<>(RESULT_BATCH_SIZE);
+                        if (MailArchive.isArchive(new File(path)))
+                        {
+                            //the tracker is cancelled with the task, which stops the archive
+                            MailArchive.read(new File(path), new MailArchive.MessageSink()
+                            {
+                                @Override
+                                public void message(File source, String name, ByteBuffer message)
+                                {
+                                    batch.add(testEmail(name, type, testWeights, message));
+                                    if (batch.size() == RESULT_BATCH_SIZE)
+                                    {
+                                        publish(batch, results);
+                                    }
+                                }
+                            }, tracker);
+                            publish(batch, results);
+                            return;
+                        }
+                        for (File email : TrainFile.listEmails(new File(path)))
+                        {
+                            if (task.isCancelled())
+                            {
+                                break;
+                            }
+                            batch.add(testEmail(email, type, cache, cachedWeights));
+                            tracker.emailProcessed(email, email.length());
+                            if (batch.size() == RESULT_BATCH_SIZE)
+                            {
+                                publish(batch, results);
+                            }
+                        }
+                        publish(batch, results);
+                    }
+                };
+                //accuracy and precision are worked out on whatever was tested, also when cancelled
+                task.stateProperty().addListener(new ChangeListener<Worker.State>()
+                {
+                    @Override
+                    public void changed(ObservableValue<? extends Worker.State> observable, Worker.State oldState,
+                                        Worker.State newState)
+                    {
+                        if (newState == Worker.State.SUCCEEDED || newState == Worker.State.CANCELLED)
+                        {
+                            TestFile[] files = results.getResults();
+                            ConfusionMatrix matrix = Evaluation.evaluate(files, Evaluation.SPAM_THRESHOLD);
+                            accuracyField.setText(df.format(matrix.getAccuracy()));
+                            precisionField.setText(df.format(matrix.getPrecision()));
+                        }
+                    }
+                });
+                testingLabel.setText("Testing in progress...");
+                runInBackground(task, testingLabel, "Testing", new Button[]{startTrain, startTest, loadModel}, cancel,
+                                progressBar, progressLabel);
             }
         });
         editArea.add(startTest, 7, 13);
 
-        Scene scene = new Scene(editArea, 425, 250);
+
+        /**
+         * This button stops the training or testing that is running.
+         */
+        cancel.setOnAction(new EventHandler<ActionEvent>()
+        {
+            @Override
+            public void handle(ActionEvent e)
+            {
+                if (currentTask != null)
+                {
+                    currentTask.cancel();
+                }
+            }
+        });
+        editArea.add(cancel, 7, 18);
+
+        Scene scene = new Scene(editArea, 425, 330);
         primaryStage.setScene(scene);
         primaryStage.show();
     }
 
+    @Override
+    public void stop()
+    {
+        workers.shutdownNow();
+    }
+
     /**
-     * This function creates a TableView to output the results of the
-     * spam detector.
+     * Runs a task on the worker pool, showing its progress and disabling the train and test
+     * buttons until it is done
      *
-     * @param files an array of email test files
-     * @return      returns the TableView object for use in result displaying
+     * @param task          The task to run
+     * @param statusLabel   The label that shows how the task ended
+     * @param name          What the task does, e.g. Training
+     * @param buttons       The buttons to disable while it runs
+     * @param cancel        The button that cancels it
+     * @param progressBar   The bar that shows its progress
+     * @param progressLabel The label that shows its progress and throughput
      */
-    public TableView<TestFile> displayResults(TestFile[] files)
+    private void runInBackground(final ProgressTask<String> task, final Label statusLabel, final String name,
+                                 final Button[] buttons, final Button cancel, ProgressBar progressBar,
+                                 Label progressLabel)
     {
-        TableView<TestFile> tv = new TableView<>();
-        TableColumn fileNameCol = new TableColumn("File");
-        fileNameCol.setMinWidth(300.0);
-        fileNameCol.setCellValueFactory(new PropertyValueFactory<TestFile, String>("filename"));
-        TableColumn actualClassCol = new TableColumn("Actual Class");
-        actualClassCol.setMinWidth(100.0);
-        actualClassCol.setCellValueFactory(new PropertyValueFactory<TestFile, String>("actualClass"));
-        TableColumn spamProbCol = new TableColumn("Spam Probability");
-        spamProbCol.setMinWidth(300.0);
-        spamProbCol.setCellValueFactory(new PropertyValueFactory<TestFile, Double>("spamProbFormatted"));
-        final ObservableList<TestFile> fileList = FXCollections.observableArrayList(files);
-        tv.getColumns().addAll(fileNameCol, actualClassCol, spamProbCol);
-        tv.setItems(fileList);
-        return tv;
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressLabel.textProperty().bind(task.messageProperty());
+        for (Button button : buttons)
+        {
+            button.setDisable(true);
+        }
+        cancel.setDisable(false);
+        task.stateProperty().addListener(new ChangeListener<Worker.State>()
+        {
+            @Override
+            public void changed(ObservableValue<? extends Worker.State> observable, Worker.State oldState,
+                                Worker.State newState)
+            {
+                if (newState == Worker.State.SUCCEEDED)
+                {
+                    statusLabel.setText(task.getValue());
+                }
+                else if (newState == Worker.State.CANCELLED)
+                {
+                    statusLabel.setText(name + " cancelled");
+                }
+                else if (newState == Worker.State.FAILED)
+                {
+                    statusLabel.setText(name + " failed: " + task.getException().getMessage());
+                }
+                else
+                {
+                    return;
+                }
+                for (Button button : buttons)
+                {
+                    button.setDisable(false);
+                }
+                cancel.setDisable(true);
+                currentTask = null;
+            }
+        });
+        currentTask = task;
+        workers.execute(task);
     }
 
     /**
-     * This function concatenates two TestFile arrays
+     * Adds a batch of results to the table on the JavaFX thread and empties the batch
      *
-     * @param t1    The first TestFile array
-     * @param t2    The second TestFile array
-     * @return      The concatenated TestFile array
+     * @param batch     The tested emails
+     * @param results   The results table
      */
-    public TestFile[] concFileList(TestFile[] t1, TestFile[] t2)
+    private static void publish(ArrayList<TestFile> batch, final ResultsTable results)
     {
-        TestFile[] files = new TestFile[t1.length + t2.length];
-        for(int i = 0; i < t1.length; i++)
+        if (batch.isEmpty())
         {
-            files[i] = t1[i];
+            return;
         }
-        for(int i = 0; i < t2.length; i++ )
+        final TestFile[] rows = batch.toArray(new TestFile[batch.size()]);
+        batch.clear();
+        Platform.runLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                results.add(rows);
+            }
+        });
+    }
+
+    /**
+     * Calculates the spam email probability of one email from the corpus cache,
+     * tokenizing it only if it isn't cached yet
+     *
+     * @param email         The email being analyzed
+     * @param type          The type of the email, is either ham or spam.
+     * @param cache         The cache the email is read from
+     * @param cachedWeights The log-odds weights of probable spam words, by cached word id
+     * @return              The tested email
+     */
+    private static TestFile testEmail(File email, String type, CorpusCache cache,
+                                      CorpusCache.CachedWeights cachedWeights)
+    {
+        TestFile testFile = new TestFile(email.getName(), 0.0, type);
+        try
+        {
+            testFile.getSpamEmailProbability(cachedWeights, cache.get(email));
+        } catch (IOException ioex)
         {
-            files[i+t1.length] = t2[i];
+            System.out.println(ioex.getMessage());
         }
-        return files;
+        return testFile;
     }
 
     /**
-     * This function calculates and formats the spam email probability
-     * for each email in the testing folders.
+     * Calculates the spam email probability of an email read from a mail archive
      *
-     * @param path  The directory path for the chosen spam folder
-     * @param type  The type of the emails currently being tested, is either
-     *              ham or spam.
-     * @return      returns an array of TestFiles
+     * @param name          The name of the email
+     * @param type          The type of the email, is either ham or spam.
+     * @param testWeights   The log-odds weights of probable spam words
+     * @param message       The bytes of the email
+     * @return              The tested email
      */
-    public TestFile[] testingFiles(String path, String type)
+    private static TestFile testEmail(String name, String type, TokenWeights testWeights, ByteBuffer message)
     {
-        File emailDir = new File(path);
-        File[] emailDirListing = emailDir.listFiles();
+        TestFile testFile = new TestFile(name, 0.0, type);
+        testFile.getSpamEmailProbability(testWeights, message);
+        return testFile;
+    }
 
-        if (emailDirListing == null) {
-            System.exit(0);
+    /**
+     * Gets the token cache of the chosen directory, opening it the first time it's needed.
+     * Only one task runs at a time, so the cache is never used by two threads at once.
+     *
+     * @return  The cache
+     */
+    private CorpusCache corpusCache()
+    {
+        File cacheFile = new File(mainDirectory, CACHE_FILE_NAME);
+        if (corpusCache == null || !corpusCache.getFile().equals(cacheFile))
+        {
+            corpusCache = CorpusCache.open(cacheFile);
         }
+        return corpusCache;
+    }
 
-        TestFile[] testFiles = new TestFile[emailDirListing.length];
-        int i = 0;
-
-        Arrays.sort(emailDirListing); //Sorts Emails in Numeric Order
-        for(File email : emailDirListing) {
-            testFiles[i] = new TestFile(email.getName(), 0.0, type);
-            testFiles[i].getSpamEmailProbability(wordSpamProbability, email);
-            testFiles[i].getSpamProbRounded();
-            i++;
+    /**
+     * Writes the token cache back, a cache that can't be written only costs the next run time
+     *
+     * @param cache The cache
+     */
+    private static void saveCache(CorpusCache cache)
+    {
+        try
+        {
+            cache.save();
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
         }
+    }
 
-        return testFiles;
+    /**
+     * Counts the files in a folder, or the emails of an mbox, gzip file or Maildir
+     *
+     * @param path  The directory path of the folder
+     * @return      The number of files, 0 if it can't be listed
+     */
+    private static long countFiles(String path)
+    {
+        if (MailArchive.isArchive(new File(path)))
+        {
+            return TrainFile.countEmails(path);
+        }
+        try
+        {
+            return TrainFile.listEmails(new File(path)).length;
+        } catch (IOException ioex)
+        {
+            return 0;
+        }
     }
 
     /**
      * This function calculates the precision of the spam detector.
-     * Uses the formula Precision = #correct spam guesses / #of total spam guesses
      *
      * @param testfiles An array of every TestFile object that has been tested
      * @return          A double value that holds the precision of the spam detector
      */
     public double calcPrecision(TestFile[] testfiles)
     {
-        int spamGuesses = 0;
-        int correctSpam = 0;
-
-        for (TestFile testfile : testfiles)
-        {
-            if (testfile.getSpamProbability() > 0.5)
-            {
-                if (testfile.getActualClass().equalsIgnoreCase("ham"))
-                {
-                    spamGuesses++;
-                }
-                else
-                {
-                    spamGuesses++;
-                    correctSpam++;
-                }
-            }
-        }
-        return (double)correctSpam/((double)spamGuesses);
+        return Evaluation.calcPrecision(testfiles);
     }
 
     /**
      * This function calculates the accuracy of the spam detector.
-     * Uses the formula Accuracy = #correct guesses / #total guesses
      *
      * @param testfiles An array of every TestFile object that has been tested
      * @return          A double value that holds the accuracy of the spam detector.
      */
-    public double calcAccuracy(TestFile[] testfiles) {
+    public double calcAccuracy(TestFile[] testfiles)
+    {
+        return Evaluation.calcAccuracy(testfiles);
+    }
+
+    public static void main(String[] args)
+    {
+        //training and testing times can be watched in jconsole while the window is open
+        Metrics.registerMBean();
+        launch(args);
+    }
 
-        int correct = 0;
-        for (TestFile testfile : testfiles)
+    /**
+     * Background task that shows the progress and throughput of a ProgressTracker
+     * and stops the tracked run when it is cancelled
+     */
+    private abstract static class ProgressTask<V> extends Task<V>
+    {
+        /**
+         * Creates a tracker that reports into this task
+         *
+         * @param totalEmails   The number of emails the run will process
+         * @return              The tracker
+         */
+        protected ProgressTracker newTracker(long totalEmails)
         {
-            if (testfile.getSpamProbability() > 0.5)
+            return new ProgressTracker(totalEmails)
             {
-                if (testfile.getActualClass().equalsIgnoreCase("spam"))
+                @Override
+                protected void progressChanged()
                 {
-                    correct++;
+                    updateProgress(getEmails(), getTotalEmails());
+                    updateMessage(toString());
                 }
-            } else
-            {
-                if (testfile.getActualClass().equalsIgnoreCase("ham"))
+
+                @Override
+                public boolean isCancelled()
                 {
-                    correct++;
+                    return ProgressTask.this.isCancelled();
                 }
-            }
+            };
         }
-        return (double)correct/(double)testfiles.length;
-    }
-
-    public static void main(String[] args)
-    {
-        launch(args);
     }
-}
\ No newline at end of file
+}
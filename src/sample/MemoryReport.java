@@ -0,0 +1,106 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Reports the heap taken by a trained model in two layouts: the five String
+ * keyed Hashmaps the GUI used to keep (spam and ham occurrences, spam and ham
+ * frequencies and the word spam probabilities), and one TokenCounts with the
+ * TokenWeights built from it. The heap is measured after a full collection
+ * while the structures are still reachable.
+ *
+ * Scale 1 uses the bundled corpus; larger scales use a SyntheticCorpus, which
+ * keeps adding new words, to reach multi-million word vocabularies.
+ *
+ * Usage: MemoryReport [--emails DIR] [--scale N] [--corpus-dir DIR]
+ *
+ * @version 1.0
+ */
+
+public class MemoryReport
+{
+    private static final int GC_RUNS = 4;
+
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        String corpusDir = "bench_corpus";
+        int scale = 1;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--scale":
+                    scale = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--corpus-dir":
+                    corpusDir = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        File corpus = new File(emailDir);
+        if (scale > 1)
+        {
+            File synthetic = new File(corpusDir, "x" + scale);
+            System.err.println("Generating " + scale + "x corpus in " + synthetic);
+            new SyntheticCorpus(corpus).generate(synthetic, scale, 42L * scale);
+            corpus = synthetic;
+        }
+        String spamPath = new File(corpus, "training/spam").getPath();
+        String hamPath = new File(corpus, "training/ham").getPath();
+        int spamFiles = TrainFile.countEmails(spamPath);
+        int hamFiles = TrainFile.countEmails(hamPath);
+
+        long before = usedHeap();
+        HashMap<String, Integer> trainSpamFreq = new HashMap<>();
+        HashMap<String, Integer> trainHamFreq = new HashMap<>();
+        TrainFile.trainEmailSet(trainSpamFreq, spamPath);
+        TrainFile.trainEmailSet(trainHamFreq, hamPath);
+        HashMap<String, Double> probabilitySpam = TrainFile.getWordProbability(trainSpamFreq, spamFiles);
+        HashMap<String, Double> probabilityHam = TrainFile.getWordProbability(trainHamFreq, hamFiles);
+        HashMap<String, Double> wordSpamProbability = TrainFile.getWordSpamProbability(probabilitySpam,
+                                                                                        probabilityHam);
+        long mapBytes = usedHeap() - before;
+        int vocabulary = probabilitySpam.size() + probabilityHam.size();
+        int modelWords = wordSpamProbability.size();
+        //drop the maps before measuring the other layout
+        trainSpamFreq = trainHamFreq = null;
+        probabilitySpam = probabilityHam = wordSpamProbability = null;
+
+        before = usedHeap();
+        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        TokenWeights weights = counts.toWeights(spamFiles, hamFiles);
+        long tableBytes = usedHeap() - before;
+
+        System.out.printf("%d distinct words, %d in the model%n", counts.size(), modelWords);
+        System.out.printf("Hashmaps      %,14d bytes  %6.1f bytes/word%n", mapBytes, (double)mapBytes / counts.size());
+        System.out.printf("TokenCounts   %,14d bytes  %6.1f bytes/word  (arrays %,d + weights %,d)%n", tableBytes,
+                          (double)tableBytes / counts.size(), counts.heapBytes(), weights.heapBytes());
+        System.out.printf("Reduction     %14.1fx%n", (double)mapBytes / tableBytes);
+        if (vocabulary < counts.size())
+        {
+            System.out.println("Error, the Hashmaps hold fewer words than the TokenCounts");
+        }
+    }
+
+    /**
+     * Gets the heap in use after a few full collections
+     */
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_RUNS; i++)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
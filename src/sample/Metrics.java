@@ -0,0 +1,495 @@
+package sample;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of training and classification, shared by
+ * the whole process. The hot paths record once per email, never per word:
+ * the word counts and dictionary lookups of an email are added up locally and
+ * handed over at its end, so the cost is a nanoTime pair and a few atomic adds.
+ *
+ * The numbers are exposed as the MXBean sample:type=SpamFilterMetrics, and
+ * can be written to a file as text or JSON now and then by a reporter thread.
+ * Recording can be switched off with setEnabled, the hot paths then only
+ * check a volatile flag.
+ *
+ * @version 1.1
+ */
+
+public class Metrics
+{
+    public static final String OBJECT_NAME = "sample:type=SpamFilterMetrics";
+
+    //time to scan one training email into the counts
+    public static final Histogram SCAN_EMAIL = new Histogram("scanEmail", "ns");
+    //time to train a whole folder
+    public static final Histogram TRAIN_EMAIL_SET = new Histogram("trainEmailSet", "ns");
+    //time to turn the counts into a probability map or weight table
+    public static final Histogram BUILD_MODEL = new Histogram("getWordSpamProbability", "ns");
+    //time to score one email
+    public static final Histogram CLASSIFY_EMAIL = new Histogram("getSpamEmailProbability", "ns");
+    public static final Histogram TRAIN_TOKENS = new Histogram("tokens per trained email", "tokens");
+    public static final Histogram CLASSIFY_TOKENS = new Histogram("tokens per classified email", "tokens");
+
+    private static final Histogram[] HISTOGRAMS = {SCAN_EMAIL, TRAIN_EMAIL_SET, BUILD_MODEL, CLASSIFY_EMAIL,
+                                                   TRAIN_TOKENS, CLASSIFY_TOKENS};
+
+    private static volatile boolean enabled = true;
+    private static final LongAdder emailsTrained = new LongAdder();
+    private static final LongAdder bytesTrained = new LongAdder();
+    private static final LongAdder emailsClassified = new LongAdder();
+    private static final LongAdder bytesClassified = new LongAdder();
+    private static final LongAdder dictionaryHits = new LongAdder();
+    private static final LongAdder dictionaryMisses = new LongAdder();
+    private static volatile int modelWords;
+    private static ObjectName registered;
+
+    private Metrics()
+    {
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value)
+    {
+        enabled = value;
+    }
+
+    /**
+     * Starts timing a step
+     *
+     * @return  The start time to hand to the matching record call, 0 when recording is off
+     */
+    public static long start()
+    {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a scanned training email
+     *
+     * @param start     The time from start(), nothing is recorded if it's 0
+     * @param bytes     The bytes of the email read
+     * @param tokens    The words it was split into, -1 if it wasn't tokenized but taken from a cache
+     */
+    public static void emailTrained(long start, long bytes, int tokens)
+    {
+        if (start != 0)
+        {
+            SCAN_EMAIL.record(System.nanoTime() - start);
+            if (tokens >= 0)
+            {
+                TRAIN_TOKENS.record(tokens);
+            }
+            emailsTrained.increment();
+            bytesTrained.add(bytes);
+        }
+    }
+
+    /**
+     * Records a trained folder
+     *
+     * @param start The time from start(), nothing is recorded if it's 0
+     */
+    public static void emailSetTrained(long start)
+    {
+        if (start != 0)
+        {
+            TRAIN_EMAIL_SET.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a built model, which from then on is the model size reported
+     *
+     * @param start The time from start(), only the size is recorded if it's 0
+     * @param words The number of words of the model
+     */
+    public static void modelBuilt(long start, int words)
+    {
+        modelWords = words;
+        if (start != 0)
+        {
+            BUILD_MODEL.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a scored email
+     *
+     * @param start     The time from start(), nothing is recorded if it's 0
+     * @param bytes     The bytes of the email read
+     * @param tokens    The words it was split into, -1 if no words were looked up in a dictionary,
+     *                  e.g. it was taken from a cache or scored by hashed n-grams
+     * @param hits      The words found in the model
+     */
+    public static void emailClassified(long start, long bytes, int tokens, int hits)
+    {
+        if (start != 0)
+        {
+            CLASSIFY_EMAIL.record(System.nanoTime() - start);
+            emailsClassified.increment();
+            bytesClassified.add(bytes);
+            if (tokens >= 0)
+            {
+                CLASSIFY_TOKENS.record(tokens);
+                dictionaryHits.add(hits);
+                dictionaryMisses.add(tokens - hits);
+            }
+        }
+    }
+
+    public static long getEmailsTrained()
+    {
+        return emailsTrained.sum();
+    }
+
+    public static long getBytesTrained()
+    {
+        return bytesTrained.sum();
+    }
+
+    public static long getEmailsClassified()
+    {
+        return emailsClassified.sum();
+    }
+
+    public static long getBytesClassified()
+    {
+        return bytesClassified.sum();
+    }
+
+    public static long getDictionaryHits()
+    {
+        return dictionaryHits.sum();
+    }
+
+    public static long getDictionaryMisses()
+    {
+        return dictionaryMisses.sum();
+    }
+
+    /**
+     * Gets the share of the words of classified emails that were found in the model
+     *
+     * @return  The hit rate between 0 and 1, 0 before any email was classified
+     */
+    public static double getDictionaryHitRate()
+    {
+        long hits = dictionaryHits.sum();
+        long lookups = hits + dictionaryMisses.sum();
+        return lookups == 0 ? 0.0 : (double)hits / lookups;
+    }
+
+    public static int getModelWords()
+    {
+        return modelWords;
+    }
+
+    /**
+     * Clears every counter and histogram, the model size is kept
+     */
+    public static void reset()
+    {
+        for (Histogram histogram : HISTOGRAMS)
+        {
+            histogram.reset();
+        }
+        emailsTrained.reset();
+        bytesTrained.reset();
+        emailsClassified.reset();
+        bytesClassified.reset();
+        dictionaryHits.reset();
+        dictionaryMisses.reset();
+    }
+
+    /**
+     * Gets the report as text, one line per counter or histogram
+     *
+     * @return  The report
+     */
+    public static String toText()
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "trained %d emails, %d bytes%n", getEmailsTrained(),
+                                    getBytesTrained()));
+        report.append(String.format(Locale.ROOT, "classified %d emails, %d bytes%n", getEmailsClassified(),
+                                    getBytesClassified()));
+        report.append(String.format(Locale.ROOT, "dictionary %d hits, %d misses (%.1f%% hits)%n", getDictionaryHits(),
+                                    getDictionaryMisses(), 100 * getDictionaryHitRate()));
+        report.append(String.format(Locale.ROOT, "model %d words%n", getModelWords()));
+        for (Histogram histogram : HISTOGRAMS)
+        {
+            report.append(histogram).append(String.format("%n"));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Gets the report as one JSON object
+     *
+     * @return  The report
+     */
+    public static String toJson()
+    {
+        StringBuilder json = new StringBuilder("{");
+        json.append(String.format(Locale.ROOT, "\"emailsTrained\":%d,\"bytesTrained\":%d,\"emailsClassified\":%d,"
+                                  + "\"bytesClassified\":%d,\"dictionaryHits\":%d,\"dictionaryMisses\":%d,"
+                                  + "\"dictionaryHitRate\":%.6f,\"modelWords\":%d,\"histograms\":{",
+                                  getEmailsTrained(), getBytesTrained(), getEmailsClassified(), getBytesClassified(),
+                                  getDictionaryHits(), getDictionaryMisses(), getDictionaryHitRate(),
+                                  getModelWords()));
+        for (int h = 0; h < HISTOGRAMS.length; h++)
+        {
+            Histogram histogram = HISTOGRAMS[h];
+            json.append(h == 0 ? "" : ",");
+            json.append(String.format(Locale.ROOT, "\"%s\":{\"unit\":\"%s\",\"count\":%d,\"mean\":%.1f,\"p50\":%d,"
+                                      + "\"p90\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}", histogram.getName(),
+                                      histogram.getUnit(), histogram.getCount(), histogram.getMean(),
+                                      histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                                      histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9),
+                                      histogram.getMax()));
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Writes the report to a file, replacing it in one step so readers never
+     * see half a report. A name ending in .json gets the JSON report.
+     *
+     * @param file          The report file
+     * @throws IOException  If it can't be written
+     */
+    public static void write(File file) throws IOException
+    {
+        String report = file.getName().endsWith(".json") ? toJson() + "\n" : toText();
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+        try
+        {
+            out.write(report);
+        } finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+        {
+            file.delete();
+            if (!tmp.renameTo(file))
+            {
+                throw new IOException("Error, could not write " + file + ". Please verify paths.");
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread that writes the report to a file every period
+     *
+     * @param file          The report file, .json for the JSON report
+     * @param periodSeconds The time between two reports
+     * @return              The reporter, shut it down to stop reporting
+     */
+    public static ScheduledExecutorService startReporter(final File file, long periodSeconds)
+    {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    write(file);
+                } catch (IOException ioex)
+                {
+                    System.out.println(ioex.getMessage());
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    /**
+     * Registers the MXBean with the platform MBean server, once per process
+     */
+    public static synchronized void registerMBean()
+    {
+        if (registered != null)
+        {
+            return;
+        }
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(new Bean(), name);
+            registered = name;
+        } catch (JMException jmex)
+        {
+            System.out.println(jmex.getMessage());
+        }
+    }
+
+    /**
+     * The attributes and operations shown over JMX, latencies in microseconds
+     */
+    public interface SpamFilterMetricsMXBean
+    {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        long getEmailsTrained();
+
+        long getBytesTrained();
+
+        long getEmailsClassified();
+
+        long getBytesClassified();
+
+        double getDictionaryHitRate();
+
+        int getModelWords();
+
+        double getMeanTokensPerEmail();
+
+        double getScanEmailP50Micros();
+
+        double getScanEmailP99Micros();
+
+        double getClassifyEmailP50Micros();
+
+        double getClassifyEmailP99Micros();
+
+        double getClassifyEmailMaxMicros();
+
+        String getJson();
+
+        void reset();
+    }
+
+    private static class Bean implements SpamFilterMetricsMXBean
+    {
+        @Override
+        public boolean isEnabled()
+        {
+            return Metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled)
+        {
+            Metrics.setEnabled(enabled);
+        }
+
+        @Override
+        public long getEmailsTrained()
+        {
+            return Metrics.getEmailsTrained();
+        }
+
+        @Override
+        public long getBytesTrained()
+        {
+            return Metrics.getBytesTrained();
+        }
+
+        @Override
+        public long getEmailsClassified()
+        {
+            return Metrics.getEmailsClassified();
+        }
+
+        @Override
+        public long getBytesClassified()
+        {
+            return Metrics.getBytesClassified();
+        }
+
+        @Override
+        public double getDictionaryHitRate()
+        {
+            return Metrics.getDictionaryHitRate();
+        }
+
+        @Override
+        public int getModelWords()
+        {
+            return Metrics.getModelWords();
+        }
+
+        @Override
+        public double getMeanTokensPerEmail()
+        {
+            return CLASSIFY_TOKENS.getMean();
+        }
+
+        @Override
+        public double getScanEmailP50Micros()
+        {
+            return SCAN_EMAIL.getValueAtPercentile(50) / 1e3;
+        }
+
+        @Override
+        public double getScanEmailP99Micros()
+        {
+            return SCAN_EMAIL.getValueAtPercentile(99) / 1e3;
+        }
+
+        @Override
+        public double getClassifyEmailP50Micros()
+        {
+            return CLASSIFY_EMAIL.getValueAtPercentile(50) / 1e3;
+        }
+
+        @Override
+        public double getClassifyEmailP99Micros()
+        {
+            return CLASSIFY_EMAIL.getValueAtPercentile(99) / 1e3;
+        }
+
+        @Override
+        public double getClassifyEmailMaxMicros()
+        {
+            return CLASSIFY_EMAIL.getMax() / 1e3;
+        }
+
+        @Override
+        public String getJson()
+        {
+            return Metrics.toJson();
+        }
+
+        @Override
+        public void reset()
+        {
+            Metrics.reset();
+        }
+    }
+}
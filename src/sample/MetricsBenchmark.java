@@ -0,0 +1,154 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Measures what the metrics cost on the hot paths. The training and testing
+ * emails are loaded into memory first so the disk doesn't hide the
+ * difference, then rounds of scanning and scoring them are timed with
+ * recording switched off and on, alternating so drift hits both sides the
+ * same. The median round of each side is compared.
+ *
+ * Usage: MetricsBenchmark [--emails DIR] [--rounds N]
+ *
+ * @version 1.2
+ */
+
+public class MetricsBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        int rounds = 15;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--rounds":
+                    rounds = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        byte[][] training = load(emailDir + "/training/spam", emailDir + "/training/ham");
+        byte[][] testing = load(emailDir + "/testing/spam", emailDir + "/testing/ham");
+        TokenCounts counts = TrainFile.trainCounts(emailDir + "/training/spam", emailDir + "/training/ham", 1, null);
+        TokenWeights weights = counts.toWeights(counts.getEmailCount(true), counts.getEmailCount(false));
+        System.out.printf("%d training and %d testing emails in memory, %d rounds each way%n%n", training.length,
+                          testing.length, rounds);
+
+        //unmeasured rounds so both sides are compiled before timing
+        for (int warmup = 0; warmup < 3; warmup++)
+        {
+            Metrics.setEnabled(warmup % 2 == 0);
+            train(training);
+            classify(weights, testing);
+        }
+
+        long[][] trainNanos = new long[2][rounds];
+        long[][] classifyNanos = new long[2][rounds];
+        for (int round = 0; round < rounds; round++)
+        {
+            for (int on = 0; on < 2; on++)
+            {
+                int side = (round % 2 == 0) ? on : 1 - on;
+                Metrics.setEnabled(side == 1);
+                trainNanos[side][round] = train(training);
+                classifyNanos[side][round] = classify(weights, testing);
+            }
+        }
+        Metrics.setEnabled(true);
+
+        System.out.printf("%-10s %14s %14s %10s%n", "step", "off ns/email", "on ns/email", "overhead");
+        report("scanEmail", trainNanos, training.length);
+        report("classify", classifyNanos, testing.length);
+
+        long start = System.nanoTime();
+        Histogram histogram = new Histogram("record", "ns");
+        for (int i = 0; i < 10000000; i++)
+        {
+            histogram.record(i & 0xFFFFF);
+        }
+        System.out.printf("%nHistogram.record: %.1f ns per value%n", (System.nanoTime() - start) / 1e7);
+        System.out.printf("%n%s", Metrics.toText());
+    }
+
+    /**
+     * Scans every training email into a fresh table
+     *
+     * @return  The time it took in nanoseconds
+     */
+    private static long train(byte[][] emails)
+    {
+        long start = System.nanoTime();
+        TokenCounts counts = new TokenCounts(1 << 16);
+        for (int i = 0; i < emails.length; i++)
+        {
+            counts.scanEmail(ByteBuffer.wrap(emails[i]), i % 2 == 0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Scores every testing email
+     *
+     * @return  The time it took in nanoseconds
+     */
+    private static long classify(TokenWeights weights, byte[][] emails)
+    {
+        long start = System.nanoTime();
+        TestFile tested = new TestFile("", 0.0, "");
+        for (byte[] email : emails)
+        {
+            tested.getSpamEmailProbability(weights, email, 0, email.length);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String step, long[][] nanos, int emails)
+    {
+        double off = median(nanos[0]) / emails;
+        double on = median(nanos[1]) / emails;
+        System.out.printf("%-10s %14.0f %14.0f %9.2f%%%n", step, off, on, 100 * (on - off) / off);
+    }
+
+    private static double median(long[] values)
+    {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Reads every email of the folders into memory
+     */
+    private static byte[][] load(String... paths) throws IOException
+    {
+        int total = 0;
+        File[][] listings = new File[paths.length][];
+        for (int p = 0; p < paths.length; p++)
+        {
+            listings[p] = TrainFile.listEmails(new File(paths[p]));
+            total += listings[p].length;
+        }
+        byte[][] emails = new byte[total][];
+        int i = 0;
+        for (File[] listing : listings)
+        {
+            for (File email : listing)
+            {
+                emails[i++] = Files.readAllBytes(email.toPath());
+            }
+        }
+        return emails;
+    }
+}
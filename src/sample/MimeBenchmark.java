@@ -0,0 +1,100 @@
+package sample;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Compares tokenizing every byte of every email with reading them through
+ * the MimeParser: bytes tokenized per email, training vocabulary, tokenizing
+ * time and the accuracy and precision on the testing set.
+ *
+ * Usage: MimeBenchmark [emailFilesDirectory]
+ *
+ * @version 1.2
+ */
+
+public class MimeBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = args.length > 0 ? args[0] : "Email_Files";
+        for (boolean mimeAware : new boolean[]{false, true})
+        {
+            report(mimeAware ? "MIME parsed" : "raw bytes", emailDir, mimeAware);
+        }
+    }
+
+    private static void report(String name, String emailDir, boolean mimeAware) throws IOException
+    {
+        File[] emails = listEmails(emailDir);
+        long bytesRead = 0;
+        long bytesTokenized = 0;
+        long start = System.nanoTime();
+        for (File email : emails)
+        {
+            final ByteSink reader = Tokenizer.forMessage(new Tokenizer.TokenSink()
+            {
+                @Override
+                public void token(byte[] buf, int off, int len)
+                {
+                }
+            }, mimeAware);
+            byte[] buffer = new byte[1 << 16];
+            InputStream in = new FileInputStream(email);
+            try
+            {
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                {
+                    reader.feed(buffer, 0, read);
+                }
+                reader.finish();
+            } finally
+            {
+                in.close();
+            }
+            bytesRead += email.length();
+            bytesTokenized += reader instanceof MimeParser ? ((MimeParser)reader).getBytesTokenized() : email.length();
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        TokenCounts counts = new TokenCounts(1 << 16, mimeAware);
+        counts.trainEmailSet(emailDir + "/training/spam", true, 1, null);
+        counts.trainEmailSet(emailDir + "/training/ham", false, 1, null);
+        TokenWeights weights = counts.toWeights(counts.getEmailCount(true), counts.getEmailCount(false));
+        TestFile[] tested = test(weights, emailDir + "/testing/spam", "SPAM", emailDir + "/testing/ham", "HAM");
+
+        System.out.printf("%-12s %8.0f bytes/email tokenized of %.0f (%.1f%%)  vocabulary %7d  %6.0f ms  "
+                          + "accuracy %.6f  precision %.6f%n",
+                          name, (double)bytesTokenized / emails.length, (double)bytesRead / emails.length,
+                          100.0 * bytesTokenized / bytesRead, counts.size(), millis,
+                          Evaluation.calcAccuracy(tested), Evaluation.calcPrecision(tested));
+    }
+
+    private static TestFile[] test(TokenWeights weights, String spamPath, String spamType, String hamPath,
+                                   String hamType) throws IOException
+    {
+        File[] spam = TrainFile.listEmails(new File(spamPath));
+        File[] ham = TrainFile.listEmails(new File(hamPath));
+        TestFile[] tested = new TestFile[spam.length + ham.length];
+        for (int i = 0; i < tested.length; i++)
+        {
+            File email = i < spam.length ? spam[i] : ham[i - spam.length];
+            tested[i] = new TestFile(email.getName(), 0.0, i < spam.length ? spamType : hamType);
+            tested[i].getSpamEmailProbability(weights, email);
+        }
+        return tested;
+    }
+
+    private static File[] listEmails(String emailDir) throws IOException
+    {
+        File[] all = new File[0];
+        for (String folder : new String[]{"training/spam", "training/ham", "testing/spam", "testing/ham"})
+        {
+            File[] emails = TrainFile.listEmails(new File(emailDir, folder));
+            File[] joined = Arrays.copyOf(all, all.length + emails.length);
+            System.arraycopy(emails, 0, joined, all.length, emails.length);
+            all = joined;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,615 @@
+package sample;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Streaming MIME reader that sits in front of a Tokenizer. It follows the
+ * message headers, multipart boundaries and Content-Transfer-Encoding line by
+ * line and only passes on the text a reader would see:
+ *
+ *   - text/plain and text/html parts, with quoted-printable and base64 decoded
+ *     on the fly and HTML tags dropped
+ *   - the words of a few headers, prefixed with the header name such as subject*free
+ *
+ * Attachments and other non-text parts are skipped without decoding, and
+ * every text part is capped, so junk such as base64 blobs never reaches the
+ * vocabulary. Only the current line and header are held in memory, never
+ * the whole message. A message whose first line isn't a header is read as
+ * plain text.
+ *
+ * @version 1.2
+ */
+
+public class MimeParser implements ByteSink
+{
+    //headers whose words are kept, as prefixed words
+    private static final String[] PREFIXED_HEADERS = {"subject", "from", "to", "reply-to"};
+    //longer body lines are passed on in pieces, longer headers are cut
+    static final int MAX_LINE = 8192;
+    private static final int MAX_HEADER = 4096;
+    //text passed on per part at most
+    private static final int MAX_PART_TEXT = 256 * 1024;
+
+    private static final int SKIP = 0;
+    private static final int TEXT = 1;
+    private static final int HTML = 2;
+
+    private static final int PLAIN = 0;
+    private static final int QUOTED_PRINTABLE = 1;
+    private static final int BASE64 = 2;
+
+    private final Tokenizer body;
+    private final Tokenizer.TokenSink sink;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean continuation;
+    private byte[] decoded = new byte[256];
+
+    private final byte[] header = new byte[MAX_HEADER];
+    private int headerLength;
+    private boolean inHeaders = true;
+    private boolean messageStart = true;
+    private String contentType;
+    private String boundary;
+    private String encoding;
+    private final ArrayList<byte[]> boundaries = new ArrayList<>();
+
+    private int mode = SKIP;
+    private int decoding = PLAIN;
+    private int partText;
+    private boolean inTag;
+    //decoded base64 bits waiting to make up a byte, and how many there are
+    private int base64Bits;
+    private int base64Count;
+
+    private long bytesRead;
+    private long bytesTokenized;
+
+    /**
+     * MimeParser constructor
+     *
+     * @param sink  Where the words of the text parts and headers are sent
+     */
+    public MimeParser(Tokenizer.TokenSink sink)
+    {
+        this.sink = sink;
+        this.body = new Tokenizer(sink);
+        resetPart();
+    }
+
+    @Override
+    public void feed(byte[] buf, int off, int len)
+    {
+        bytesRead += len;
+        for (int i = off; i < off + len; i++)
+        {
+            byte b = buf[i];
+            if (b == '\n')
+            {
+                endLine();
+            }
+            else
+            {
+                if (lineLength == MAX_LINE)
+                {
+                    if (!inHeaders)
+                    {
+                        //pass a very long body line on in pieces, it can't be a boundary
+                        bodyLine(line, lineLength, false);
+                        continuation = true;
+                    }
+                    lineLength = 0;
+                }
+                if (lineLength == line.length)
+                {
+                    byte[] grown = new byte[Math.min(MAX_LINE, line.length * 2)];
+                    System.arraycopy(line, 0, grown, 0, lineLength);
+                    line = grown;
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        if (lineLength > 0 || continuation)
+        {
+            endLine();
+        }
+        if (inHeaders)
+        {
+            endHeader();
+        }
+        body.finish();
+    }
+
+    /**
+     * Gets the number of message bytes read so far
+     *
+     * @return  The bytes read
+     */
+    public long getBytesRead()
+    {
+        return this.bytesRead;
+    }
+
+    /**
+     * Gets the number of bytes passed on to the tokenizer so far, after decoding
+     *
+     * @return  The bytes tokenized
+     */
+    public long getBytesTokenized()
+    {
+        return this.bytesTokenized;
+    }
+
+    private void endLine()
+    {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r')
+        {
+            length--;
+        }
+        lineLength = 0;
+        boolean first = messageStart;
+        messageStart = false;
+        if (continuation)
+        {
+            continuation = false;
+            bodyLine(line, length, true);
+        }
+        else if (inHeaders)
+        {
+            if (first && length > 0 && !isHeaderField(line, length))
+            {
+                //a message that doesn't start with headers is read as plain text
+                endHeaders();
+                bodyLine(line, length, true);
+            }
+            else
+            {
+                headerLine(length);
+            }
+        }
+        else if (!boundaryLine(length))
+        {
+            bodyLine(line, length, true);
+        }
+    }
+
+    /**
+     * Determines whether a line starts a header field such as
+     * "Subject: ..." or is the "From " line that starts a message in a mailbox
+     */
+    static boolean isHeaderField(byte[] line, int length)
+    {
+        if (length >= 5 && line[0] == 'F' && line[1] == 'r' && line[2] == 'o' && line[3] == 'm' && line[4] == ' ')
+        {
+            return true;
+        }
+        for (int i = 0; i < length; i++)
+        {
+            if (line[i] == ':')
+            {
+                return i > 0;
+            }
+            if (line[i] <= ' ' || line[i] > '~')
+            {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a header changes what is read from a message: the
+     * headers whose words are kept and the ones that say how the body is
+     * read. Every other header is skipped without a trace.
+     *
+     * @param name  The header name, trimmed and lower case
+     * @return      True if the header is read
+     */
+    static boolean readsHeader(String name)
+    {
+        if (name.equals("content-type") || name.equals("content-transfer-encoding"))
+        {
+            return true;
+        }
+        for (String prefixed : PREFIXED_HEADERS)
+        {
+            if (name.equals(prefixed))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void headerLine(int length)
+    {
+        if (length == 0)
+        {
+            endHeaders();
+            return;
+        }
+        if (line[0] != ' ' && line[0] != '\t')
+        {
+            endHeader();
+        }
+        int copy = Math.min(length, MAX_HEADER - headerLength - 1);
+        if (copy > 0)
+        {
+            //folded lines are joined with a space
+            if (headerLength > 0)
+            {
+                header[headerLength++] = ' ';
+            }
+            System.arraycopy(line, 0, header, headerLength, copy);
+            headerLength += copy;
+        }
+    }
+
+    /**
+     * Handles a complete header, possibly unfolded from several lines
+     */
+    private void endHeader()
+    {
+        if (headerLength == 0)
+        {
+            return;
+        }
+        int colon = 0;
+        while (colon < headerLength && header[colon] != ':')
+        {
+            colon++;
+        }
+        if (colon < headerLength)
+        {
+            String name = Tokenizer.toWord(header, 0, colon).trim().toLowerCase(Locale.ROOT);
+            int valueStart = colon + 1;
+            if (name.equals("content-type"))
+            {
+                String value = Tokenizer.toWord(header, valueStart, headerLength - valueStart);
+                contentType = mediaType(value);
+                boundary = parameter(value, "boundary");
+            }
+            else if (name.equals("content-transfer-encoding"))
+            {
+                encoding = Tokenizer.toWord(header, valueStart, headerLength - valueStart).trim()
+                                    .toLowerCase(Locale.ROOT);
+            }
+            else
+            {
+                for (String prefixed : PREFIXED_HEADERS)
+                {
+                    if (name.equals(prefixed))
+                    {
+                        Tokenizer words = new Tokenizer(new PrefixSink(name));
+                        words.feed(header, valueStart, headerLength - valueStart);
+                        words.finish();
+                        bytesTokenized += headerLength - valueStart;
+                    }
+                }
+            }
+        }
+        headerLength = 0;
+    }
+
+    /**
+     * Works out how the body after a blank line is read
+     */
+    private void endHeaders()
+    {
+        endHeader();
+        inHeaders = false;
+        mode = SKIP;
+        if (contentType.startsWith("multipart/") && boundary != null)
+        {
+            boundaries.add(Tokenizer.toBytes("--" + boundary));
+        }
+        else if (contentType.equals("message/rfc822"))
+        {
+            //an attached message starts with its own headers
+            resetPart();
+            inHeaders = true;
+        }
+        else if (contentType.startsWith("text/") || contentType.startsWith("multipart/"))
+        {
+            mode = contentType.equals("text/html") ? HTML : TEXT;
+            decoding = encoding.equals("quoted-printable") ? QUOTED_PRINTABLE
+                     : encoding.equals("base64") ? BASE64 : PLAIN;
+            partText = 0;
+            inTag = false;
+            base64Bits = 0;
+            base64Count = 0;
+        }
+    }
+
+    /**
+     * Checks whether a body line is the boundary of an open multipart and moves to the next part if so
+     *
+     * @return  True if the line was a boundary
+     */
+    private boolean boundaryLine(int length)
+    {
+        if (length < 2 || line[0] != '-' || line[1] != '-')
+        {
+            return false;
+        }
+        for (int level = boundaries.size() - 1; level >= 0; level--)
+        {
+            byte[] delimiter = boundaries.get(level);
+            if (length < delimiter.length || !startsWith(line, delimiter))
+            {
+                continue;
+            }
+            boolean close = length >= delimiter.length + 2 && line[delimiter.length] == '-'
+                            && line[delimiter.length + 1] == '-';
+            //boundaries of the inner multiparts that weren't closed are dropped
+            while (boundaries.size() > level + 1)
+            {
+                boundaries.remove(boundaries.size() - 1);
+            }
+            body.finish();
+            mode = SKIP;
+            resetPart();
+            if (close)
+            {
+                boundaries.remove(level);
+            }
+            else
+            {
+                inHeaders = true;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes a body line of the current part and passes its text on
+     *
+     * @param bytes     The line
+     * @param length    The length of the line without its line break
+     * @param lineBreak True if the line ended with a line break
+     */
+    private void bodyLine(byte[] bytes, int length, boolean lineBreak)
+    {
+        if (mode == SKIP)
+        {
+            return;
+        }
+        if (decoded.length < length + 1)
+        {
+            decoded = new byte[Math.max(length + 1, decoded.length * 2)];
+        }
+        int out = 0;
+        if (decoding == BASE64)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                int value = base64Value(bytes[i]);
+                if (value < 0)
+                {
+                    continue;
+                }
+                base64Bits = (base64Bits << 6) | value;
+                base64Count += 6;
+                if (base64Count >= 8)
+                {
+                    base64Count -= 8;
+                    decoded[out++] = (byte)(base64Bits >> base64Count);
+                    base64Bits &= (1 << base64Count) - 1;
+                }
+            }
+        }
+        else if (decoding == QUOTED_PRINTABLE)
+        {
+            boolean softBreak = false;
+            for (int i = 0; i < length; i++)
+            {
+                if (bytes[i] == '=')
+                {
+                    if (i == length - 1)
+                    {
+                        softBreak = true;
+                        break;
+                    }
+                    if (i + 2 < length && hexValue(bytes[i + 1]) >= 0 && hexValue(bytes[i + 2]) >= 0)
+                    {
+                        decoded[out++] = (byte)(hexValue(bytes[i + 1]) << 4 | hexValue(bytes[i + 2]));
+                        i += 2;
+                        continue;
+                    }
+                }
+                decoded[out++] = bytes[i];
+            }
+            if (lineBreak && !softBreak)
+            {
+                decoded[out++] = '\n';
+            }
+        }
+        else
+        {
+            System.arraycopy(bytes, 0, decoded, 0, length);
+            out = length;
+            if (lineBreak)
+            {
+                decoded[out++] = '\n';
+            }
+        }
+        text(decoded, out);
+    }
+
+    /**
+     * Passes decoded text on to the tokenizer, dropping HTML tags and anything over the part cap
+     */
+    private void text(byte[] bytes, int length)
+    {
+        length = Math.min(length, MAX_PART_TEXT - partText);
+        if (length <= 0)
+        {
+            return;
+        }
+        partText += length;
+        if (mode == HTML)
+        {
+            int out = 0;
+            for (int i = 0; i < length; i++)
+            {
+                byte b = bytes[i];
+                if (inTag)
+                {
+                    if (b == '>')
+                    {
+                        inTag = false;
+                    }
+                }
+                else if (b == '<')
+                {
+                    inTag = true;
+                    bytes[out++] = ' ';
+                }
+                else
+                {
+                    bytes[out++] = b;
+                }
+            }
+            length = out;
+        }
+        bytesTokenized += length;
+        body.feed(bytes, 0, length);
+    }
+
+    private void resetPart()
+    {
+        contentType = "text/plain";
+        boundary = null;
+        encoding = "7bit";
+        headerLength = 0;
+    }
+
+    /**
+     * Gets the lower case type/subtype of a Content-Type value
+     */
+    private static String mediaType(String value)
+    {
+        int semicolon = value.indexOf(';');
+        String type = (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        return type.isEmpty() ? "text/plain" : type;
+    }
+
+    /**
+     * Gets a parameter of a header value such as the boundary of a Content-Type
+     *
+     * @return  The parameter without quotes, null if it isn't there
+     */
+    private static String parameter(String value, String name)
+    {
+        String lower = value.toLowerCase(Locale.ROOT);
+        int at = lower.indexOf(name + "=");
+        while (at > 0 && Character.isLetterOrDigit(lower.charAt(at - 1)))
+        {
+            at = lower.indexOf(name + "=", at + 1);
+        }
+        if (at < 0)
+        {
+            return null;
+        }
+        int start = at + name.length() + 1;
+        if (start < value.length() && value.charAt(start) == '"')
+        {
+            int end = value.indexOf('"', start + 1);
+            return value.substring(start + 1, end < 0 ? value.length() : end);
+        }
+        int end = start;
+        while (end < value.length() && value.charAt(end) != ';' && !Character.isWhitespace(value.charAt(end)))
+        {
+            end++;
+        }
+        return end > start ? value.substring(start, end) : null;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix)
+    {
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (bytes[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(byte b)
+    {
+        if (b >= '0' && b <= '9')
+        {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F')
+        {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f')
+        {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static int base64Value(byte b)
+    {
+        if (b >= 'A' && b <= 'Z')
+        {
+            return b - 'A';
+        }
+        if (b >= 'a' && b <= 'z')
+        {
+            return b - 'a' + 26;
+        }
+        if (b >= '0' && b <= '9')
+        {
+            return b - '0' + 52;
+        }
+        if (b == '+')
+        {
+            return 62;
+        }
+        if (b == '/')
+        {
+            return 63;
+        }
+        return -1;
+    }
+
+    /**
+     * Sends the words of a header with the header name in front, such as subject*free
+     */
+    private final class PrefixSink implements Tokenizer.TokenSink
+    {
+        private final byte[] prefix;
+        private byte[] word = new byte[64];
+
+        PrefixSink(String name)
+        {
+            this.prefix = Tokenizer.toBytes(name + "*");
+        }
+
+        @Override
+        public void token(byte[] buf, int off, int len)
+        {
+            if (word.length < prefix.length + len)
+            {
+                word = new byte[prefix.length + len];
+            }
+            System.arraycopy(prefix, 0, word, 0, prefix.length);
+            System.arraycopy(buf, off, word, prefix.length, len);
+            sink.token(word, 0, prefix.length + len);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package sample;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file holding a trained word spam probability map, so the filter
+ * can start classifying without rescanning the training emails.
+ *
+ * Layout, big endian:
+ *   int     magic "SPMF"
+ *   int     format version
+ *   byte    1 if trained with MIME parsing
+ *   int     number of words
+ *   words   sorted by word, each a short length, the raw bytes the Tokenizer read and a double spamicity
+ *   long    CRC32 of everything before it
+ *
+ * The file is written next to its place and renamed over it once complete,
+ * so a crash never leaves half a model.
+ *
+ * A model only holds for emails tokenized the way its training emails were,
+ * so the file records the MIME setting of its training and loadWeights
+ * gives it to the weights, which read emails with it.
+ *
+ * Words are stored as the bytes they were read from, one per char of the
+ * map keys (ISO-8859-1), so loadWeights fills a TokenWeights straight from
+ * the mapped file without building Strings or a map.
+ *
+ * @version 1.6
+ */
+
+public class ModelFile
+{
+    public static final int MAGIC = 0x53504D46;
+    public static final int VERSION = 3;
+
+    private static final int HEADER_BYTES = 13;
+    private static final int TRAILER_BYTES = 8;
+
+    /**
+     * Writes a word spam probability map to a model file
+     *
+     * @param wordSpamProbability   A probability map of words and their probability of being spam
+     * @param file                  The model file to write
+     * @throws IOException          If the file can't be written
+     */
+    public static void save(HashMap<String, Double> wordSpamProbability, File file) throws IOException
+    {
+        ArrayList<String> words = new ArrayList<>(wordSpamProbability.keySet());
+        Collections.sort(words);
+
+        Writer writer = new Writer(file, words.size(), Tokenizer.DEFAULT_MIME_AWARE);
+        try
+        {
+            for (String word : words)
+            {
+                writer.add(word, wordSpamProbability.get(word));
+            }
+            writer.finish();
+        } finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads a model file through a memory mapping into a word spam probability map
+     *
+     * @param file          The model file to read
+     * @return              The word spam probability map stored in the file
+     * @throws IOException  If the file can't be read, isn't a valid model file or was
+     *                      trained without MIME parsing
+     */
+    public static HashMap<String, Double> load(final File file) throws IOException
+    {
+        final ArrayList<HashMap<String, Double>> map = new ArrayList<>(1);
+        read(file, new WordSink()
+        {
+            @Override
+            public void count(int words, boolean mimeAware) throws IOException
+            {
+                if (!mimeAware)
+                {
+                    //a probability map is always scored through a MimeParser
+                    throw new IOException("Model file " + file + " was trained without MIME parsing, "
+                                          + "load its weights instead");
+                }
+                map.add(new HashMap<String, Double>(words * 4 / 3 + 1));
+            }
+
+            @Override
+            public void word(byte[] buf, int len, double spamicity)
+            {
+                map.get(0).put(Tokenizer.toWord(buf, 0, len), spamicity);
+            }
+        });
+        return map.get(0);
+    }
+
+    /**
+     * Reads a model file through a memory mapping straight into the weights
+     * it is scored with. Words with a spam probability of 0.0 are left out,
+     * the same as in TokenWeights.fromProbabilities.
+     *
+     * @param file          The model file to read
+     * @return              The log-odds weights of the words stored in the file
+     * @throws IOException  If the file can't be read or isn't a valid model file
+     */
+    public static TokenWeights loadWeights(File file) throws IOException
+    {
+        long start = Metrics.start();
+        final ArrayList<TokenWeights> weights = new ArrayList<>(1);
+        read(file, new WordSink()
+        {
+            @Override
+            public void count(int words, boolean mimeAware)
+            {
+                weights.add(new TokenWeights(words, mimeAware));
+            }
+
+            @Override
+            public void word(byte[] buf, int len, double spamicity)
+            {
+                if (spamicity != 0.0)
+                {
+                    weights.get(0).put(buf, 0, len, Math.log(1 - spamicity) - Math.log(spamicity));
+                }
+            }
+        });
+        Metrics.modelBuilt(start, weights.get(0).size());
+        return weights.get(0);
+    }
+
+    /**
+     * Receives the word count of a model file first and then every word in order
+     */
+    private interface WordSink
+    {
+        /**
+         * Takes the header of the file
+         *
+         * @param words         The number of words that follow
+         * @param mimeAware     True if the model was trained with MIME parsing
+         * @throws IOException  If the model can't be taken
+         */
+        void count(int words, boolean mimeAware) throws IOException;
+
+        /**
+         * Takes one word. The bytes are only valid during the call.
+         *
+         * @param buf       The bytes of the word, from index 0
+         * @param len       The length of the word
+         * @param spamicity Its probability of being spam
+         */
+        void word(byte[] buf, int len, double spamicity);
+    }
+
+    /**
+     * Checks the header, size and checksum of a model file and sends its words to a sink
+     *
+     */
+    private static void read(File file, WordSink sink) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Invalid model file " + file + ": unexpected size " + size);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.BIG_ENDIAN);
+
+            int magic = map.getInt();
+            int version = map.getInt();
+            boolean mimeAware = map.get() == 1;
+            int count = map.getInt();
+            if (magic != MAGIC)
+            {
+                throw new IOException("Invalid model file " + file + ": bad magic number");
+            }
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported model file version " + version + " in " + file
+                                      + ", expected " + VERSION);
+            }
+            int payloadEnd = (int)size - TRAILER_BYTES;
+            //every word takes at least its length and spamicity
+            if (count < 0 || (long)count * 10 > payloadEnd - HEADER_BYTES)
+            {
+                throw new IOException("Invalid model file " + file + ": bad word count " + count);
+            }
+
+            CRC32 crc = new CRC32();
+            ByteBuffer payload = map.duplicate();
+            payload.position(0).limit(payloadEnd);
+            crc.update(payload);
+            if (crc.getValue() != map.getLong(payloadEnd))
+            {
+                throw new IOException("Invalid model file " + file + ": checksum mismatch");
+            }
+
+            sink.count(count, mimeAware);
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < count; i++)
+            {
+                if (payloadEnd - map.position() < 2)
+                {
+                    throw new IOException("Invalid model file " + file + ": truncated at word " + i);
+                }
+                int length = map.getShort() & 0xFFFF;
+                if (payloadEnd - map.position() < length + 8)
+                {
+                    throw new IOException("Invalid model file " + file + ": truncated at word " + i);
+                }
+                if (length > bytes.length)
+                {
+                    bytes = new byte[length];
+                }
+                map.get(bytes, 0, length);
+                sink.word(bytes, length, map.getDouble());
+            }
+            if (map.position() != payloadEnd)
+            {
+                throw new IOException("Invalid model file " + file + ": trailing data after the last word");
+            }
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a model file one word at a time, for models too large to be
+     * held in a map such as one merged from shard count files. The number of
+     * words is part of the header, so it must be known before the first word.
+     * The words go to a temporary file that finish renames over the model file.
+     */
+    public static class Writer
+    {
+        private final File file;
+        private final File temp;
+        private final int count;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+        private final ByteBuffer entry = ByteBuffer.allocate(1 << 16).order(ByteOrder.BIG_ENDIAN);
+        private int written;
+        private boolean finished;
+
+        /**
+         * Writer constructor, writes the header to the temporary file
+         *
+         * @param file          The model file to write
+         * @param count         The number of words that will be added
+         * @param mimeAware     True if the words were read with MIME parsing
+         * @throws IOException  If the file can't be written
+         */
+        public Writer(File file, int count, boolean mimeAware) throws IOException
+        {
+            this.file = file;
+            this.temp = new File(file.getPath() + ".tmp");
+            this.count = count;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            entry.putInt(MAGIC).putInt(VERSION).put((byte)(mimeAware ? 1 : 0)).putInt(count);
+        }
+
+        /**
+         * Adds the next word, words must come in sorted order
+         *
+         * @param word          The word
+         * @param spamicity     Its probability of being spam
+         * @throws IOException  If the file can't be written or more words than declared are added
+         */
+        public void add(String word, double spamicity) throws IOException
+        {
+            byte[] bytes = Tokenizer.toBytes(word);
+            add(bytes, bytes.length, spamicity);
+        }
+
+        /**
+         * Adds the next word given as the raw bytes it was read from, words must
+         * come in sorted order
+         *
+         * @param buf           The bytes holding the word, from index 0
+         * @param len           The length of the word
+         * @param spamicity     Its probability of being spam
+         * @throws IOException  If the file can't be written or more words than declared are added
+         */
+        public void add(byte[] buf, int len, double spamicity) throws IOException
+        {
+            //the Tokenizer drops words over MAX_TOKEN_LENGTH, so every entry fits the buffer
+            if (written == count)
+            {
+                throw new IOException("More words than the " + count + " declared for " + file);
+            }
+            if (entry.remaining() < 2 + len + 8)
+            {
+                flush(entry, out, crc);
+            }
+            entry.putShort((short)len).put(buf, 0, len).putDouble(spamicity);
+            written++;
+        }
+
+        /**
+         * Writes the checksum once every word has been added and renames the
+         * temporary file over the model file
+         *
+         * @throws IOException  If the file can't be written or words are missing
+         */
+        public void finish() throws IOException
+        {
+            if (written != count)
+            {
+                throw new IOException("Only " + written + " of the " + count + " words declared for " + file);
+            }
+            flush(entry, out, crc);
+            out.writeLong(crc.getValue());
+            out.close();
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+            {
+                throw new IOException("Error, could not replace " + file);
+            }
+            finished = true;
+        }
+
+        /**
+         * Closes the file, a file closed before finish is deleted and the model file left as it was
+         *
+         * @throws IOException  If the file can't be closed
+         */
+        public void close() throws IOException
+        {
+            out.close();
+            if (!finished)
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the filled part of a buffer and adds it to the checksum
+     */
+    private static void flush(ByteBuffer buffer, DataOutputStream out, CRC32 crc) throws IOException
+    {
+        crc.update(buffer.array(), 0, buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+}
@@ -0,0 +1,147 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Compares the word model with hashed n-gram models of a few orders and
+ * table sizes on the bundled corpus: the memory the scoring weights take,
+ * train time, scoring throughput on emails held in memory, and accuracy,
+ * precision and AUC on the testing emails.
+ *
+ * Usage: NgramReport [--emails DIR] [--models 1:16,1:20,2:20,2:22,3:22] [--rounds N]
+ *   each model is ORDER:HASH_BITS
+ *
+ * @version 1.2
+ */
+
+public class NgramReport
+{
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        String models = "1:16,1:20,2:20,2:22,3:22";
+        int rounds = 5;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--models":
+                    models = args[i + 1];
+                    break;
+                case "--rounds":
+                    rounds = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        String spamPath = emailDir + "/training/spam";
+        String hamPath = emailDir + "/training/ham";
+        byte[][] spamTests = load(new File(emailDir, "testing/spam"));
+        byte[][] hamTests = load(new File(emailDir, "testing/ham"));
+
+        //one unmeasured run of each kind so no row is timed before the JIT has run
+        TokenCounts warmCounts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        int spamFiles = warmCounts.getEmailCount(true);
+        int hamFiles = warmCounts.getEmailCount(false);
+        TokenWeights warmWeights = warmCounts.toWeights(spamFiles, hamFiles);
+        HashedNgramModel warmModel = new HashedNgramModel(2, 16);
+        warmModel.trainEmailSet(spamPath, true, null);
+        warmModel.trainEmailSet(hamPath, false, null);
+        warmModel.buildWeights(spamFiles, hamFiles);
+        for (int r = 0; r < 2; r++)
+        {
+            score(warmWeights, null, spamTests);
+            score(null, warmModel, hamTests);
+        }
+
+        System.out.printf("%-14s %9s %9s %9s %12s %9s %9s %9s%n", "model", "slots", "weight MB", "train ms",
+                          "emails/s", "accuracy", "precision", "AUC");
+
+        long start = System.nanoTime();
+        TokenWeights weights = TrainFile.trainCounts(spamPath, hamPath, 1, null).toWeights(spamFiles, hamFiles);
+        double trainMillis = (System.nanoTime() - start) / 1e6;
+        //the word table stores every word, so its size is its vocabulary
+        report("words", weights.size(), weights.heapBytes(), trainMillis, weights, null, spamTests, hamTests,
+               rounds);
+
+        for (String spec : models.split(","))
+        {
+            String[] parts = spec.trim().split(":");
+            int order = Integer.parseInt(parts[0]);
+            int hashBits = Integer.parseInt(parts[1]);
+            start = System.nanoTime();
+            HashedNgramModel model = new HashedNgramModel(order, hashBits);
+            model.trainEmailSet(spamPath, true, null);
+            model.trainEmailSet(hamPath, false, null);
+            model.buildWeights(spamFiles, hamFiles);
+            trainMillis = (System.nanoTime() - start) / 1e6;
+            report(order + "-gram, " + hashBits + " bit", model.size(), model.weightBytes(), trainMillis, null,
+                   model, spamTests, hamTests, rounds);
+            System.out.printf("%-14s %9d slots hold a weight (%.1f%%)%n", "", model.getUsedSlots(),
+                              100.0 * model.getUsedSlots() / model.size());
+        }
+    }
+
+    /**
+     * Scores the testing emails with one model, the best of a few rounds for throughput, and prints its row
+     */
+    private static void report(String name, int slots, long weightBytes, double trainMillis, TokenWeights weights,
+                               HashedNgramModel model, byte[][] spamTests, byte[][] hamTests, int rounds)
+    {
+        double[] spamProbs = null;
+        double[] hamProbs = null;
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++)
+        {
+            long start = System.nanoTime();
+            spamProbs = score(weights, model, spamTests);
+            hamProbs = score(weights, model, hamTests);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        ConfusionMatrix matrix = Evaluation.evaluate(spamProbs, hamProbs, Evaluation.SPAM_THRESHOLD);
+        System.out.printf("%-14s %9d %9.1f %9.0f %12.0f %9.6f %9.6f %9.6f%n", name, slots, weightBytes / 1048576.0,
+                          trainMillis, (spamTests.length + hamTests.length) / (best / 1e9), matrix.getAccuracy(),
+                          matrix.getPrecision(), matrix.getAuc());
+    }
+
+    /**
+     * Gets the spam probability of every email with the word weights, or with the hashed model if they're null
+     */
+    private static double[] score(TokenWeights weights, HashedNgramModel model, byte[][] emails)
+    {
+        double[] probs = new double[emails.length];
+        TestFile tested = new TestFile("", 0.0, "");
+        for (int i = 0; i < emails.length; i++)
+        {
+            if (weights != null)
+            {
+                tested.getSpamEmailProbability(weights, emails[i], 0, emails[i].length);
+            }
+            else
+            {
+                tested.getSpamEmailProbability(model, ByteBuffer.wrap(emails[i]));
+            }
+            probs[i] = tested.getSpamProbability();
+        }
+        return probs;
+    }
+
+    private static byte[][] load(File directory) throws IOException
+    {
+        File[] emails = TrainFile.listEmails(directory);
+        byte[][] loaded = new byte[emails.length][];
+        for (int i = 0; i < emails.length; i++)
+        {
+            loaded[i] = Files.readAllBytes(emails[i].toPath());
+        }
+        return loaded;
+    }
+}
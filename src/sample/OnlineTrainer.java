@@ -0,0 +1,375 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spam filter that can learn or unlearn single emails while it keeps scoring,
+ * e.g. to apply "mark as spam" feedback without retraining on every email.
+ *
+ * The spam and ham document counts are kept in a TokenCounts, with the log-odds
+ * weight of every word next to it in an array indexed by the same word id.
+ * Learning an email only recomputes the words found in it, with the shared
+ * TokenCounts.spamicity.
+ * Word frequencies are taken over the email counts the trainer was built
+ * with, so the other words keep their weight; call rebuild() to renormalise
+ * everything over the current email counts.
+ *
+ * One read-write lock guards the tables: scoring takes the read lock and
+ * every learn or unlearn is applied as a whole under the write lock, so a
+ * score never mixes the counts from before and after an update. Emails are
+ * read and tokenized into their distinct words before the lock is taken, so
+ * the read lock is only held while the weights are summed and the write
+ * lock while the counters are updated.
+ *
+ * Only an email learned before can be unlearned, with the label it was
+ * learned with: every learned email is remembered by a keyed digest of its
+ * distinct words, so unlearning never takes off counts an email didn't add,
+ * such as those of the training folders.
+ *
+ * ClassifierServer --online serves a trainer, with LEARN and UNLEARN
+ * requests next to the usual scoring.
+ *
+ * @version 1.5
+ */
+
+public class OnlineTrainer
+{
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TokenCounts counts;
+    private double[] weights;
+    private int spamFiles;
+    private int hamFiles;
+    //times each learned email was learned, by the digest of its label and distinct words
+    private final HashMap<VerdictCache.Digest, Integer> learned = new HashMap<>();
+    private final long key0;
+    private final long key1;
+
+    /**
+     * OnlineTrainer constructor, the trainer takes over the counts and reads
+     * emails with their MIME setting
+     *
+     * @param counts    The spam and ham document frequencies of the training emails
+     */
+    public OnlineTrainer(TokenCounts counts)
+    {
+        this.counts = counts;
+        this.weights = new double[Math.max(4, counts.size())];
+        this.spamFiles = Math.max(1, counts.getEmailCount(true));
+        this.hamFiles = Math.max(1, counts.getEmailCount(false));
+        SecureRandom random = new SecureRandom();
+        this.key0 = random.nextLong();
+        this.key1 = random.nextLong();
+        for (int id = 0; id < counts.size(); id++)
+        {
+            weights[id] = weight(id);
+        }
+    }
+
+    /**
+     * Trains the spam and ham folders into a new online trainer
+     *
+     * @param spamPath      The location of the spam training emails
+     * @param hamPath       The location of the ham training emails
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
+     * @return              The trainer
+     */
+    public static OnlineTrainer train(String spamPath, String hamPath, int parallelism)
+    {
+        return new OnlineTrainer(TrainFile.trainCounts(spamPath, hamPath, parallelism, null));
+    }
+
+    /**
+     * Adds an email to the training counts
+     *
+     * @param email         The email to learn
+     * @param label         SPAM or HAM
+     * @throws IOException  If the email can't be read
+     */
+    public void learn(File email, String label) throws IOException
+    {
+        EmailWords emailWords = new EmailWords(true);
+        Tokenizer.tokenize(email, counts.isMimeAware(), emailWords);
+        update(emailWords, isSpam(label), 1);
+    }
+
+    /**
+     * Adds an email read from a stream to the training counts, the stream is not closed
+     *
+     * @param email         The email to learn
+     * @param label         SPAM or HAM
+     * @throws IOException  If the stream can't be read
+     */
+    public void learn(InputStream email, String label) throws IOException
+    {
+        EmailWords emailWords = new EmailWords(true);
+        Tokenizer.tokenize(email, counts.isMimeAware(), emailWords);
+        update(emailWords, isSpam(label), 1);
+    }
+
+    /**
+     * Removes an email that was learned before from the training counts,
+     * e.g. when it was learned with the wrong label
+     *
+     * @param email         The email to unlearn
+     * @param label         SPAM or HAM, the label it was learned with
+     * @return              True if it was unlearned, false if it wasn't learned with that label
+     * @throws IOException  If the email can't be read
+     */
+    public boolean unlearn(File email, String label) throws IOException
+    {
+        EmailWords emailWords = new EmailWords(true);
+        Tokenizer.tokenize(email, counts.isMimeAware(), emailWords);
+        return update(emailWords, isSpam(label), -1);
+    }
+
+    /**
+     * Removes an email read from a stream from the training counts, the stream is not closed
+     *
+     * @param email         The email to unlearn
+     * @param label         SPAM or HAM, the label it was learned with
+     * @return              True if it was unlearned, false if it wasn't learned with that label
+     * @throws IOException  If the stream can't be read
+     */
+    public boolean unlearn(InputStream email, String label) throws IOException
+    {
+        EmailWords emailWords = new EmailWords(true);
+        Tokenizer.tokenize(email, counts.isMimeAware(), emailWords);
+        return update(emailWords, isSpam(label), -1);
+    }
+
+    /**
+     * Scores an email against the current counts
+     *
+     * @param testFile  The TestFile that receives the spam probability
+     * @param email     The email being analyzed
+     */
+    public void score(TestFile testFile, File email)
+    {
+        EmailWords emailWords = new EmailWords(false);
+        try
+        {
+            Tokenizer.tokenize(email, counts.isMimeAware(), emailWords);
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        score(testFile, emailWords);
+    }
+
+    /**
+     * Scores an email read from a stream against the current counts, the stream is not closed
+     *
+     * @param testFile      The TestFile that receives the spam probability
+     * @param email         The email being analyzed
+     * @throws IOException  If the stream can't be read
+     */
+    public void score(TestFile testFile, InputStream email) throws IOException
+    {
+        EmailWords emailWords = new EmailWords(false);
+        Tokenizer.tokenize(email, counts.isMimeAware(), emailWords);
+        score(testFile, emailWords);
+    }
+
+    /**
+     * Sums the weights of the words of an email under the read lock
+     */
+    private void score(TestFile testFile, EmailWords emailWords)
+    {
+        double eta = 0.0;
+        lock.readLock().lock();
+        try
+        {
+            for (int i = 0; i < emailWords.words.size(); i++)
+            {
+                int id = counts.find(emailWords.words, i);
+                if (id >= 0)
+                {
+                    eta += weights[id] * emailWords.occurrences[i];
+                }
+            }
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+        testFile.setSpamProbability(1.0 / (1.0 + Math.pow(Math.E, eta)));
+    }
+
+    /**
+     * Takes the current email counts as the word frequency denominators and
+     * recomputes every word
+     */
+    public void rebuild()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            spamFiles = Math.max(1, counts.getEmailCount(true));
+            hamFiles = Math.max(1, counts.getEmailCount(false));
+            for (int id = 0; id < counts.size(); id++)
+            {
+                weights[id] = weight(id);
+            }
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the current word spam probability map, e.g. to save it as a model file
+     *
+     * @return  A probability map that is a record of words and their probability of being spam
+     */
+    public HashMap<String, Double> getWordSpamProbability()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return counts.toProbabilities(spamFiles, hamFiles);
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of emails learned so far
+     *
+     * @param label SPAM or HAM
+     * @return      The number of emails of that class
+     */
+    public int getEmailCount(String label)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return counts.getEmailCount(isSpam(label));
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the distinct words of an email under the write lock
+     *
+     * @return  False for an email to unlearn that wasn't learned, true otherwise
+     */
+    private boolean update(EmailWords email, boolean spam, int delta)
+    {
+        TokenTable emailWords = email.words;
+        VerdictCache.Digest digest = email.digest(key0, key1, spam);
+        lock.writeLock().lock();
+        try
+        {
+            Integer times = learned.get(digest);
+            if (delta < 0 && times == null)
+            {
+                return false;
+            }
+            if (delta < 0 && times == 1)
+            {
+                learned.remove(digest);
+            }
+            else
+            {
+                learned.put(digest, times == null ? 1 : times + delta);
+            }
+            counts.addEmail(emailWords, spam, delta);
+            if (counts.size() > weights.length)
+            {
+                weights = Arrays.copyOf(weights, Math.max(weights.length * 2, counts.size()));
+            }
+            for (int i = 0; i < emailWords.size(); i++)
+            {
+                int id = counts.find(emailWords, i);
+                if (id >= 0)
+                {
+                    weights[id] = weight(id);
+                }
+            }
+            return true;
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the log-odds weight of a word, 0.0 if it's left out of the model
+     */
+    private double weight(int id)
+    {
+        double p = counts.spamicity(id, spamFiles, hamFiles);
+        return Double.isNaN(p) ? 0.0 : Math.log(1 - p) - Math.log(p);
+    }
+
+    /**
+     * The distinct words of an email and how often each one occurs, gathered
+     * before the lock is taken
+     */
+    private static final class EmailWords implements Tokenizer.TokenSink
+    {
+        private final TokenTable words = new TokenTable(256);
+        private final boolean skipIgnored;
+        private int[] occurrences = new int[256];
+
+        EmailWords(boolean skipIgnored)
+        {
+            this.skipIgnored = skipIgnored;
+        }
+
+        @Override
+        public void token(byte[] buf, int off, int len)
+        {
+            if (skipIgnored && TrainFile.isIgnored(buf, off, len))
+            {
+                return;
+            }
+            int id = words.add(buf, off, len);
+            if (id >= occurrences.length)
+            {
+                occurrences = Arrays.copyOf(occurrences, occurrences.length * 2);
+            }
+            occurrences[id]++;
+        }
+
+        /**
+         * Gets the keyed digest of a label and the distinct words, each word
+         * hashed after its length so no two lists of words run together
+         */
+        VerdictCache.Digest digest(long key0, long key1, boolean spam)
+        {
+            VerdictCache.SipHash hash = new VerdictCache.SipHash(key0, key1);
+            hash.update((byte)(spam ? 1 : 0));
+            for (int id = 0; id < words.size(); id++)
+            {
+                byte[] word = words.token(id);
+                for (int shift = 24; shift >= 0; shift -= 8)
+                {
+                    hash.update((byte)(word.length >>> shift));
+                }
+                hash.update(word, 0, word.length);
+            }
+            return hash.finish();
+        }
+    }
+
+    private static boolean isSpam(String label)
+    {
+        if (label.equalsIgnoreCase("spam"))
+        {
+            return true;
+        }
+        if (label.equalsIgnoreCase("ham"))
+        {
+            return false;
+        }
+        throw new IllegalArgumentException("Label must be SPAM or HAM: " + label);
+    }
+}
@@ -0,0 +1,172 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Trains an email set on a fork-join pool. The directory listing is split
+ * into slices, every worker builds its own TokenCounts document frequency
+ * table, and the tables are summed on the way back up.
+ * Since each email adds at most 1 per word, the merged counts are exactly
+ * the counts of the serial loop.
+ *
+ * @version 1.4
+ */
+
+public class ParallelTrainer
+{
+    //smallest number of emails a worker scans on its own, larger listings are cut into
+    //a few slices per thread so the tables aren't merged more often than needed
+    private static final int MIN_SLICE_SIZE = 32;
+    private static final int SLICES_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * ParallelTrainer constructor
+     *
+     * @param parallelism   The number of worker threads to train with
+     */
+    public ParallelTrainer(int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Runs through a train email set and adds the word occurrences to emailMap
+     *
+     * @param emailMap      The email Hashmap that will record words and their occurrence in an email set
+     * @param directoryPath The location of emails
+     */
+    public void trainEmailSet(HashMap<String, Integer> emailMap, String directoryPath)
+    {
+        trainEmailSet(emailMap, directoryPath, null);
+    }
+
+    /**
+     * Runs through a train email set and adds the word occurrences to emailMap,
+     * reporting every scanned email. A cancelled run adds the emails scanned so far.
+     *
+     * @param emailMap      The email Hashmap that will record words and their occurrence in an email set
+     * @param directoryPath The location of emails
+     * @param listener      Receives the progress and can cancel the run, may be null
+     */
+    public void trainEmailSet(HashMap<String, Integer> emailMap, String directoryPath, ProgressListener listener)
+    {
+        TokenCounts counts = new TokenCounts(emailMap.size());
+        trainEmailSet(counts, directoryPath, true, listener);
+        counts.addTo(emailMap, true);
+    }
+
+    /**
+     * Runs through a train email set and adds the word occurrences to a TokenCounts,
+     * reporting every scanned email. A cancelled run adds the emails scanned so far.
+     *
+     * @param counts        The table that receives the counts
+     * @param directoryPath The location of emails
+     * @param spam          True if the emails are spam, false if ham
+     * @param listener      Receives the progress and can cancel the run, may be null
+     */
+    public void trainEmailSet(TokenCounts counts, String directoryPath, boolean spam, ProgressListener listener)
+    {
+        File[] emailDirListing;
+        try
+        {
+            emailDirListing = TrainFile.listEmails(new File(directoryPath));
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+            return;
+        }
+        int sliceSize = Math.max(MIN_SLICE_SIZE, emailDirListing.length / (getParallelism() * SLICES_PER_THREAD));
+        counts.addAll(pool.invoke(new ScanTask(emailDirListing, 0, emailDirListing.length, sliceSize, spam,
+                                               counts.isMimeAware(), listener)));
+    }
+
+    /**
+     * Shuts down the worker threads, the trainer can't be used afterwards
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Scans a slice of the directory listing into a private TokenCounts
+     */
+    private static class ScanTask extends RecursiveTask<TokenCounts>
+    {
+        private static final long serialVersionUID = 1L;
+
+        //words a slice is expected to hold before its table grows
+        private static final int EXPECTED_SLICE_WORDS = 1 << 14;
+
+        private final File[] emails;
+        private final int from;
+        private final int to;
+        private final int sliceSize;
+        private final boolean spam;
+        private final boolean mimeAware;
+        private final ProgressListener listener;
+
+        ScanTask(File[] emails, int from, int to, int sliceSize, boolean spam, boolean mimeAware,
+                 ProgressListener listener)
+        {
+            this.emails = emails;
+            this.from = from;
+            this.to = to;
+            this.sliceSize = sliceSize;
+            this.spam = spam;
+            this.mimeAware = mimeAware;
+            this.listener = listener;
+        }
+
+        @Override
+        protected TokenCounts compute()
+        {
+            if (to - from <= sliceSize)
+            {
+                TokenCounts counts = new TokenCounts(EXPECTED_SLICE_WORDS, mimeAware);
+                for (int i = from; i < to; i++)
+                {
+                    if (listener != null && listener.isCancelled())
+                    {
+                        break;
+                    }
+                    counts.scanEmail(emails[i], spam);
+                    if (listener != null)
+                    {
+                        listener.emailProcessed(emails[i], emails[i].length());
+                    }
+                }
+                return counts;
+            }
+
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(emails, from, middle, sliceSize, spam, mimeAware, listener);
+            left.fork();
+            TokenCounts right = new ScanTask(emails, middle, to, sliceSize, spam, mimeAware, listener).compute();
+            TokenCounts joined = left.join();
+
+            //merge the smaller table into the larger one
+            if (joined.size() < right.size())
+            {
+                right.addAll(joined);
+                return right;
+            }
+            joined.addAll(right);
+            return joined;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package sample;
+import java.io.File;
+
+/**
+ * Receives progress from a training or testing run and can ask it to stop.
+ * Training calls it from its worker threads, so implementations must be thread safe.
+ *
+ * @version 1.0
+ */
+
+public interface ProgressListener
+{
+    /**
+     * Called once an email has been processed
+     *
+     * @param email The email
+     * @param bytes The size of the email
+     */
+    void emailProcessed(File email, long bytes);
+
+    /**
+     * Checked before each email, the run stops early once this returns true
+     *
+     * @return  True if the run should stop
+     */
+    boolean isCancelled();
+}
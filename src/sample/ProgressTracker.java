@@ -0,0 +1,100 @@
+package sample;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the emails and bytes processed by a run and works out its
+ * throughput. Subclasses override progressChanged to show the progress.
+ *
+ * @version 1.0
+ */
+
+public class ProgressTracker implements ProgressListener
+{
+    private final long totalEmails;
+    private final AtomicLong emails = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean cancelled;
+
+    /**
+     * ProgressTracker constructor
+     *
+     * @param totalEmails   The number of emails the run will process
+     */
+    public ProgressTracker(long totalEmails)
+    {
+        this.totalEmails = totalEmails;
+    }
+
+    @Override
+    public void emailProcessed(File email, long size)
+    {
+        emails.incrementAndGet();
+        bytes.addAndGet(size);
+        progressChanged();
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+
+    /**
+     * Asks the run to stop before its next email
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+
+    /**
+     * Called after every processed email, from the thread that processed it
+     */
+    protected void progressChanged()
+    {
+    }
+
+    public long getEmails()
+    {
+        return emails.get();
+    }
+
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    public long getTotalEmails()
+    {
+        return this.totalEmails;
+    }
+
+    public double getEmailsPerSecond()
+    {
+        return emails.get() / elapsedSeconds();
+    }
+
+    public double getMegabytesPerSecond()
+    {
+        return bytes.get() / (1024.0 * 1024.0) / elapsedSeconds();
+    }
+
+    /**
+     * Gets the progress as a line of text
+     *
+     * @return  e.g. "1200/3250 emails, 850 emails/s, 5.1 MB/s"
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%d/%d emails, %.0f emails/s, %.1f MB/s", getEmails(), totalEmails,
+                             getEmailsPerSecond(), getMegabytesPerSecond());
+    }
+
+    private double elapsedSeconds()
+    {
+        return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+}
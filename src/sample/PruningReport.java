@@ -0,0 +1,152 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Trains once and builds models at a grid of VocabularyPruner settings,
+ * reporting for each: model words, model file size and load time, the share
+ * of testing email words missing from the model, scoring time and the
+ * accuracy and precision on the testing set.
+ *
+ * Usage: PruningReport [--emails DIR] [--min-df 1,2,3,5] [--max-words 0,5000,2000,1000,500]
+ *                      [--rank ig,logodds]
+ *
+ * @version 1.2
+ */
+
+public class PruningReport
+{
+    private static final int LOAD_RUNS = 5;
+
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        int[] minDfs = {1, 2, 3, 5};
+        int[] maxWords = {0, 5000, 2000, 1000, 500};
+        String[] rankings = {"ig", "logodds"};
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--min-df":
+                    minDfs = parseInts(args[i + 1]);
+                    break;
+                case "--max-words":
+                    maxWords = parseInts(args[i + 1]);
+                    break;
+                case "--rank":
+                    rankings = args[i + 1].split(",");
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        String spamPath = emailDir + "/training/spam";
+        String hamPath = emailDir + "/training/ham";
+        File[] spamTests = TrainFile.listEmails(new File(emailDir, "testing/spam"));
+        File[] hamTests = TrainFile.listEmails(new File(emailDir, "testing/ham"));
+        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        File modelFile = File.createTempFile("pruned", ".model");
+        modelFile.deleteOnExit();
+
+        //run the unpruned row once unseen, so the first row isn't measured before the JIT has run
+        report(new VocabularyPruner(1, 0, VocabularyPruner.INFORMATION_GAIN), counts, modelFile, spamTests, hamTests);
+
+        System.out.printf("%-36s %7s %10s %8s %7s %9s %9s %9s%n", "pruning", "words", "file", "load ms", "miss",
+                          "us/email", "accuracy", "precision");
+        for (int minDf : minDfs)
+        {
+            for (int max : maxWords)
+            {
+                for (String rank : max > 0 ? rankings : new String[]{rankings[0]})
+                {
+                    VocabularyPruner pruner = new VocabularyPruner(minDf, max, VocabularyPruner.parseRanking(rank));
+                    String row = report(pruner, counts, modelFile, spamTests, hamTests);
+                    System.out.printf("%-36s %s%n", max > 0 ? pruner.toString() : "min df " + minDf + ", max words all",
+                                      row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds, saves, loads and tests the model of one pruning setting
+     *
+     * @return  The measured columns of the report
+     */
+    private static String report(VocabularyPruner pruner, TokenCounts counts, File modelFile, File[] spamTests,
+                                 File[] hamTests) throws IOException
+    {
+        int spamFiles = counts.getEmailCount(true);
+        int hamFiles = counts.getEmailCount(false);
+        ModelFile.save(pruner.toProbabilities(counts, spamFiles, hamFiles), modelFile);
+
+        long start = System.nanoTime();
+        TokenWeights weights = null;
+        for (int run = 0; run < LOAD_RUNS; run++)
+        {
+            weights = ModelFile.loadWeights(modelFile);
+        }
+        double loadMillis = (System.nanoTime() - start) / 1e6 / LOAD_RUNS;
+
+        double missRate = missRate(weights, spamTests, hamTests);
+        TestFile[] tested = new TestFile[spamTests.length + hamTests.length];
+        start = System.nanoTime();
+        for (int t = 0; t < tested.length; t++)
+        {
+            File email = t < spamTests.length ? spamTests[t] : hamTests[t - spamTests.length];
+            tested[t] = new TestFile(email.getName(), 0.0, t < spamTests.length ? "SPAM" : "HAM");
+            tested[t].getSpamEmailProbability(weights, email);
+        }
+        double scoreMicros = (System.nanoTime() - start) / 1e3 / tested.length;
+
+        return String.format("%7d %10d %8.1f %6.1f%% %9.1f %9.6f %9.6f", weights.size(), modelFile.length(),
+                             loadMillis, 100 * missRate, scoreMicros, Evaluation.calcAccuracy(tested),
+                             Evaluation.calcPrecision(tested));
+    }
+
+    /**
+     * Gets the share of the words of the testing emails that aren't in the model
+     */
+    private static double missRate(final TokenWeights weights, File[] spam, File[] ham) throws IOException
+    {
+        final long[] lookups = {0, 0};
+        Tokenizer.TokenSink counter = new Tokenizer.TokenSink()
+        {
+            @Override
+            public void token(byte[] buf, int off, int len)
+            {
+                lookups[0]++;
+                if (!weights.contains(buf, off, len))
+                {
+                    lookups[1]++;
+                }
+            }
+        };
+        for (File email : spam)
+        {
+            Tokenizer.tokenize(email, counter);
+        }
+        for (File email : ham)
+        {
+            Tokenizer.tokenize(email, counter);
+        }
+        return lookups[0] == 0 ? 0.0 : (double)lookups[1] / lookups[0];
+    }
+
+    private static int[] parseInts(String list)
+    {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,369 @@
+package sample;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.util.Callback;
+
+/**
+ * The results table of a test run, built to stay responsive with hundreds
+ * of thousands of tested emails. The TableView only creates cells for the
+ * rows on screen; its cells read the TestFile getters directly instead of
+ * looking them up by reflection, and the spam probability is kept as a
+ * number and only formatted when its cell is drawn.
+ *
+ * Sorting by a column and filtering by class or spam probability are done
+ * on a worker thread over a copy of the results, and the rows shown are
+ * swapped in on the JavaFX thread when it's done. Only one such refresh
+ * runs at a time; results or settings that change meanwhile start another
+ * once it ends, and its now stale rows are dropped. While the table is
+ * neither sorted nor filtered, new results are added straight to the rows.
+ *
+ * Every method is called on the JavaFX thread.
+ *
+ * @version 1.0
+ */
+
+public class ResultsTable
+{
+    private static final String ALL_CLASSES = "ALL";
+
+    private static final Comparator<TestFile> BY_FILENAME = new Comparator<TestFile>()
+    {
+        @Override
+        public int compare(TestFile a, TestFile b)
+        {
+            return a.getFilename().compareTo(b.getFilename());
+        }
+    };
+    private static final Comparator<TestFile> BY_CLASS = new Comparator<TestFile>()
+    {
+        @Override
+        public int compare(TestFile a, TestFile b)
+        {
+            return a.getActualClass().compareTo(b.getActualClass());
+        }
+    };
+    private static final Comparator<TestFile> BY_PROBABILITY = new Comparator<TestFile>()
+    {
+        @Override
+        public int compare(TestFile a, TestFile b)
+        {
+            return Double.compare(a.getSpamProbability(), b.getSpamProbability());
+        }
+    };
+
+    private final Executor executor;
+    private final TableView<TestFile> table = new TableView<>();
+    private final TableColumn<TestFile, String> fileNameCol = new TableColumn<>("File");
+    private final TableColumn<TestFile, String> actualClassCol = new TableColumn<>("Actual Class");
+    private final TableColumn<TestFile, Double> spamProbCol = new TableColumn<>("Spam Probability");
+    private final Label countLabel = new Label("");
+
+    //every result in the order it was tested
+    private final ArrayList<TestFile> results = new ArrayList<>();
+    //the rows of the table, the results that pass the filter in the sort order
+    private final ObservableList<TestFile> rows = FXCollections.observableArrayList();
+
+    //null shows every class
+    private String classFilter;
+    private double minProbability = 0.0;
+    private double maxProbability = 1.0;
+    //null keeps the tested order
+    private Comparator<TestFile> order;
+    private boolean refreshing;
+    private boolean refreshPending;
+
+    /**
+     * ResultsTable constructor
+     *
+     * @param executor  Runs the sorting and filtering off the JavaFX thread
+     */
+    public ResultsTable(Executor executor)
+    {
+        this.executor = executor;
+
+        fileNameCol.setMinWidth(300.0);
+        fileNameCol.setCellValueFactory(new Callback<TableColumn.CellDataFeatures<TestFile, String>,
+                                                     ObservableValue<String>>()
+        {
+            @Override
+            public ObservableValue<String> call(TableColumn.CellDataFeatures<TestFile, String> cell)
+            {
+                return new ReadOnlyObjectWrapper<>(cell.getValue().getFilename());
+            }
+        });
+        actualClassCol.setMinWidth(100.0);
+        actualClassCol.setCellValueFactory(new Callback<TableColumn.CellDataFeatures<TestFile, String>,
+                                                        ObservableValue<String>>()
+        {
+            @Override
+            public ObservableValue<String> call(TableColumn.CellDataFeatures<TestFile, String> cell)
+            {
+                return new ReadOnlyObjectWrapper<>(cell.getValue().getActualClass());
+            }
+        });
+        spamProbCol.setMinWidth(300.0);
+        spamProbCol.setCellValueFactory(new Callback<TableColumn.CellDataFeatures<TestFile, Double>,
+                                                     ObservableValue<Double>>()
+        {
+            @Override
+            public ObservableValue<Double> call(TableColumn.CellDataFeatures<TestFile, Double> cell)
+            {
+                return new ReadOnlyObjectWrapper<>(cell.getValue().getSpamProbability());
+            }
+        });
+        //the probability is only turned into text for the cells on screen
+        spamProbCol.setCellFactory(new Callback<TableColumn<TestFile, Double>, TableCell<TestFile, Double>>()
+        {
+            @Override
+            public TableCell<TestFile, Double> call(TableColumn<TestFile, Double> column)
+            {
+                return new TableCell<TestFile, Double>()
+                {
+                    @Override
+                    protected void updateItem(Double item, boolean empty)
+                    {
+                        super.updateItem(item, empty);
+                        setText(empty || item == null ? null : TestFile.formatProbability(item));
+                    }
+                };
+            }
+        });
+        table.getColumns().add(fileNameCol);
+        table.getColumns().add(actualClassCol);
+        table.getColumns().add(spamProbCol);
+        table.setItems(rows);
+        //clicking a column header sorts a copy on the executor instead of the rows in place
+        table.setSortPolicy(new Callback<TableView<TestFile>, Boolean>()
+        {
+            @Override
+            public Boolean call(TableView<TestFile> sorted)
+            {
+                order = comparatorOf(sorted.getSortOrder());
+                refresh();
+                return true;
+            }
+        });
+    }
+
+    public TableView<TestFile> getTable()
+    {
+        return this.table;
+    }
+
+    /**
+     * Gets every result added so far, whether it passes the filter or not
+     *
+     * @return  The tested emails in the order they were added
+     */
+    public TestFile[] getResults()
+    {
+        return results.toArray(new TestFile[results.size()]);
+    }
+
+    /**
+     * Adds tested emails to the table
+     *
+     * @param tested    The tested emails
+     */
+    public void add(TestFile[] tested)
+    {
+        Collections.addAll(results, tested);
+        if (order != null || refreshing)
+        {
+            refresh();
+            return;
+        }
+        ArrayList<TestFile> shown = new ArrayList<>(tested.length);
+        for (TestFile testFile : tested)
+        {
+            if (matches(testFile, classFilter, minProbability, maxProbability))
+            {
+                shown.add(testFile);
+            }
+        }
+        rows.addAll(shown);
+        updateCount();
+    }
+
+    /**
+     * Shows only the results of a class within a range of spam probability
+     *
+     * @param actualClass   The class shown, HAM or SPAM, null for both
+     * @param min           The lowest spam probability shown
+     * @param max           The highest spam probability shown
+     */
+    public void setFilter(String actualClass, double min, double max)
+    {
+        this.classFilter = actualClass;
+        this.minProbability = min;
+        this.maxProbability = max;
+        refresh();
+    }
+
+    /**
+     * Creates the controls that filter the table and the count of rows shown
+     *
+     * @return  A bar with a class choice, a range of spam probability and the count
+     */
+    public HBox createFilterBar()
+    {
+        final ChoiceBox<String> classChoice = new ChoiceBox<>(FXCollections.observableArrayList(ALL_CLASSES, "HAM",
+                                                                                                 "SPAM"));
+        classChoice.setValue(ALL_CLASSES);
+        final TextField minField = new TextField("0.0");
+        minField.setPrefColumnCount(6);
+        final TextField maxField = new TextField("1.0");
+        maxField.setPrefColumnCount(6);
+
+        final EventHandler<ActionEvent> apply = new EventHandler<ActionEvent>()
+        {
+            @Override
+            public void handle(ActionEvent e)
+            {
+                String actualClass = classChoice.getValue();
+                setFilter(ALL_CLASSES.equals(actualClass) ? null : actualClass,
+                          parseProbability(minField.getText(), minProbability),
+                          parseProbability(maxField.getText(), maxProbability));
+            }
+        };
+        classChoice.valueProperty().addListener(new ChangeListener<String>()
+        {
+            @Override
+            public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
+            {
+                apply.handle(null);
+            }
+        });
+        minField.setOnAction(apply);
+        maxField.setOnAction(apply);
+
+        HBox bar = new HBox(5);
+        bar.getChildren().addAll(new Label("Class:"), classChoice, new Label("Spam probability from"), minField,
+                                 new Label("to"), maxField, countLabel);
+        return bar;
+    }
+
+    /**
+     * Filters and sorts a copy of the results on the executor and shows them,
+     * or marks that it must be done again once the refresh running now ends
+     */
+    private void refresh()
+    {
+        if (refreshing)
+        {
+            refreshPending = true;
+            return;
+        }
+        refreshing = true;
+        final TestFile[] snapshot = getResults();
+        final String actualClass = classFilter;
+        final double min = minProbability;
+        final double max = maxProbability;
+        final Comparator<TestFile> sortOrder = order;
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final ArrayList<TestFile> shown = new ArrayList<>();
+                for (TestFile testFile : snapshot)
+                {
+                    if (matches(testFile, actualClass, min, max))
+                    {
+                        shown.add(testFile);
+                    }
+                }
+                if (sortOrder != null)
+                {
+                    Collections.sort(shown, sortOrder);
+                }
+                Platform.runLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        refreshing = false;
+                        if (refreshPending)
+                        {
+                            refreshPending = false;
+                            refresh();
+                            return;
+                        }
+                        rows.setAll(shown);
+                        updateCount();
+                    }
+                });
+            }
+        });
+    }
+
+    private void updateCount()
+    {
+        countLabel.setText(rows.size() + " of " + results.size() + " emails");
+    }
+
+    /**
+     * Builds the order of the sorted columns, the first column first
+     *
+     * @param sortOrder The columns the table is sorted by
+     * @return          The comparator, null if the table isn't sorted
+     */
+    private Comparator<TestFile> comparatorOf(List<TableColumn<TestFile, ?>> sortOrder)
+    {
+        Comparator<TestFile> comparator = null;
+        for (TableColumn<TestFile, ?> column : sortOrder)
+        {
+            Comparator<TestFile> byColumn = column == spamProbCol ? BY_PROBABILITY
+                                          : column == actualClassCol ? BY_CLASS : BY_FILENAME;
+            if (column.getSortType() == TableColumn.SortType.DESCENDING)
+            {
+                byColumn = Collections.reverseOrder(byColumn);
+            }
+            comparator = comparator == null ? byColumn : comparator.thenComparing(byColumn);
+        }
+        return comparator;
+    }
+
+    private static boolean matches(TestFile testFile, String actualClass, double min, double max)
+    {
+        double p = testFile.getSpamProbability();
+        return (actualClass == null || actualClass.equals(testFile.getActualClass())) && p >= min && p <= max;
+    }
+
+    /**
+     * Reads a spam probability typed into a filter field
+     *
+     * @param text      The text of the field
+     * @param previous  The value kept if the text isn't a number
+     * @return          The probability
+     */
+    private static double parseProbability(String text, double previous)
+    {
+        try
+        {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException nfex)
+        {
+            return previous;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package sample;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Measures words scored per second by the HashMap scoring loop of
+ * TestFile.getSpamEmailProbability against the precomputed TokenWeights table.
+ * The testing emails are split into words once up front, as Strings for the
+ * HashMap and as byte slices for TokenWeights, so only the lookups and the
+ * eta sums are timed. Both loops must give the same eta.
+ *
+ * Usage: ScoringBenchmark [emailFilesDirectory]
+ *
+ * @version 1.2
+ */
+
+public class ScoringBenchmark
+{
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 20;
+
+    //keeps the JIT from dropping the scoring loops
+    private static double sink;
+
+    public static void main(String[] args)
+    {
+        String emailDir = args.length > 0 ? args[0] : "Email_Files";
+        HashMap<String, Double> probMap = TrainFile.trainModel(emailDir + "/training/spam",
+                                                               emailDir + "/training/ham", 1);
+        TokenWeights weights = TokenWeights.fromProbabilities(probMap);
+
+        ArrayList<Words> emails = new ArrayList<>();
+        long words = readWords(new File(emailDir + "/testing/spam"), emails)
+                     + readWords(new File(emailDir + "/testing/ham"), emails);
+
+        for (Words email : emails)
+        {
+            if (Double.compare(scoreMap(probMap, email), scoreWeights(weights, email)) != 0)
+            {
+                System.out.println("Error, TokenWeights scoring differs from the HashMap scoring");
+                System.exit(1);
+            }
+        }
+
+        double mapMillis = time(probMap, null, emails);
+        double weightMillis = time(null, weights, emails);
+        System.out.printf("%d emails, %d words%n", emails.size(), words);
+        System.out.printf("HashMap      %8.2f ms  %12.0f words/s%n", mapMillis, words / (mapMillis / 1000));
+        System.out.printf("TokenWeights %8.2f ms  %12.0f words/s  speedup %.2fx%n", weightMillis,
+                          words / (weightMillis / 1000), mapMillis / weightMillis);
+    }
+
+    /**
+     * The scoring loop of TestFile.getSpamEmailProbability over an email's words
+     */
+    private static double scoreMap(HashMap<String, Double> probMap, Words email)
+    {
+        String[] words = email.strings;
+        double eta = 0.0;
+        for (int i = 0; i < words.length; i++)
+        {
+            if ((probMap.get(words[i]) != null) && (probMap.get(words[i]) != 0.0))
+            {
+                eta += (Math.log(1 - probMap.get(words[i])) - Math.log(probMap.get(words[i])));
+            }
+        }
+        return eta;
+    }
+
+    /**
+     * The same sum with one TokenWeights lookup per word slice
+     */
+    private static double scoreWeights(TokenWeights weights, Words email)
+    {
+        double eta = 0.0;
+        int start = 0;
+        for (int i = 0; i < email.ends.length; i++)
+        {
+            eta += weights.get(email.bytes, start, email.ends[i] - start);
+            start = email.ends[i];
+        }
+        return eta;
+    }
+
+    /**
+     * Gets the average time to score every email, using the map when weights is null
+     */
+    private static double time(HashMap<String, Double> probMap, TokenWeights weights, ArrayList<Words> emails)
+    {
+        long start = 0;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++)
+        {
+            if (run == WARMUP_RUNS)
+            {
+                start = System.nanoTime();
+            }
+            for (Words email : emails)
+            {
+                sink += weights == null ? scoreMap(probMap, email) : scoreWeights(weights, email);
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / MEASURED_RUNS;
+    }
+
+    /**
+     * Splits every email in a directory into words with the Tokenizer, as TestFile does
+     *
+     * @return  The number of words read
+     */
+    private static long readWords(File directory, ArrayList<Words> emails)
+    {
+        File[] emailDirListing;
+        long words = 0;
+        try
+        {
+            emailDirListing = TrainFile.listEmails(directory);
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+            return words;
+        }
+        for (File email : emailDirListing)
+        {
+            final ArrayList<String> strings = new ArrayList<>();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ArrayList<Integer> ends = new ArrayList<>();
+            try
+            {
+                Tokenizer.tokenize(email, new Tokenizer.TokenSink()
+                {
+                    @Override
+                    public void token(byte[] buf, int off, int len)
+                    {
+                        strings.add(Tokenizer.toWord(buf, off, len));
+                        bytes.write(buf, off, len);
+                        ends.add(bytes.size());
+                    }
+                });
+            } catch (IOException ioex)
+            {
+                System.out.println(ioex.getMessage());
+            }
+            Words emailWords = new Words();
+            emailWords.strings = strings.toArray(new String[strings.size()]);
+            emailWords.bytes = bytes.toByteArray();
+            emailWords.ends = new int[ends.size()];
+            for (int i = 0; i < ends.size(); i++)
+            {
+                emailWords.ends[i] = ends.get(i);
+            }
+            emails.add(emailWords);
+            words += strings.size();
+        }
+        return words;
+    }
+
+    /**
+     * The words of one email, as Strings and as slices of one byte array
+     */
+    private static class Words
+    {
+        String[] strings;
+        byte[] bytes;
+        int[] ends;
+    }
+}
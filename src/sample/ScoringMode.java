@@ -0,0 +1,128 @@
+package sample;
+
+/**
+ * How much of an email TestFile reads before it gives its verdict. The full
+ * mode reads every byte and sums the weight of every word. The cheaper modes
+ * can combine three limits:
+ *
+ *   maxBytes        only a prefix of the email is read
+ *   topTokens       only the N distinct words with the largest |weight| are
+ *                   summed, the way Paul Graham's filter picks its 15 most
+ *                   interesting words
+ *   exitConfidence  reading stops as soon as the posterior is past this
+ *                   probability on either side, e.g. 0.999 stops once the
+ *                   email is 99.9% spam or 99.9% ham
+ *
+ * The confidence check runs after every chunk of the email, so an email
+ * stops at most one chunk past the point where it was decided.
+ *
+ * @version 1.1
+ */
+
+public class ScoringMode
+{
+    //chunk size of the full mode, large reads since it never stops early
+    private static final int FULL_CHUNK_SIZE = 1 << 16;
+    //chunk size of the other modes, small so an email stops soon after it's decided
+    private static final int EARLY_CHUNK_SIZE = 1 << 10;
+
+    /**
+     * Reads the whole email and sums every word
+     */
+    public static final ScoringMode FULL = new ScoringMode(0, 0, 0.0);
+
+    private final long maxBytes;
+    private final int topTokens;
+    private final double exitConfidence;
+    private final double exitEta;
+
+    /**
+     * ScoringMode constructor
+     *
+     * @param maxBytes          The number of bytes read at most, 0 for the whole email
+     * @param topTokens         The number of most decisive distinct words summed, 0 for every word
+     * @param exitConfidence    Posterior past which reading stops, between 0.5 and 1, 0 to never stop early
+     */
+    public ScoringMode(long maxBytes, int topTokens, double exitConfidence)
+    {
+        if (exitConfidence != 0.0 && (exitConfidence <= 0.5 || exitConfidence >= 1.0))
+        {
+            throw new IllegalArgumentException("Exit confidence must be between 0.5 and 1: " + exitConfidence);
+        }
+        this.maxBytes = maxBytes;
+        this.topTokens = topTokens;
+        this.exitConfidence = exitConfidence;
+        //spam probability is 1/(1+e^eta), so p is reached at |eta| = ln(p/(1-p))
+        this.exitEta = exitConfidence == 0.0 ? Double.POSITIVE_INFINITY
+                                             : Math.log(exitConfidence / (1 - exitConfidence));
+    }
+
+    public long getMaxBytes()
+    {
+        return this.maxBytes;
+    }
+
+    public int getTopTokens()
+    {
+        return this.topTokens;
+    }
+
+    public double getExitConfidence()
+    {
+        return this.exitConfidence;
+    }
+
+    /**
+     * Determines whether this mode reads every byte and sums every word
+     *
+     * @return  True for the full mode
+     */
+    public boolean isFull()
+    {
+        return maxBytes == 0 && topTokens == 0 && exitConfidence == 0.0;
+    }
+
+    /**
+     * Determines whether a running eta is far enough past the threshold to stop reading
+     *
+     * @param eta   The sum of the word weights so far
+     * @return      True if the email is decided
+     */
+    public boolean isDecided(double eta)
+    {
+        return exitConfidence != 0.0 && Math.abs(eta) >= exitEta;
+    }
+
+    /**
+     * Gets the size of the chunks an email is read in
+     *
+     * @return  The chunk size in bytes
+     */
+    public int getChunkSize()
+    {
+        return (maxBytes == 0 && exitConfidence == 0.0) ? FULL_CHUNK_SIZE : EARLY_CHUNK_SIZE;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (isFull())
+        {
+            return "full";
+        }
+        StringBuilder text = new StringBuilder();
+        if (maxBytes > 0)
+        {
+            text.append("prefix ").append(maxBytes).append(" B");
+        }
+        if (topTokens > 0)
+        {
+            text.append(text.length() > 0 ? ", " : "").append("top ").append(topTokens);
+        }
+        if (exitConfidence != 0.0)
+        {
+            text.append(text.length() > 0 ? ", " : "").append("exit at ").append(exitConfidence);
+        }
+        return text.toString();
+    }
+}
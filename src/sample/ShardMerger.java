@@ -0,0 +1,57 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Merges the count files written by ShardTrainer on every host into one
+ * model file, the model training on all their mail on one host gives. The
+ * count files are merged as streams, so the memory it takes grows with the
+ * number of files and not with the vocabulary.
+ *
+ * Usage: ShardMerger --model FILE COUNTFILE...
+ *
+ * @version 1.0
+ */
+
+public class ShardMerger
+{
+    public static void main(String[] args)
+    {
+        String modelPath = null;
+        int i;
+        for (i = 0; i + 1 < args.length && args[i].startsWith("--"); i += 2)
+        {
+            switch (args[i])
+            {
+                case "--model":
+                    modelPath = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (modelPath == null || i >= args.length)
+        {
+            System.err.println("Usage: ShardMerger --model FILE COUNTFILE...");
+            System.exit(2);
+        }
+        File[] shards = new File[args.length - i];
+        for (int s = 0; s < shards.length; s++)
+        {
+            shards[s] = new File(args[i + s]);
+        }
+
+        try
+        {
+            long start = System.nanoTime();
+            int words = CountFile.mergeModel(shards, new File(modelPath));
+            System.err.printf("Merged %d count files into %d words in %d ms%n", shards.length, words,
+                              (System.nanoTime() - start) / 1000000);
+        } catch (IOException ioex)
+        {
+            System.err.println(ioex.getMessage());
+            System.exit(1);
+        }
+    }
+}
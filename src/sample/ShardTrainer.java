@@ -0,0 +1,109 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Trains the slice of the corpus on this host into a count file, to be
+ * merged with the count files of the other hosts by ShardMerger. Only the
+ * counts leave the host, not the mail.
+ *
+ * With --shard I/N only every Nth email of each sorted folder is trained,
+ * starting at the Ith, which splits one corpus into N shards, e.g. to check
+ * that the merged shards give the model of the whole corpus.
+ *
+ * Usage: ShardTrainer --spam DIR --ham DIR --out FILE [--shard I/N] [--threads N]
+ *
+ * @version 1.2
+ */
+
+public class ShardTrainer
+{
+    public static void main(String[] args)
+    {
+        String spamPath = null;
+        String hamPath = null;
+        String outPath = null;
+        int shard = 0;
+        int shards = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--spam":
+                    spamPath = args[i + 1];
+                    break;
+                case "--ham":
+                    hamPath = args[i + 1];
+                    break;
+                case "--out":
+                    outPath = args[i + 1];
+                    break;
+                case "--shard":
+                    if (!args[i + 1].matches("\\d{1,9}/\\d{1,9}"))
+                    {
+                        //caught by the usage check below
+                        shards = 0;
+                        break;
+                    }
+                    String[] parts = args[i + 1].split("/");
+                    shard = Integer.parseInt(parts[0]);
+                    shards = Integer.parseInt(parts[1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (spamPath == null || hamPath == null || outPath == null || shard < 0 || shard >= shards
+            || args.length % 2 != 0)
+        {
+            System.err.println("Usage: ShardTrainer --spam DIR --ham DIR --out FILE [--shard I/N] [--threads N]");
+            System.exit(2);
+        }
+
+        try
+        {
+            long start = System.nanoTime();
+            TokenCounts counts;
+            if (shards == 1)
+            {
+                counts = TrainFile.trainCounts(spamPath, hamPath, threads, null);
+            }
+            else
+            {
+                counts = new TokenCounts(1 << 12);
+                trainSlice(counts, spamPath, true, shard, shards);
+                trainSlice(counts, hamPath, false, shard, shards);
+            }
+            CountFile.write(counts, new File(outPath));
+            System.err.printf("Wrote %d words of %d spam and %d ham emails to %s (%d bytes) in %d ms%n", counts.size(),
+                              counts.getEmailCount(true), counts.getEmailCount(false), outPath,
+                              new File(outPath).length(), (System.nanoTime() - start) / 1000000);
+        } catch (IOException ioex)
+        {
+            System.err.println(ioex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Trains every Nth email of a folder, starting at the Ith
+     */
+    private static void trainSlice(TokenCounts counts, String path, boolean spam, int shard, int shards)
+            throws IOException
+    {
+        if (MailArchive.isArchive(new File(path)))
+        {
+            throw new IOException("Error, could not list " + path + " as a folder of emails. Please verify paths.");
+        }
+        File[] emailDirListing = TrainFile.listEmails(new File(path));
+        for (int i = shard; i < emailDirListing.length; i += shards)
+        {
+            counts.scanEmail(emailDirListing[i], spam);
+        }
+    }
+}
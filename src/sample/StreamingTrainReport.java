@@ -0,0 +1,96 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares exact training with StreamingTrainer at a few memory budgets:
+ * words kept, heap, the sketch error bounds next to the error actually
+ * measured against the exact counts, and the accuracy and precision on the
+ * testing set.
+ *
+ * Usage: StreamingTrainReport [--emails DIR] [--budgets 0.5,1,4] (budgets in MB)
+ *
+ * @version 1.2
+ */
+
+public class StreamingTrainReport
+{
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        double[] budgets = {0.5, 1, 4};
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--budgets":
+                    String[] parts = args[i + 1].split(",");
+                    budgets = new double[parts.length];
+                    for (int b = 0; b < parts.length; b++)
+                    {
+                        budgets[b] = Double.parseDouble(parts[b].trim());
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        String spamPath = emailDir + "/training/spam";
+        String hamPath = emailDir + "/training/ham";
+        File[] spamTests = TrainFile.listEmails(new File(emailDir, "testing/spam"));
+        File[] hamTests = TrainFile.listEmails(new File(emailDir, "testing/ham"));
+
+        TokenCounts exact = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        int spamFiles = exact.getEmailCount(true);
+        int hamFiles = exact.getEmailCount(false);
+        TestFile[] tested = test(exact.toWeights(spamFiles, hamFiles), spamTests, hamTests);
+        System.out.printf("exact     %7d words  %,11d bytes  accuracy %.6f  precision %.6f%n", exact.size(),
+                          exact.heapBytes(), Evaluation.calcAccuracy(tested), Evaluation.calcPrecision(tested));
+
+        for (double budget : budgets)
+        {
+            StreamingTrainer trainer = StreamingTrainer.withMemoryBudget((long)(budget * 1024 * 1024));
+            trainer.trainEmailSet(spamPath, true, null);
+            trainer.trainEmailSet(hamPath, false, null);
+            TokenCounts counts = trainer.getCounts();
+            tested = test(counts.toWeights(trainer.getEmailCount(true), trainer.getEmailCount(false)), spamTests,
+                          hamTests);
+
+            //how far the kept counts are above the exact ones
+            long overcount = 0;
+            int maxOvercount = 0;
+            for (int id = 0; id < counts.size(); id++)
+            {
+                int exactId = exact.find(counts, id);
+                int over = counts.getCount(id, true) + counts.getCount(id, false)
+                           - exact.getCount(exactId, true) - exact.getCount(exactId, false);
+                overcount += over;
+                maxOvercount = Math.max(maxOvercount, over);
+            }
+
+            System.out.printf("%5.2f MB  %7d words  %,11d bytes  accuracy %.6f  precision %.6f%n", budget,
+                              counts.size(), trainer.heapBytes(), Evaluation.calcAccuracy(tested),
+                              Evaluation.calcPrecision(tested));
+            System.out.printf("          %s%n", trainer);
+            System.out.printf("          measured over-count: mean %.3f, max %d%n",
+                              counts.size() == 0 ? 0.0 : (double)overcount / counts.size(), maxOvercount);
+        }
+    }
+
+    private static TestFile[] test(TokenWeights weights, File[] spam, File[] ham)
+    {
+        TestFile[] tested = new TestFile[spam.length + ham.length];
+        for (int i = 0; i < tested.length; i++)
+        {
+            File email = i < spam.length ? spam[i] : ham[i - spam.length];
+            tested[i] = new TestFile(email.getName(), 0.0, i < spam.length ? "SPAM" : "HAM");
+            tested[i].getSpamEmailProbability(weights, email);
+        }
+        return tested;
+    }
+}
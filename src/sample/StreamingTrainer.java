@@ -0,0 +1,296 @@
+package sample;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Trains within a fixed memory budget, for archives too large to keep a
+ * count of every word ever seen. The document frequencies of all words go
+ * into a spam and a ham CountMinSketch of fixed size, and only the most
+ * frequent words are counted exactly in a TokenCounts of bounded size.
+ *
+ * A word that isn't kept yet is taken in with its sketch estimates as its
+ * counts, and counted exactly from then on. Once the table holds twice the
+ * words it may keep, it's cut back to the most frequent ones, and from then
+ * on a new word is only taken in if its estimate is at least the smallest
+ * count kept. The counts of the kept words are therefore too high by at most
+ * the error bound of the sketches.
+ *
+ * Hashes, ids and base64 fragments seen once or twice never stay in the
+ * table, so the heap stays the same however many emails are trained.
+ * Mboxes, gzip files and Maildirs are read through MailArchive.
+ *
+ * @version 1.1
+ */
+
+public class StreamingTrainer
+{
+    private static final int SKETCH_DEPTH = 4;
+    //heap a counted word takes in a TokenCounts, about, used to split a memory budget
+    private static final int BYTES_PER_WORD = 64;
+
+    private final CountMinSketch spamSketch;
+    private final CountMinSketch hamSketch;
+    private final int maxWords;
+    private TokenCounts kept;
+    //smallest count a new word needs to be taken in once the table has been cut back
+    private int admission;
+    private int compactions;
+    private int spamEmails;
+    private int hamEmails;
+    //distinct words of the email being scanned
+    private final TokenTable emailWords = new TokenTable(1024);
+    private final Tokenizer.TokenSink emailWordCollector = new Tokenizer.TokenSink()
+    {
+        @Override
+        public void token(byte[] buf, int off, int len)
+        {
+            if (!TrainFile.isIgnored(buf, off, len))
+            {
+                emailWords.add(buf, off, len);
+            }
+        }
+    };
+
+    /**
+     * StreamingTrainer constructor
+     *
+     * @param maxWords      The number of words counted exactly
+     * @param sketchWidth   The number of counters per row of each sketch
+     */
+    public StreamingTrainer(int maxWords, int sketchWidth)
+    {
+        if (maxWords < 1)
+        {
+            throw new IllegalArgumentException("At least one word must be kept: " + maxWords);
+        }
+        this.maxWords = maxWords;
+        this.spamSketch = new CountMinSketch(sketchWidth, SKETCH_DEPTH);
+        this.hamSketch = new CountMinSketch(sketchWidth, SKETCH_DEPTH);
+        this.kept = new TokenCounts(maxWords);
+    }
+
+    /**
+     * Builds a trainer that spends half of a memory budget on the sketches and
+     * half on the words counted exactly
+     *
+     * @param budgetBytes   The heap the trainer may take, in bytes
+     * @return              The trainer
+     */
+    public static StreamingTrainer withMemoryBudget(long budgetBytes)
+    {
+        long half = budgetBytes / 2;
+        int sketchWidth = (int)Math.max(1, Math.min(Integer.MAX_VALUE / SKETCH_DEPTH, half / (2L * SKETCH_DEPTH * 4)));
+        //the table grows to twice the kept words before it's cut back
+        int maxWords = (int)Math.max(1, Math.min(Integer.MAX_VALUE / 2, half / (2L * BYTES_PER_WORD)));
+        return new StreamingTrainer(maxWords, sketchWidth);
+    }
+
+    /**
+     * Record the distinct words of an email in the sketches and the kept words
+     *
+     * @param email The email that will be analyzed
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(File email, boolean spam)
+    {
+        emailWords.clear();
+        try
+        {
+            Tokenizer.tokenize(email, emailWordCollector);
+        } catch(FileNotFoundException e)
+        {
+            System.out.println("Error, file not found. Please verify paths.");
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        countEmailWords(spam);
+    }
+
+    /**
+     * Record the distinct words of an email held in a buffer, such as an mbox
+     * message, in the sketches and the kept words
+     *
+     * @param email The bytes of the email, its position is moved to its limit
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(ByteBuffer email, boolean spam)
+    {
+        emailWords.clear();
+        Tokenizer.tokenize(email, emailWordCollector);
+        countEmailWords(spam);
+    }
+
+    private void countEmailWords(boolean spam)
+    {
+        CountMinSketch sketch = spam ? spamSketch : hamSketch;
+        for (int id = 0; id < emailWords.size(); id++)
+        {
+            int hash = emailWords.tokenHash(id);
+            int estimate = sketch.add(hash);
+            int keptId = kept.find(emailWords, id);
+            if (keptId >= 0)
+            {
+                kept.increment(keptId, spam);
+                continue;
+            }
+            int spamEstimate = spam ? estimate : spamSketch.estimate(hash);
+            int hamEstimate = spam ? hamSketch.estimate(hash) : estimate;
+            if (spamEstimate + hamEstimate >= admission)
+            {
+                kept.add(emailWords, id, spamEstimate, hamEstimate);
+            }
+        }
+        if (spam)
+        {
+            spamEmails++;
+        }
+        else
+        {
+            hamEmails++;
+        }
+
+        if (kept.size() >= 2 * maxWords)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Runs through a train email set, reporting every scanned email.
+     * A cancelled run keeps the words of the emails scanned so far.
+     *
+     * @param directoryPath The location of emails, or of an mbox, gzip file or Maildir
+     * @param spam          True if the emails are spam, false if ham
+     * @param listener      Receives the progress and can cancel the run, may be null
+     * @throws IOException  If the emails can't be listed or the archive can't be read
+     */
+    public void trainEmailSet(String directoryPath, final boolean spam, ProgressListener listener) throws IOException
+    {
+        File path = new File(directoryPath);
+        if (MailArchive.isArchive(path))
+        {
+            MailArchive.read(path, new MailArchive.MessageSink()
+            {
+                @Override
+                public void message(File source, String name, ByteBuffer message)
+                {
+                    scanEmail(message, spam);
+                }
+            }, listener);
+            return;
+        }
+        for (File email : TrainFile.listEmails(path))
+        {
+            if (listener != null && listener.isCancelled())
+            {
+                return;
+            }
+            scanEmail(email, spam);
+            if (listener != null)
+            {
+                listener.emailProcessed(email, email.length());
+            }
+        }
+    }
+
+    /**
+     * Gets the counts of the most frequent words
+     *
+     * @return  At most maxWords words with their counts
+     */
+    public TokenCounts getCounts()
+    {
+        return kept.retainTop(maxWords);
+    }
+
+    /**
+     * Builds the word spam probability map from the kept words
+     *
+     * @param spamFiles The number of spam emails the frequencies are taken over
+     * @param hamFiles  The number of ham emails the frequencies are taken over
+     * @return          A probability map that is a record of words and their probability of being spam
+     */
+    public HashMap<String, Double> toProbabilities(int spamFiles, int hamFiles)
+    {
+        return getCounts().toProbabilities(spamFiles, hamFiles);
+    }
+
+    /**
+     * Gets the amount a kept spam count is too high by at most, with
+     * probability 1 - getFailureProbability()
+     *
+     * @return  The error bound of the spam sketch
+     */
+    public double getSpamErrorBound()
+    {
+        return spamSketch.getErrorBound();
+    }
+
+    /**
+     * Gets the amount a kept ham count is too high by at most, with
+     * probability 1 - getFailureProbability()
+     *
+     * @return  The error bound of the ham sketch
+     */
+    public double getHamErrorBound()
+    {
+        return hamSketch.getErrorBound();
+    }
+
+    public double getFailureProbability()
+    {
+        return spamSketch.getFailureProbability();
+    }
+
+    public int getMaxWords()
+    {
+        return this.maxWords;
+    }
+
+    /**
+     * Gets the number of emails scanned
+     *
+     * @param spam  True for the spam emails, false for the ham emails
+     * @return      The number of emails of that class
+     */
+    public int getEmailCount(boolean spam)
+    {
+        return spam ? spamEmails : hamEmails;
+    }
+
+    /**
+     * Gets the heap taken by the sketches and the kept words, for memory reports
+     *
+     * @return  The size of the arrays in bytes, without object headers
+     */
+    public long heapBytes()
+    {
+        return spamSketch.heapBytes() + hamSketch.heapBytes() + kept.heapBytes() + emailWords.heapBytes();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d of at most %d words kept after %d cuts, sketches %dx%d, "
+                             + "counts too high by at most %.1f spam / %.1f ham with probability %.3f",
+                             Math.min(kept.size(), maxWords), maxWords, compactions, SKETCH_DEPTH,
+                             spamSketch.getWidth(), getSpamErrorBound(), getHamErrorBound(),
+                             1 - getFailureProbability());
+    }
+
+    /**
+     * Cuts the table back to the most frequent words and raises the count new words need
+     */
+    private void compact()
+    {
+        kept = kept.retainTop(maxWords);
+        admission = Integer.MAX_VALUE;
+        for (int id = 0; id < kept.size(); id++)
+        {
+            admission = Math.min(admission, kept.getCount(id, true) + kept.getCount(id, false));
+        }
+        compactions++;
+    }
+}
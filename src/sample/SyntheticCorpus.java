@@ -0,0 +1,204 @@
+package sample;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates larger email corpora that look like the bundled one, for
+ * benchmarking at 10x or 100x its size. The words of each class are drawn
+ * from the word frequencies of the bundled spam or ham emails, the lengths
+ * from the lengths of real emails, and a small share of never seen words
+ * is mixed in so the vocabulary keeps growing with the corpus the way real
+ * mail does.
+ *
+ * The corpus is written in the usual training/testing spam/ham layout and
+ * kept between runs; a marker file records the scale and seed it was made with.
+ *
+ * @version 1.0
+ */
+
+public class SyntheticCorpus
+{
+    //share of generated words that are new random words
+    private static final double NEW_WORD_RATE = 0.02;
+    private static final int WORDS_PER_LINE = 12;
+    private static final String MARKER_FILE = ".synthetic";
+    private static final String[] FOLDERS = {"training/spam", "training/ham", "testing/spam", "testing/ham"};
+
+    private final WordDistribution spamWords;
+    private final WordDistribution hamWords;
+    private final int[] folderSizes = new int[FOLDERS.length];
+
+    /**
+     * Learns the word frequencies and email lengths of a corpus
+     *
+     * @param emailDir      The directory holding the training and testing folders
+     * @throws IOException  If an email can't be read
+     */
+    public SyntheticCorpus(File emailDir) throws IOException
+    {
+        this.spamWords = new WordDistribution();
+        this.hamWords = new WordDistribution();
+        for (int f = 0; f < FOLDERS.length; f++)
+        {
+            File[] emails = new File(emailDir, FOLDERS[f]).listFiles();
+            if (emails == null)
+            {
+                throw new IOException("Error, could not list " + new File(emailDir, FOLDERS[f]) + ". Please verify paths.");
+            }
+            folderSizes[f] = emails.length;
+            WordDistribution words = FOLDERS[f].endsWith("spam") ? spamWords : hamWords;
+            for (File email : emails)
+            {
+                words.addEmail(email);
+            }
+        }
+        spamWords.seal();
+        hamWords.seal();
+    }
+
+    /**
+     * Writes a corpus with scale times as many emails as the learned one,
+     * unless the directory already holds one made with the same scale and seed
+     *
+     * @param targetDir     Where the training and testing folders are written
+     * @param scale         How many times larger than the learned corpus
+     * @param seed          Seed of the random generator, the same seed gives the same corpus
+     * @throws IOException  If the corpus can't be written
+     */
+    public void generate(File targetDir, int scale, long seed) throws IOException
+    {
+        File marker = new File(targetDir, MARKER_FILE);
+        String markerText = "scale=" + scale + " seed=" + seed;
+        if (marker.isFile() && markerText.equals(readMarker(marker)))
+        {
+            return;
+        }
+
+        Random rnd = new Random(seed);
+        for (int f = 0; f < FOLDERS.length; f++)
+        {
+            File folder = new File(targetDir, FOLDERS[f]);
+            if (!folder.isDirectory() && !folder.mkdirs())
+            {
+                throw new IOException("Error, could not create " + folder);
+            }
+            WordDistribution words = FOLDERS[f].endsWith("spam") ? spamWords : hamWords;
+            int count = folderSizes[f] * scale;
+            for (int i = 0; i < count; i++)
+            {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                        new File(folder, String.format("%07d.synthetic", i))));
+                try
+                {
+                    words.writeEmail(rnd, out);
+                } finally
+                {
+                    out.close();
+                }
+            }
+        }
+
+        Writer markerOut = new FileWriter(marker);
+        markerOut.write(markerText);
+        markerOut.close();
+    }
+
+    private static String readMarker(File marker) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(marker));
+        try
+        {
+            return in.readLine();
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Word frequencies and email lengths of one class of email
+     */
+    private static class WordDistribution
+    {
+        private final TokenTable words = new TokenTable(1 << 16);
+        private long[] counts = new long[1 << 16];
+        private int[] lengths = new int[256];
+        private int emails;
+        private long total;
+
+        void addEmail(File email) throws IOException
+        {
+            final int[] length = {0};
+            Tokenizer.tokenize(email, new Tokenizer.TokenSink()
+            {
+                @Override
+                public void token(byte[] buf, int off, int len)
+                {
+                    int id = words.add(buf, off, len);
+                    if (id >= counts.length)
+                    {
+                        counts = Arrays.copyOf(counts, counts.length * 2);
+                    }
+                    counts[id]++;
+                    length[0]++;
+                }
+            });
+            if (emails == lengths.length)
+            {
+                lengths = Arrays.copyOf(lengths, emails * 2);
+            }
+            lengths[emails++] = length[0];
+        }
+
+        /**
+         * Turns the counts into running totals so a word can be drawn with a binary search
+         */
+        void seal()
+        {
+            for (int id = 0; id < words.size(); id++)
+            {
+                total += counts[id];
+                counts[id] = total;
+            }
+        }
+
+        void writeEmail(Random rnd, OutputStream out) throws IOException
+        {
+            int length = lengths[rnd.nextInt(emails)];
+            for (int i = 0; i < length; i++)
+            {
+                if (rnd.nextDouble() < NEW_WORD_RATE)
+                {
+                    out.write(Tokenizer.toBytes("w" + Long.toString(rnd.nextLong() & 0xFFFFFFFFFFL, 36)));
+                }
+                else
+                {
+                    words.writeToken(draw(rnd), out);
+                }
+                out.write((i + 1) % WORDS_PER_LINE == 0 ? '\n' : ' ');
+            }
+            out.write('\n');
+        }
+
+        private int draw(Random rnd)
+        {
+            long target = (long)(rnd.nextDouble() * total);
+            int low = 0;
+            int high = words.size() - 1;
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (counts[middle] <= target)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
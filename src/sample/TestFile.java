@@ -1,21 +1,37 @@
 package sample;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.text.NumberFormat;
 import java.util.HashMap;
 
 /**
  * @author  Joshua  Lemmon  joshua.lemmon@uoit.net
  * @author  Tony    Wu      tony.wu@uoit.net
- * @version 1.6
+ * @version 1.16
  * @since   2016-03-02
  */
 
 public class TestFile
 {
+    //one formatter per thread, a NumberFormat can't be shared between threads
+    private static final ThreadLocal<NumberFormat> PROBABILITY_FORMAT = new ThreadLocal<NumberFormat>()
+    {
+        @Override
+        protected NumberFormat initialValue()
+        {
+            NumberFormat nf = NumberFormat.getNumberInstance();
+            nf.setMaximumFractionDigits(6);
+            nf.setMinimumFractionDigits(6);
+            return nf;
+        }
+    };
+
     private String filename;
     private double spamProbability;
-    private String spamProbFormatted;
     private String actualClass;
+    private long bytesRead;
+    private boolean earlyExit;
 
     /**
      * Testfile constructor
@@ -29,7 +45,6 @@ public class TestFile
         this.filename = filename;
         this.spamProbability = spamProbability;
         this.actualClass = actualClass;
-        this.spamProbFormatted = " ";
     }
 
     /**
@@ -40,9 +55,16 @@ public class TestFile
         return this.filename;
     }
 
+    /**
+     * Gets the spam probability formatted to six decimal places. It's
+     * formatted on every call rather than kept, so a row of the results
+     * table doesn't hold a String it may never show.
+     *
+     * @return  The formatted spam probability
+     */
     public String getSpamProbFormatted()
     {
-        return this.spamProbFormatted;
+        return formatProbability(this.spamProbability);
     }
 
     public double getSpamProbability()
@@ -65,25 +87,40 @@ public class TestFile
         this.spamProbability = val;
     }
 
-    public void setActualClass(String value)
+    /**
+     * Gets the number of email bytes read by the last scoring
+     *
+     * @return  The bytes read
+     */
+    public long getBytesRead()
     {
-        this.actualClass = value;
+        return this.bytesRead;
+    }
+
+    /**
+     * Determines whether the last scoring stopped before the end of the email
+     *
+     * @return  True if the email wasn't read to its end
+     */
+    public boolean isEarlyExit()
+    {
+        return this.earlyExit;
     }
 
-    public void setSpamProbFormatted(String value)
+    public void setActualClass(String value)
     {
-        this.spamProbFormatted = value;
+        this.actualClass = value;
     }
 
     /**
-     * This function formats the spam probability to six decimal places
+     * Formats a spam probability to six decimal places with a formatter shared by the calling thread
+     *
+     * @param spamProbability   The probability
+     * @return                  The formatted probability
      */
-    public void getSpamProbRounded()
+    public static String formatProbability(double spamProbability)
     {
-        NumberFormat nf = NumberFormat.getNumberInstance();
-        nf.setMaximumFractionDigits(6);
-        nf.setMinimumFractionDigits(6);
-        this.spamProbFormatted = nf.format(spamProbability);
+        return PROBABILITY_FORMAT.get().format(spamProbability);
     }
 
     /**
@@ -91,34 +128,365 @@ public class TestFile
      *
      * @param probMap   A hashmap of probable spam words
      * @param email     The email being analyzed
-     * @return          The probability of a spam file
      */
-    public void getSpamEmailProbability(HashMap<String, Double> probMap, File email)
+    public void getSpamEmailProbability(final HashMap<String, Double> probMap, File email)
     {
-        double eta = 0.0;
-        String line;
+        long start = Metrics.start();
+        final double[] eta = {0.0};
+        //words and words found in the map, for the metrics
+        final int[] lookups = {0, 0};
+        long bytes = 0;
 
         try
         {
-            FileReader fileChecker = new FileReader(email);
-            BufferedReader check = new BufferedReader(fileChecker);
+            bytes = Tokenizer.tokenize(email, new Tokenizer.TokenSink()
+            {
+                @Override
+                public void token(byte[] buf, int off, int len)
+                {
+                    lookups[0]++;
+                    Double p = probMap.get(Tokenizer.toWord(buf, off, len));
+                    if (p != null)
+                    {
+                        lookups[1]++;
+                    }
+                    if ((p != null) && (p != 0.0))
+                    {
+                        eta[0] += (Math.log(1 - p) - Math.log(p));
+                    }
+                }
+            });
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+
+        this.spamProbability = 1.0 / (1.0 + Math.pow(Math.E, eta[0]));
+        Metrics.emailClassified(start, bytes, lookups[0], lookups[1]);
+    }
+
+    /**
+     * Gets the probability that an email is spam using precomputed log-odds weights,
+     * one lookup and one add per word straight on the email bytes
+     *
+     * @param weights   The log-odds weights of probable spam words
+     * @param email     The email being analyzed
+     */
+    public void getSpamEmailProbability(TokenWeights weights, File email)
+    {
+        getSpamEmailProbability(weights, email, ScoringMode.FULL);
+    }
 
-            while ((line = check.readLine()) != null)
+    /**
+     * Gets the probability that an email is spam, reading only as much of it as
+     * the scoring mode asks for. The bytes read and whether reading stopped
+     * before the end are recorded with the result.
+     *
+     * @param weights   The log-odds weights of probable spam words
+     * @param email     The email being analyzed
+     * @param mode      How much of the email is read and which words are summed
+     */
+    public void getSpamEmailProbability(TokenWeights weights, File email, ScoringMode mode)
+    {
+        long start = Metrics.start();
+        EtaSink eta = mode.getTopTokens() > 0 ? new TopTokensSink(weights, mode.getTopTokens()) : new EtaSink(weights);
+        ByteSink tokenizer = Tokenizer.forMessage(eta, weights.isMimeAware());
+        this.bytesRead = 0;
+        this.earlyExit = false;
+
+        try
+        {
+            InputStream in = new FileInputStream(email);
+            try
             {
-                String[] currLine = line.split(" ");
-                for (int i = 0; i < currLine.length; i++)
+                byte[] buffer = new byte[(int)Math.max(1, Math.min(email.length(), mode.getChunkSize()))];
+                long limit = mode.getMaxBytes() > 0 ? mode.getMaxBytes() : Long.MAX_VALUE;
+                int read;
+                while ((read = in.read(buffer, 0, (int)Math.min(buffer.length, limit - bytesRead))) > 0)
                 {
-                    if ((probMap.get(currLine[i]) != null) && (probMap.get(currLine[i]) != 0.0))
+                    tokenizer.feed(buffer, 0, read);
+                    bytesRead += read;
+                    if (mode.isDecided(eta.eta()) || bytesRead >= limit)
                     {
-                        eta += (Math.log(1 - probMap.get(currLine[i])) - Math.log(probMap.get(currLine[i])));
+                        //anything left unread means the email was cut short
+                        earlyExit = in.read() != -1;
+                        break;
                     }
                 }
+                if (!earlyExit)
+                {
+                    tokenizer.finish();
+                }
+            } finally
+            {
+                in.close();
             }
         } catch (IOException ioex)
         {
             System.out.println(ioex.getMessage());
         }
 
-        this.spamProbability = 1.0 / (1.0 + Math.pow(Math.E, eta));
+        this.spamProbability = eta.probability();
+        Metrics.emailClassified(start, bytesRead, eta.tokens, eta.hits);
+    }
+
+    /**
+     * Gets the probability that an email read from a stream is spam, e.g. a message
+     * sent over a socket. The stream is read to its end but not closed.
+     *
+     * @param weights       The log-odds weights of probable spam words
+     * @param email         The email being analyzed
+     * @throws IOException  If the stream can't be read
+     */
+    public void getSpamEmailProbability(TokenWeights weights, InputStream email) throws IOException
+    {
+        long start = Metrics.start();
+        EtaSink eta = new EtaSink(weights);
+        long bytes = Tokenizer.tokenize(email, weights.isMimeAware(), eta);
+        this.spamProbability = eta.probability();
+        Metrics.emailClassified(start, bytes, eta.tokens, eta.hits);
+    }
+
+    /**
+     * Gets the probability that an email held in a buffer is spam, such as a
+     * message of a memory mapped mbox
+     *
+     * @param weights   The log-odds weights of probable spam words
+     * @param email     The bytes of the email, its position is moved to its limit
+     */
+    public void getSpamEmailProbability(TokenWeights weights, ByteBuffer email)
+    {
+        long start = Metrics.start();
+        EtaSink eta = new EtaSink(weights);
+        this.bytesRead = email.remaining();
+        this.earlyExit = false;
+        Tokenizer.tokenize(email, weights.isMimeAware(), eta);
+        this.spamProbability = eta.probability();
+        Metrics.emailClassified(start, bytesRead, eta.tokens, eta.hits);
+    }
+
+    /**
+     * Gets the probability that an email held in a buffer is spam, taking it from
+     * the verdict cache when a message the parser reads the same text from was
+     * scored before. On a miss the email is scored and its verdict cached.
+     *
+     * @param weights   The log-odds weights of probable spam words
+     * @param email     The bytes of the email, its position is moved to its limit
+     * @param verdicts  The verdicts of the messages scored before
+     */
+    public void getSpamEmailProbability(TokenWeights weights, ByteBuffer email, VerdictCache verdicts)
+    {
+        long start = Metrics.start();
+        VerdictCache.Digest digest = verdicts.digest(email, weights.isMimeAware());
+        Double cached = verdicts.get(weights, digest);
+        if (cached != null)
+        {
+            this.spamProbability = cached;
+            this.bytesRead = email.remaining();
+            this.earlyExit = false;
+            email.position(email.limit());
+            Metrics.emailClassified(start, bytesRead, -1, 0);
+            return;
+        }
+        long scoreStart = System.nanoTime();
+        getSpamEmailProbability(weights, email);
+        verdicts.put(weights, digest, this.spamProbability, System.nanoTime() - scoreStart);
+    }
+
+    /**
+     * Gets the probability that an email is spam through the verdict cache. The
+     * whole email is read into memory to be digested, an email longer than
+     * VerdictCache.DEFAULT_MAX_MESSAGE_BYTES is scored as it is read without the cache.
+     *
+     * @param weights   The log-odds weights of probable spam words
+     * @param email     The email being analyzed
+     * @param verdicts  The verdicts of the messages scored before
+     */
+    public void getSpamEmailProbability(TokenWeights weights, File email, VerdictCache verdicts)
+    {
+        if (email.length() > VerdictCache.DEFAULT_MAX_MESSAGE_BYTES)
+        {
+            getSpamEmailProbability(weights, email);
+            return;
+        }
+        try
+        {
+            getSpamEmailProbability(weights, ByteBuffer.wrap(Files.readAllBytes(email.toPath())), verdicts);
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Gets the probability that an email held in memory is spam
+     *
+     * @param weights   The log-odds weights of probable spam words
+     * @param email     The bytes of the email being analyzed
+     * @param off       Where the email starts
+     * @param len       The length of the email
+     */
+    public void getSpamEmailProbability(TokenWeights weights, byte[] email, int off, int len)
+    {
+        long start = Metrics.start();
+        EtaSink eta = new EtaSink(weights);
+        ByteSink tokenizer = Tokenizer.forMessage(eta, weights.isMimeAware());
+        tokenizer.feed(email, off, len);
+        tokenizer.finish();
+        this.spamProbability = eta.probability();
+        this.bytesRead = len;
+        this.earlyExit = false;
+        Metrics.emailClassified(start, len, eta.tokens, eta.hits);
+    }
+
+    /**
+     * Gets the probability that an email held in a buffer is spam from the
+     * weights of its hashed word n-grams
+     *
+     * @param model The hashed n-gram model, with its weights built
+     * @param email The bytes of the email, its position is moved to its limit
+     */
+    public void getSpamEmailProbability(HashedNgramModel model, ByteBuffer email)
+    {
+        long start = Metrics.start();
+        this.bytesRead = email.remaining();
+        this.earlyExit = false;
+        this.spamProbability = 1.0 / (1.0 + Math.pow(Math.E, model.eta(email)));
+        Metrics.emailClassified(start, bytesRead, -1, 0);
+    }
+
+    /**
+     * Gets the probability that an email is spam from the weights of its hashed word n-grams
+     *
+     * @param model The hashed n-gram model, with its weights built
+     * @param email The email being analyzed
+     */
+    public void getSpamEmailProbability(HashedNgramModel model, File email)
+    {
+        try
+        {
+            getSpamEmailProbability(model, ByteBuffer.wrap(Files.readAllBytes(email.toPath())));
+        } catch (IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+            this.spamProbability = 0.5;
+        }
+    }
+
+    /**
+     * Gets the probability that an email is spam from its cached tokens, no
+     * bytes are read. The weights are summed per distinct word, so the result
+     * can differ from the streaming versions in the last bits.
+     *
+     * @param weights   The log-odds weights of probable spam words, by cached word id
+     * @param email     The cached tokens of the email being analyzed
+     */
+    public void getSpamEmailProbability(CorpusCache.CachedWeights weights, CorpusCache.EmailTokens email)
+    {
+        long start = Metrics.start();
+        this.spamProbability = 1.0 / (1.0 + Math.pow(Math.E, weights.eta(email)));
+        this.bytesRead = 0;
+        this.earlyExit = false;
+        Metrics.emailClassified(start, 0, -1, 0);
+    }
+
+    /**
+     * Adds up the log-odds weights of the words of an email
+     */
+    private static class EtaSink implements Tokenizer.TokenSink
+    {
+        protected final TokenWeights weights;
+        private double eta = 0.0;
+        //words and words found in the weights, for the metrics
+        protected int tokens;
+        protected int hits;
+
+        EtaSink(TokenWeights weights)
+        {
+            this.weights = weights;
+        }
+
+        @Override
+        public void token(byte[] buf, int off, int len)
+        {
+            tokens++;
+            int id = weights.find(buf, off, len);
+            if (id >= 0)
+            {
+                hits++;
+                eta += weights.weight(id);
+            }
+        }
+
+        double eta()
+        {
+            return eta;
+        }
+
+        double probability()
+        {
+            return 1.0 / (1.0 + Math.pow(Math.E, eta()));
+        }
+    }
+
+    /**
+     * Adds up only the weights of the distinct words with the largest |weight| seen so far
+     */
+    private static class TopTokensSink extends EtaSink
+    {
+        private final int[] ids;
+        private final double[] topWeights;
+        private int size;
+        private double topEta = 0.0;
+
+        TopTokensSink(TokenWeights weights, int topTokens)
+        {
+            super(weights);
+            this.ids = new int[topTokens];
+            this.topWeights = new double[topTokens];
+        }
+
+        @Override
+        public void token(byte[] buf, int off, int len)
+        {
+            tokens++;
+            int id = weights.find(buf, off, len);
+            if (id < 0)
+            {
+                return;
+            }
+            hits++;
+            double weight = weights.weight(id);
+            int weakest = -1;
+            for (int i = 0; i < size; i++)
+            {
+                if (ids[i] == id)
+                {
+                    return;
+                }
+                if (weakest < 0 || Math.abs(topWeights[i]) < Math.abs(topWeights[weakest]))
+                {
+                    weakest = i;
+                }
+            }
+            if (size < ids.length)
+            {
+                ids[size] = id;
+                topWeights[size++] = weight;
+                topEta += weight;
+            }
+            else if (Math.abs(weight) > Math.abs(topWeights[weakest]))
+            {
+                topEta += weight - topWeights[weakest];
+                ids[weakest] = id;
+                topWeights[weakest] = weight;
+            }
+        }
+
+        @Override
+        double eta()
+        {
+            return topEta;
+        }
     }
-}
\ No newline at end of file
+}
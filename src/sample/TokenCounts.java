@@ -0,0 +1,765 @@
+package sample;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Spam and ham document frequencies of every training word, kept in one
+ * TokenTable with the counts in two int arrays indexed by word id. This
+ * replaces the String keyed Hashmaps of word occurrences and frequencies,
+ * where every word was stored once per map with a boxed value next to it.
+ *
+ * An email adds at most 1 to a word. Instead of a set of the words already
+ * counted in the current email, every word remembers the generation of the
+ * last email that counted it, and each email gets a new generation.
+ *
+ * A TokenCounts isn't thread safe, parallel training gives every worker its
+ * own table and merges them with addAll.
+ *
+ * Whether emails are read through a MimeParser is a setting of the table,
+ * and the weights built from it score emails the same way.
+ *
+ * @version 1.7
+ */
+
+public class TokenCounts
+{
+    private final TokenTable words;
+    private final boolean mimeAware;
+    private int[] spamCounts;
+    private int[] hamCounts;
+    //generation of the last email that counted each word
+    private int[] seen;
+    private int generation;
+    private int spamEmails;
+    private int hamEmails;
+    //words of the email being scanned, for the metrics
+    private int emailTokens;
+    //id here + 1 of every word of the corpus cache scanned last, 0 if not mapped yet, -1 if ignored
+    private CorpusCache mappedCache;
+    private int[] fromCache = new int[0];
+
+    /**
+     * TokenCounts constructor, for emails read through a MimeParser
+     *
+     * @param expectedWords The number of words the table should hold before growing
+     */
+    public TokenCounts(int expectedWords)
+    {
+        this(expectedWords, Tokenizer.DEFAULT_MIME_AWARE);
+    }
+
+    /**
+     * TokenCounts constructor
+     *
+     * @param expectedWords The number of words the table should hold before growing
+     * @param mimeAware     True to read emails through a MimeParser, false to tokenize every byte
+     */
+    public TokenCounts(int expectedWords, boolean mimeAware)
+    {
+        this.words = new TokenTable(expectedWords);
+        this.mimeAware = mimeAware;
+        this.spamCounts = new int[Math.max(4, expectedWords)];
+        this.hamCounts = new int[spamCounts.length];
+        this.seen = new int[spamCounts.length];
+    }
+
+    /**
+     * Record the words of an email and increase their occurrence by 1
+     *
+     * @param email The email that will be analyzed
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(File email, boolean spam)
+    {
+        long start = Metrics.start();
+        long bytes = 0;
+        try
+        {
+            bytes = Tokenizer.tokenize(email, mimeAware, emailCounter(spam));
+        } catch(FileNotFoundException e)
+        {
+            System.out.println("Error, file not found. Please verify paths.");
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        if (spam)
+        {
+            spamEmails++;
+        }
+        else
+        {
+            hamEmails++;
+        }
+        Metrics.emailTrained(start, bytes, emailTokens);
+    }
+
+    /**
+     * Record the words of an email held in a buffer, such as an mbox message,
+     * and increase their occurrence by 1
+     *
+     * @param email The bytes of the email, its position is moved to its limit
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(ByteBuffer email, boolean spam)
+    {
+        long start = Metrics.start();
+        long bytes = email.remaining();
+        Tokenizer.tokenize(email, mimeAware, emailCounter(spam));
+        if (spam)
+        {
+            spamEmails++;
+        }
+        else
+        {
+            hamEmails++;
+        }
+        Metrics.emailTrained(start, bytes, emailTokens);
+    }
+
+    /**
+     * Runs through a train email set, reporting every scanned email.
+     * A cancelled run keeps the words of the emails scanned so far.
+     * Mboxes, gzip files and Maildirs are read through MailArchive, serially.
+     *
+     * @param directoryPath The location of emails, or of an mbox, gzip file or Maildir
+     * @param spam          True if the emails are spam, false if ham
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
+     * @param listener      Receives the progress and can cancel the run, may be null
+     */
+    public void trainEmailSet(String directoryPath, boolean spam, int parallelism, ProgressListener listener)
+    {
+        long start = Metrics.start();
+        try
+        {
+            scanEmailSet(directoryPath, spam, parallelism, listener);
+        } finally
+        {
+            Metrics.emailSetTrained(start);
+        }
+    }
+
+    private void scanEmailSet(String directoryPath, boolean spam, int parallelism, ProgressListener listener)
+    {
+        if (MailArchive.isArchive(new File(directoryPath)))
+        {
+            trainArchive(new File(directoryPath), spam, listener);
+            return;
+        }
+        if (parallelism > 1)
+        {
+            ParallelTrainer trainer = new ParallelTrainer(parallelism);
+            try
+            {
+                trainer.trainEmailSet(this, directoryPath, spam, listener);
+            } finally
+            {
+                trainer.shutdown();
+            }
+            return;
+        }
+
+        File[] emailDirListing;
+        try
+        {
+            emailDirListing = TrainFile.listEmails(new File(directoryPath));
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+            return;
+        }
+        for (File email : emailDirListing)
+        {
+            if (listener != null && listener.isCancelled())
+            {
+                return;
+            }
+            scanEmail(email, spam);
+            if (listener != null)
+            {
+                listener.emailProcessed(email, email.length());
+            }
+        }
+    }
+
+    /**
+     * Record the words of a cached email and increase their occurrence by 1
+     *
+     * @param cache The cache the email is read from
+     * @param email The email that will be analyzed
+     * @param spam  True to count it as a spam email, false as a ham email
+     */
+    public void scanEmail(CorpusCache cache, File email, boolean spam)
+    {
+        if (!mimeAware)
+        {
+            throw new IllegalArgumentException("A corpus cache holds the words of MIME parsed emails");
+        }
+        long start = Metrics.start();
+        try
+        {
+            CorpusCache.EmailTokens tokens = cache.get(email);
+            //cached emails hold each word once, so no stamps are needed
+            for (int i = 0; i < tokens.length(); i++)
+            {
+                int id = fromCache(cache, tokens.id(i));
+                if (id >= 0)
+                {
+                    increment(id, spam);
+                }
+            }
+        } catch(FileNotFoundException e)
+        {
+            System.out.println("Error, file not found. Please verify paths.");
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        if (spam)
+        {
+            spamEmails++;
+        }
+        else
+        {
+            hamEmails++;
+        }
+        //nothing is read, and the cache only holds the distinct words
+        Metrics.emailTrained(start, 0, -1);
+    }
+
+    /**
+     * Runs through the emails of an mbox, gzip file or Maildir, reporting every
+     * scanned email. A cancelled run keeps the words of the emails scanned so far.
+     *
+     * @param archive   The mail store
+     * @param spam      True if the emails are spam, false if ham
+     * @param listener  Receives the progress and can cancel the run, may be null
+     */
+    public void trainArchive(File archive, final boolean spam, ProgressListener listener)
+    {
+        try
+        {
+            MailArchive.read(archive, new MailArchive.MessageSink()
+            {
+                @Override
+                public void message(File source, String name, ByteBuffer message)
+                {
+                    scanEmail(message, spam);
+                }
+            }, listener);
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Runs through a train email set through a corpus cache, reporting every
+     * scanned email. A cancelled run keeps the words of the emails scanned so far.
+     *
+     * @param cache         The cache the emails are read from
+     * @param directoryPath The location of emails
+     * @param spam          True if the emails are spam, false if ham
+     * @param listener      Receives the progress and can cancel the run, may be null
+     */
+    public void trainEmailSet(CorpusCache cache, String directoryPath, boolean spam, ProgressListener listener)
+    {
+        long start = Metrics.start();
+        try
+        {
+            for (File email : TrainFile.listEmails(new File(directoryPath)))
+            {
+                if (listener != null && listener.isCancelled())
+                {
+                    break;
+                }
+                scanEmail(cache, email, spam);
+                if (listener != null)
+                {
+                    listener.emailProcessed(email, email.length());
+                }
+            }
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+        Metrics.emailSetTrained(start);
+    }
+
+    /**
+     * Adds every count of another table to this one
+     *
+     * @param other The table whose counts are added
+     */
+    public void addAll(TokenCounts other)
+    {
+        if (other.mimeAware != mimeAware)
+        {
+            throw new IllegalArgumentException("Counts of emails read with and without MIME parsing don't mix");
+        }
+        for (int otherId = 0; otherId < other.size(); otherId++)
+        {
+            int id = idOf(words.add(other.words, otherId));
+            spamCounts[id] += other.spamCounts[otherId];
+            hamCounts[id] += other.hamCounts[otherId];
+        }
+        spamEmails += other.spamEmails;
+        hamEmails += other.hamEmails;
+    }
+
+    /**
+     * Adds a word of a TokenTable with the given counts, added to its counts if it's already here
+     *
+     * @param source    The table holding the word
+     * @param sourceId  The id of the word in that table
+     * @param spamCount The number of spam emails it appears in
+     * @param hamCount  The number of ham emails it appears in
+     * @return          The id of the word here
+     */
+    public int add(TokenTable source, int sourceId, int spamCount, int hamCount)
+    {
+        int id = idOf(words.add(source, sourceId));
+        spamCounts[id] += spamCount;
+        hamCounts[id] += hamCount;
+        return id;
+    }
+
+    /**
+     * Adds 1 to every word of an email given as its distinct words, or takes
+     * off an email added before, e.g. to apply feedback to a trained table
+     *
+     * @param emailWords    The distinct words of the email
+     * @param spam          True to count it as a spam email, false as a ham email
+     * @param delta         1 to add the email, -1 to take it off
+     */
+    public void addEmail(TokenTable emailWords, boolean spam, int delta)
+    {
+        for (int i = 0; i < emailWords.size(); i++)
+        {
+            int id = delta > 0 ? idOf(words.add(emailWords, i)) : words.find(emailWords, i);
+            if (id < 0)
+            {
+                continue;
+            }
+            if (spam)
+            {
+                spamCounts[id] = Math.max(0, spamCounts[id] + delta);
+            }
+            else
+            {
+                hamCounts[id] = Math.max(0, hamCounts[id] + delta);
+            }
+        }
+        if (spam)
+        {
+            spamEmails = Math.max(0, spamEmails + delta);
+        }
+        else
+        {
+            hamEmails = Math.max(0, hamEmails + delta);
+        }
+    }
+
+    /**
+     * Gets the id here of a word of a TokenTable
+     *
+     * @param source    The table holding the word
+     * @param sourceId  The id of the word in that table
+     * @return          Its id, or -1 if the word isn't counted here
+     */
+    public int find(TokenTable source, int sourceId)
+    {
+        return words.find(source, sourceId);
+    }
+
+    /**
+     * Gets the id here of a word of another TokenCounts
+     *
+     * @param other     The table holding the word
+     * @param otherId   The id of the word in that table
+     * @return          Its id, or -1 if the word isn't counted here
+     */
+    public int find(TokenCounts other, int otherId)
+    {
+        return words.find(other.words, otherId);
+    }
+
+    /**
+     * Adds 1 to the spam or ham count of a word
+     *
+     * @param id    The id of the word
+     * @param spam  True to add to the spam count, false to the ham count
+     */
+    public void increment(int id, boolean spam)
+    {
+        if (spam)
+        {
+            spamCounts[id]++;
+        }
+        else
+        {
+            hamCounts[id]++;
+        }
+    }
+
+    /**
+     * Gets the spam or ham count of a word
+     *
+     * @param id    The id of the word
+     * @param spam  True for the spam count, false for the ham count
+     * @return      The number of emails of that class it appears in
+     */
+    public int getCount(int id, boolean spam)
+    {
+        return spam ? spamCounts[id] : hamCounts[id];
+    }
+
+    /**
+     * Gets a copy of the bytes of a word
+     *
+     * @param id    The id of the word
+     * @return      Its bytes
+     */
+    public byte[] token(int id)
+    {
+        return words.token(id);
+    }
+
+    /**
+     * Copies the most frequent words into a new table, the ones appearing in
+     * the most emails of either class. Ties at the cut keep the words counted first.
+     *
+     * @param maxWords  The number of words kept at most
+     * @return          A table with at most maxWords words and the same email counts
+     */
+    public TokenCounts retainTop(int maxWords)
+    {
+        int size = words.size();
+        int cutoff = 0;
+        if (size > maxWords)
+        {
+            int[] totals = new int[size];
+            for (int id = 0; id < size; id++)
+            {
+                totals[id] = spamCounts[id] + hamCounts[id];
+            }
+            Arrays.sort(totals);
+            cutoff = maxWords > 0 ? totals[size - maxWords] : Integer.MAX_VALUE;
+        }
+
+        //words above the cut always fit, the words at the cut fill the rest
+        int atCutoff = maxWords;
+        for (int id = 0; id < size; id++)
+        {
+            if (spamCounts[id] + hamCounts[id] > cutoff)
+            {
+                atCutoff--;
+            }
+        }
+        boolean[] keep = new boolean[size];
+        for (int id = 0; id < size; id++)
+        {
+            int total = spamCounts[id] + hamCounts[id];
+            keep[id] = total > cutoff || (total == cutoff && atCutoff-- > 0);
+        }
+        return retain(keep);
+    }
+
+    /**
+     * Copies some of the words into a new table
+     *
+     * @param keep  Whether each word id is kept
+     * @return      A table with the words kept and the same email counts
+     */
+    public TokenCounts retain(boolean[] keep)
+    {
+        int keptWords = 0;
+        for (int id = 0; id < words.size(); id++)
+        {
+            if (keep[id])
+            {
+                keptWords++;
+            }
+        }
+        TokenCounts kept = new TokenCounts(keptWords, mimeAware);
+        for (int id = 0; id < words.size(); id++)
+        {
+            if (keep[id])
+            {
+                kept.add(words, id, spamCounts[id], hamCounts[id]);
+            }
+        }
+        kept.spamEmails = spamEmails;
+        kept.hamEmails = hamEmails;
+        return kept;
+    }
+
+    /**
+     * Adds the spam or ham counts to a Hashmap of words and their occurrences
+     *
+     * @param emailMap  The email Hashmap that receives the counts
+     * @param spam      True to add the spam counts, false the ham counts
+     */
+    public void addTo(HashMap<String, Integer> emailMap, boolean spam)
+    {
+        int[] counts = spam ? spamCounts : hamCounts;
+        for (int id = 0; id < words.size(); id++)
+        {
+            if (counts[id] > 0)
+            {
+                String word = words.tokenString(id);
+                Integer count = emailMap.get(word);
+                emailMap.put(word, count == null ? counts[id] : count + counts[id]);
+            }
+        }
+    }
+
+    /**
+     * Gets the probability of a word being spam the way TrainFile.getWordSpamProbability does,
+     * Pr(S|Wi) = PR(Wi|S)/(Pr(Wi|S)+Pr(Wi|H)) with the frequencies taken over the given email counts
+     *
+     * @param id        The id of the word
+     * @param spamFiles The number of spam emails the frequencies are taken over
+     * @param hamFiles  The number of ham emails the frequencies are taken over
+     * @return          The spamicity, NaN if the word is left out of the model
+     */
+    public double spamicity(int id, int spamFiles, int hamFiles)
+    {
+        return spamicity(spamCounts[id], hamCounts[id], spamFiles, hamFiles);
+    }
+
+    /**
+     * Gets the probability of a word being spam from its document frequencies
+     *
+     * @param spamCount The number of spam emails the word appears in
+     * @param hamCount  The number of ham emails the word appears in
+     * @param spamFiles The number of spam emails the frequencies are taken over
+     * @param hamFiles  The number of ham emails the frequencies are taken over
+     * @return          The spamicity, NaN if the word is left out of the model
+     */
+    public static double spamicity(int spamCount, int hamCount, int spamFiles, int hamFiles)
+    {
+        if (spamCount == 0)
+        {
+            return Double.NaN;
+        }
+        if (hamCount == 0)
+        {
+            //if word only ever appears in spam then Pr(S|Wi) simplifies to 1
+            return 1.0;
+        }
+        double spam = (double)spamCount/(double)spamFiles;
+        double ham = (double)hamCount/(double)hamFiles;
+        double spamicity = spam/(ham+spam);
+        //if spamicity is near 0.5 then it contributes little to an accurate decision
+        return (spamicity < 0.45 || spamicity > 0.6) ? spamicity : Double.NaN;
+    }
+
+    /**
+     * Builds the word spam probability map, the same map TrainFile.getWordSpamProbability
+     * gives for the frequencies of these counts
+     *
+     * @param spamFiles The number of spam emails the frequencies are taken over
+     * @param hamFiles  The number of ham emails the frequencies are taken over
+     * @return          A probability map that is a record of words and their probability of being spam
+     */
+    public HashMap<String, Double> toProbabilities(int spamFiles, int hamFiles)
+    {
+        if (!mimeAware)
+        {
+            throw new IllegalStateException("A probability map holds the words of MIME parsed emails, use toWeights");
+        }
+        long start = Metrics.start();
+        HashMap<String, Double> probMap = new HashMap<>();
+        for (int id = 0; id < words.size(); id++)
+        {
+            double spamicity = spamicity(id, spamFiles, hamFiles);
+            if (!Double.isNaN(spamicity))
+            {
+                probMap.put(words.tokenString(id), spamicity);
+            }
+        }
+        Metrics.modelBuilt(start, probMap.size());
+        return probMap;
+    }
+
+    /**
+     * Builds the scoring weights straight from the counts, without a probability map
+     *
+     * @param spamFiles The number of spam emails the frequencies are taken over
+     * @param hamFiles  The number of ham emails the frequencies are taken over
+     * @return          The weight table
+     */
+    public TokenWeights toWeights(int spamFiles, int hamFiles)
+    {
+        long start = Metrics.start();
+        int modelWords = 0;
+        for (int id = 0; id < words.size(); id++)
+        {
+            if (!Double.isNaN(spamicity(id, spamFiles, hamFiles)))
+            {
+                modelWords++;
+            }
+        }
+        TokenWeights table = new TokenWeights(modelWords, mimeAware);
+        for (int id = 0; id < words.size(); id++)
+        {
+            double p = spamicity(id, spamFiles, hamFiles);
+            if (!Double.isNaN(p))
+            {
+                table.put(words, id, Math.log(1 - p) - Math.log(p));
+            }
+        }
+        Metrics.modelBuilt(start, table.size());
+        return table;
+    }
+
+    /**
+     * Gets the number of spam emails a word appears in
+     *
+     * @param word  The word
+     * @return      Its spam document frequency
+     */
+    public int getSpamCount(String word)
+    {
+        int id = words.find(word);
+        return id < 0 ? 0 : spamCounts[id];
+    }
+
+    /**
+     * Gets the number of ham emails a word appears in
+     *
+     * @param word  The word
+     * @return      Its ham document frequency
+     */
+    public int getHamCount(String word)
+    {
+        int id = words.find(word);
+        return id < 0 ? 0 : hamCounts[id];
+    }
+
+    /**
+     * Gets the number of emails scanned
+     *
+     * @param spam  True for the spam emails, false for the ham emails
+     * @return      The number of emails of that class
+     */
+    public int getEmailCount(boolean spam)
+    {
+        return spam ? spamEmails : hamEmails;
+    }
+
+    public int size()
+    {
+        return words.size();
+    }
+
+    /**
+     * Determines how the emails of this table are read
+     *
+     * @return  True if they are read through a MimeParser, false if every byte is tokenized
+     */
+    public boolean isMimeAware()
+    {
+        return this.mimeAware;
+    }
+
+    /**
+     * Gets the heap taken by the word table and the count arrays, for memory reports
+     *
+     * @return  The size of the arrays in bytes, without object headers
+     */
+    public long heapBytes()
+    {
+        return words.heapBytes() + 4L * (spamCounts.length + hamCounts.length + seen.length);
+    }
+
+    /**
+     * Starts a new email and gets the sink that adds 1 to each of its words the first time it's seen
+     */
+    private Tokenizer.TokenSink emailCounter(final boolean spam)
+    {
+        final int stamp = nextGeneration();
+        emailTokens = 0;
+        return new Tokenizer.TokenSink()
+        {
+            @Override
+            public void token(byte[] buf, int off, int len)
+            {
+                emailTokens++;
+                if (!TrainFile.isIgnored(buf, off, len))
+                {
+                    int id = idOf(words.add(buf, off, len));
+                    if (seen[id] != stamp)
+                    {
+                        seen[id] = stamp;
+                        if (spam)
+                        {
+                            spamCounts[id]++;
+                        }
+                        else
+                        {
+                            hamCounts[id]++;
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts a new email, clearing the stamps once the generation wraps around
+     */
+    private int nextGeneration()
+    {
+        if (++generation == 0)
+        {
+            Arrays.fill(seen, 0);
+            generation = 1;
+        }
+        return generation;
+    }
+
+    /**
+     * Gets the id here of a word of a corpus cache, adding the word the first time it's met
+     *
+     * @return  The id, or -1 if the word is ignored
+     */
+    private int fromCache(CorpusCache cache, int cacheId)
+    {
+        if (cache != mappedCache)
+        {
+            mappedCache = cache;
+            fromCache = new int[cache.getWords().size()];
+        }
+        if (cacheId >= fromCache.length)
+        {
+            fromCache = Arrays.copyOf(fromCache, Math.max(fromCache.length * 2, cacheId + 1));
+        }
+        if (fromCache[cacheId] == 0)
+        {
+            TokenTable cacheWords = cache.getWords();
+            byte[] word = cacheWords.token(cacheId);
+            fromCache[cacheId] = TrainFile.isIgnored(word, 0, word.length) ? -1
+                                 : idOf(words.add(cacheWords, cacheId)) + 1;
+        }
+        return fromCache[cacheId] > 0 ? fromCache[cacheId] - 1 : -1;
+    }
+
+    /**
+     * Grows the count arrays so they can hold a word id
+     */
+    private int idOf(int id)
+    {
+        if (id >= spamCounts.length)
+        {
+            int length = Math.max(spamCounts.length * 2, id + 1);
+            spamCounts = Arrays.copyOf(spamCounts, length);
+            hamCounts = Arrays.copyOf(hamCounts, length);
+            seen = Arrays.copyOf(seen, length);
+        }
+        return id;
+    }
+}
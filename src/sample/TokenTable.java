@@ -0,0 +1,286 @@
+package sample;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Open addressing set of words keyed by their raw bytes. Every word added
+ * gets the next dense id, so other tables can keep per-word values in plain
+ * arrays indexed by id. Lookups take a slice of any byte array, so the words
+ * coming out of the Tokenizer never have to become Strings.
+ *
+ * The bytes of all words are packed one after the other into one array, so
+ * a word costs its bytes plus a few ints of bookkeeping instead of an array
+ * object of its own.
+ *
+ * @version 1.1
+ */
+
+public class TokenTable
+{
+    private static final int EMPTY = -1;
+
+    //average word length the byte array is first sized for
+    private static final int EXPECTED_TOKEN_LENGTH = 8;
+
+    private int[] slots;
+    private int mask;
+    private byte[] bytes;
+    //word id starts at starts[id] and ends at starts[id + 1]
+    private int[] starts;
+    private int[] hashes;
+    private int size;
+
+    /**
+     * TokenTable constructor
+     *
+     * @param expectedTokens    The number of words the table should hold before growing
+     */
+    public TokenTable(int expectedTokens)
+    {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedTokens * 2 - 1)) << 1;
+        this.slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        this.mask = capacity - 1;
+        this.hashes = new int[Math.max(4, expectedTokens)];
+        this.starts = new int[hashes.length + 1];
+        this.bytes = new byte[hashes.length * EXPECTED_TOKEN_LENGTH];
+    }
+
+    /**
+     * Gets the id of a word
+     *
+     * @param buf   The bytes holding the word
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      Its id, or -1 if the word isn't in the table
+     */
+    public int find(byte[] buf, int off, int len)
+    {
+        return find(buf, off, len, Tokenizer.hash(buf, off, len));
+    }
+
+    /**
+     * Gets the id in this table of a word of another table
+     *
+     * @param source    The table holding the word
+     * @param sourceId  The id of the word in that table
+     * @return          Its id here, or -1 if the word isn't in this table
+     */
+    public int find(TokenTable source, int sourceId)
+    {
+        int start = source.starts[sourceId];
+        return find(source.bytes, start, source.starts[sourceId + 1] - start, source.hashes[sourceId]);
+    }
+
+    private int find(byte[] buf, int off, int len, int hash)
+    {
+        int slot = mix(hash) & mask;
+        int id;
+        while ((id = slots[slot]) != EMPTY)
+        {
+            if (hashes[id] == hash && matches(id, buf, off, len))
+            {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Adds a word if it isn't in the table yet
+     *
+     * @param buf   The bytes holding the word, they are copied
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      The id of the word
+     */
+    public int add(byte[] buf, int off, int len)
+    {
+        return add(buf, off, len, Tokenizer.hash(buf, off, len));
+    }
+
+    /**
+     * Adds a word of another table if it isn't in this table yet, e.g. to merge two tables
+     *
+     * @param source    The table holding the word
+     * @param sourceId  The id of the word in that table
+     * @return          The id of the word in this table
+     */
+    public int add(TokenTable source, int sourceId)
+    {
+        int start = source.starts[sourceId];
+        return add(source.bytes, start, source.starts[sourceId + 1] - start, source.hashes[sourceId]);
+    }
+
+    private int add(byte[] buf, int off, int len, int hash)
+    {
+        int slot = mix(hash) & mask;
+        int id;
+        while ((id = slots[slot]) != EMPTY)
+        {
+            if (hashes[id] == hash && matches(id, buf, off, len))
+            {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == hashes.length)
+        {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            starts = Arrays.copyOf(starts, size * 2 + 1);
+        }
+        int start = starts[size];
+        if (start + len > bytes.length)
+        {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, start + len));
+        }
+        System.arraycopy(buf, off, bytes, start, len);
+        id = size++;
+        starts[size] = start + len;
+        hashes[id] = hash;
+        slots[slot] = id;
+        if (size * 2 > slots.length)
+        {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Adds a word given as a String, one byte per char
+     *
+     * @param word  The word
+     * @return      The id of the word
+     */
+    public int add(String word)
+    {
+        byte[] bytes = Tokenizer.toBytes(word);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Gets the id of a word given as a String
+     *
+     * @param word  The word
+     * @return      Its id, or -1 if the word isn't in the table
+     */
+    public int find(String word)
+    {
+        byte[] bytes = Tokenizer.toBytes(word);
+        return find(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Gets a copy of the bytes of a word
+     *
+     * @param id    The id of the word
+     * @return      Its bytes
+     */
+    public byte[] token(int id)
+    {
+        return Arrays.copyOfRange(bytes, starts[id], starts[id + 1]);
+    }
+
+    /**
+     * Writes the bytes of a word without copying them
+     *
+     * @param id            The id of the word
+     * @param out           The stream written to
+     * @throws IOException  If the stream can't be written
+     */
+    public void writeToken(int id, OutputStream out) throws IOException
+    {
+        out.write(bytes, starts[id], starts[id + 1] - starts[id]);
+    }
+
+    /**
+     * Gets a word as a String, one char per byte
+     *
+     * @param id    The id of the word
+     * @return      The word
+     */
+    public String tokenString(int id)
+    {
+        return Tokenizer.toWord(bytes, starts[id], starts[id + 1] - starts[id]);
+    }
+
+    /**
+     * Gets the hash of a word, the Tokenizer.hash of its bytes
+     *
+     * @param id    The id of the word
+     * @return      Its hash
+     */
+    public int tokenHash(int id)
+    {
+        return hashes[id];
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Gets the heap taken by the table's arrays, for memory reports
+     *
+     * @return  The size of the arrays in bytes, without object headers
+     */
+    public long heapBytes()
+    {
+        return 4L * slots.length + bytes.length + 4L * starts.length + 4L * hashes.length;
+    }
+
+    /**
+     * Removes every word, keeping the allocated arrays
+     */
+    public void clear()
+    {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++)
+        {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    private boolean matches(int id, byte[] buf, int off, int len)
+    {
+        int start = starts[id];
+        if (starts[id + 1] - start != len)
+        {
+            return false;
+        }
+        for (int i = 0; i < len; i++)
+        {
+            if (bytes[start + i] != buf[off + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the hash bits so words with similar hashes don't cluster in the low slots
+     */
+    private static int mix(int hash)
+    {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
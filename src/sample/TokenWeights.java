@@ -0,0 +1,221 @@
+package sample;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of precomputed log-odds weights ln(1-p) - ln(p) for every word of a
+ * word spam probability map. Words are interned in a TokenTable and their
+ * weights kept in a double array indexed by word id, so scoring a word is
+ * one probe sequence on its raw bytes and one add, without boxing, Strings
+ * or calls to Math.log.
+ *
+ * Words that aren't in the table weigh 0.0, which leaves eta unchanged just
+ * like the words skipped by TestFile.getSpamEmailProbability.
+ *
+ * The table also knows whether its words were read through a MimeParser,
+ * and emails scored with it are read the same way.
+ *
+ * @version 1.5
+ */
+
+public class TokenWeights
+{
+    private final TokenTable words;
+    private final boolean mimeAware;
+    private double[] weights;
+    //changes every time a weight is set, so caches of verdicts know the model changed
+    private volatile int version;
+
+    /**
+     * TokenWeights constructor, for words read through a MimeParser
+     *
+     * @param expectedWords The number of words the table will hold
+     */
+    public TokenWeights(int expectedWords)
+    {
+        this(expectedWords, Tokenizer.DEFAULT_MIME_AWARE);
+    }
+
+    /**
+     * TokenWeights constructor
+     *
+     * @param expectedWords The number of words the table will hold
+     * @param mimeAware     True if the words were read through a MimeParser, false if from every byte
+     */
+    public TokenWeights(int expectedWords, boolean mimeAware)
+    {
+        this.words = new TokenTable(expectedWords);
+        this.mimeAware = mimeAware;
+        this.weights = new double[Math.max(4, expectedWords)];
+    }
+
+    /**
+     * Builds the weights for a word spam probability map. Words with a spam
+     * probability of 0.0 are left out, the same as in TestFile.getSpamEmailProbability.
+     * The words of a probability map are always those of MIME parsed emails.
+     *
+     * @param probMap   A probability map that is a record of words and their probability of being spam
+     * @return          The weight table
+     */
+    public static TokenWeights fromProbabilities(HashMap<String, Double> probMap)
+    {
+        long start = Metrics.start();
+        TokenWeights table = new TokenWeights(probMap.size());
+        for (Map.Entry<String, Double> entry : probMap.entrySet())
+        {
+            double p = entry.getValue();
+            if (p != 0.0)
+            {
+                table.put(entry.getKey(), Math.log(1 - p) - Math.log(p));
+            }
+        }
+        Metrics.modelBuilt(start, table.size());
+        return table;
+    }
+
+    /**
+     * Sets the weight of a word
+     *
+     * @param word      The word
+     * @param weight    Its log-odds weight ln(1-p) - ln(p)
+     */
+    public void put(String word, double weight)
+    {
+        byte[] bytes = Tokenizer.toBytes(word);
+        put(bytes, 0, bytes.length, weight);
+    }
+
+    /**
+     * Sets the weight of a word given as raw bytes
+     *
+     * @param buf       The bytes holding the word
+     * @param off       Where the word starts
+     * @param len       The length of the word
+     * @param weight    Its log-odds weight ln(1-p) - ln(p)
+     */
+    public void put(byte[] buf, int off, int len, double weight)
+    {
+        set(words.add(buf, off, len), weight);
+    }
+
+    /**
+     * Sets the weight of a word of a TokenTable
+     *
+     * @param source    The table holding the word
+     * @param sourceId  The id of the word in that table
+     * @param weight    Its log-odds weight ln(1-p) - ln(p)
+     */
+    public void put(TokenTable source, int sourceId, double weight)
+    {
+        set(words.add(source, sourceId), weight);
+    }
+
+    /**
+     * Gets the weight of a word
+     *
+     * @param word  The word
+     * @return      Its log-odds weight, 0.0 if the word isn't in the table
+     */
+    public double get(String word)
+    {
+        int id = words.find(word);
+        return id < 0 ? 0.0 : weights[id];
+    }
+
+    /**
+     * Gets the weight of a word given as raw bytes
+     *
+     * @param buf   The bytes holding the word
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      Its log-odds weight, 0.0 if the word isn't in the table
+     */
+    public double get(byte[] buf, int off, int len)
+    {
+        int id = words.find(buf, off, len);
+        return id < 0 ? 0.0 : weights[id];
+    }
+
+    /**
+     * Gets the id of a word given as raw bytes
+     *
+     * @param buf   The bytes holding the word
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      Its id, or -1 if the word isn't in the table
+     */
+    public int find(byte[] buf, int off, int len)
+    {
+        return words.find(buf, off, len);
+    }
+
+    /**
+     * Gets the weight of a word by id
+     *
+     * @param id    The id of the word, from find
+     * @return      Its log-odds weight
+     */
+    public double weight(int id)
+    {
+        return weights[id];
+    }
+
+    /**
+     * Determines whether a word given as raw bytes is in the table
+     *
+     * @param buf   The bytes holding the word
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      True if the word has a weight, false if it's missed
+     */
+    public boolean contains(byte[] buf, int off, int len)
+    {
+        return words.find(buf, off, len) >= 0;
+    }
+
+    public int size()
+    {
+        return words.size();
+    }
+
+    /**
+     * Determines how emails scored with these weights are read
+     *
+     * @return  True to read them through a MimeParser, false to tokenize every byte
+     */
+    public boolean isMimeAware()
+    {
+        return this.mimeAware;
+    }
+
+    /**
+     * Gets the number of times a weight has been set, which changes whenever the model does
+     *
+     * @return  The version of the weights
+     */
+    public int getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Gets the heap taken by the word table and the weight array, for memory reports
+     *
+     * @return  The size of the arrays in bytes, without object headers
+     */
+    public long heapBytes()
+    {
+        return words.heapBytes() + 8L * weights.length;
+    }
+
+    private void set(int id, double weight)
+    {
+        if (id >= weights.length)
+        {
+            weights = Arrays.copyOf(weights, Math.max(weights.length * 2, id + 1));
+        }
+        weights[id] = weight;
+        version++;
+    }
+}
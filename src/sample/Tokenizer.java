@@ -0,0 +1,374 @@
+package sample;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits raw email bytes into words on any run of whitespace, without
+ * decoding the bytes or building Strings. Words are handed to a TokenSink
+ * as slices of the buffer being scanned; only a word cut in two by the end
+ * of a chunk is copied, into a small carry buffer.
+ *
+ * Training and testing both read emails through this class so a word is
+ * always cut the same way on both sides. Where a word has to be a String,
+ * such as a key of the word spam probability map, every byte becomes one
+ * char (ISO-8859-1), so any byte sequence survives the round trip.
+ *
+ * A word longer than MAX_TOKEN_LENGTH bytes, such as an unbroken run of
+ * encoded data, is dropped rather than sent, so every word a sink receives
+ * fits the length fields of the model, count and cache files.
+ *
+ * Whether a whole email goes through a MimeParser first is a setting of the
+ * trainer or model reading it (TokenCounts, TokenWeights), passed to
+ * forMessage. The methods without it parse MIME, DEFAULT_MIME_AWARE.
+ *
+ * @version 1.5
+ */
+
+public class Tokenizer implements ByteSink
+{
+    //size of the chunks an email file is read in
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    //longest word sent to a sink, longer ones are dropped
+    public static final int MAX_TOKEN_LENGTH = 4096;
+
+    /**
+     * Receives the words of an email. The slice is only valid during the call.
+     */
+    public interface TokenSink
+    {
+        void token(byte[] buf, int off, int len);
+    }
+
+    //whether emails are read through a MimeParser when the reader doesn't say
+    public static final boolean DEFAULT_MIME_AWARE = true;
+
+    private final TokenSink sink;
+    private byte[] carry = new byte[64];
+    private int carryLength;
+    private byte[] scratch;
+
+    /**
+     * Tokenizer constructor
+     *
+     * @param sink  Where the words are sent
+     */
+    public Tokenizer(TokenSink sink)
+    {
+        this.sink = sink;
+    }
+
+    /**
+     * Reads an email file through a MimeParser and sends every word to the sink
+     *
+     * @param email         The email being analyzed
+     * @param sink          Where the words are sent
+     * @return              The number of bytes read
+     * @throws IOException  If the email can't be read
+     */
+    public static long tokenize(File email, TokenSink sink) throws IOException
+    {
+        return tokenize(email, DEFAULT_MIME_AWARE, sink);
+    }
+
+    /**
+     * Reads an email file and sends every word to the sink
+     *
+     * @param email         The email being analyzed
+     * @param mimeAware     True to read it through a MimeParser, false to tokenize every byte
+     * @param sink          Where the words are sent
+     * @return              The number of bytes read
+     * @throws IOException  If the email can't be read
+     */
+    public static long tokenize(File email, boolean mimeAware, TokenSink sink) throws IOException
+    {
+        FileInputStream in = new FileInputStream(email);
+        try
+        {
+            return tokenize(in, (int)Math.max(1, Math.min(email.length(), READ_BUFFER_SIZE)), mimeAware, sink);
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads an email from a stream until its end through a MimeParser and
+     * sends every word to the sink. The stream is not closed.
+     *
+     * @param in            The email being analyzed
+     * @param sink          Where the words are sent
+     * @return              The number of bytes read
+     * @throws IOException  If the email can't be read
+     */
+    public static long tokenize(InputStream in, TokenSink sink) throws IOException
+    {
+        return tokenize(in, READ_BUFFER_SIZE, DEFAULT_MIME_AWARE, sink);
+    }
+
+    /**
+     * Reads an email from a stream until its end and sends every word to the sink.
+     * The stream is not closed.
+     *
+     * @param in            The email being analyzed
+     * @param mimeAware     True to read it through a MimeParser, false to tokenize every byte
+     * @param sink          Where the words are sent
+     * @return              The number of bytes read
+     * @throws IOException  If the email can't be read
+     */
+    public static long tokenize(InputStream in, boolean mimeAware, TokenSink sink) throws IOException
+    {
+        return tokenize(in, READ_BUFFER_SIZE, mimeAware, sink);
+    }
+
+    /**
+     * Sends every word of an email held in a buffer to the sink through a
+     * MimeParser, such as a message sliced out of a memory mapped mbox
+     *
+     * @param email The bytes of the email, its position is moved to its limit
+     * @param sink  Where the words are sent
+     */
+    public static void tokenize(ByteBuffer email, TokenSink sink)
+    {
+        tokenize(email, DEFAULT_MIME_AWARE, sink);
+    }
+
+    /**
+     * Sends every word of an email held in a buffer to the sink, such as a
+     * message sliced out of a memory mapped mbox. Array backed buffers are
+     * read in place, others in chunks.
+     *
+     * @param email     The bytes of the email, its position is moved to its limit
+     * @param mimeAware True to read it through a MimeParser, false to tokenize every byte
+     * @param sink      Where the words are sent
+     */
+    public static void tokenize(ByteBuffer email, boolean mimeAware, TokenSink sink)
+    {
+        ByteSink tokenizer = forMessage(sink, mimeAware);
+        if (email.hasArray())
+        {
+            tokenizer.feed(email.array(), email.arrayOffset() + email.position(), email.remaining());
+            email.position(email.limit());
+        }
+        else
+        {
+            byte[] buffer = new byte[Math.max(1, Math.min(email.remaining(), READ_BUFFER_SIZE))];
+            while (email.hasRemaining())
+            {
+                int len = Math.min(buffer.length, email.remaining());
+                email.get(buffer, 0, len);
+                tokenizer.feed(buffer, 0, len);
+            }
+        }
+        tokenizer.finish();
+    }
+
+    private static long tokenize(InputStream in, int bufferSize, boolean mimeAware, TokenSink sink)
+            throws IOException
+    {
+        ByteSink tokenizer = forMessage(sink, mimeAware);
+        byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            tokenizer.feed(buffer, 0, read);
+            total += read;
+        }
+        tokenizer.finish();
+        return total;
+    }
+
+    /**
+     * Creates the reader a whole email message goes through: a MimeParser in
+     * front of the tokenizer when MIME parsing is on, the bare tokenizer otherwise.
+     * A model must be tested with the same setting it was trained with.
+     *
+     * @param sink      Where the words are sent
+     * @param mimeAware True to only tokenize text parts and selected headers,
+     *                  false to tokenize every byte of the email
+     * @return          The reader to feed the email to
+     */
+    public static ByteSink forMessage(TokenSink sink, boolean mimeAware)
+    {
+        return mimeAware ? new MimeParser(sink) : new Tokenizer(sink);
+    }
+
+    /**
+     * Scans the next chunk of an email
+     *
+     * @param buf   The bytes
+     * @param off   Where the chunk starts
+     * @param len   The length of the chunk
+     */
+    @Override
+    public void feed(byte[] buf, int off, int len)
+    {
+        int end = off + len;
+        int start = off;
+        int i = off;
+
+        //finish a word carried over from the previous chunk
+        if (carryLength > 0)
+        {
+            while (i < end && !isDelimiter(buf[i]))
+            {
+                i++;
+            }
+            appendCarry(buf, start, i - start);
+            if (i == end)
+            {
+                return;
+            }
+            emit(carry, 0, carryLength);
+            carryLength = 0;
+        }
+
+        while (i < end)
+        {
+            while (i < end && isDelimiter(buf[i]))
+            {
+                i++;
+            }
+            start = i;
+            while (i < end && !isDelimiter(buf[i]))
+            {
+                i++;
+            }
+            if (i > start)
+            {
+                if (i == end)
+                {
+                    //the word may go on in the next chunk
+                    appendCarry(buf, start, i - start);
+                }
+                else
+                {
+                    emit(buf, start, i - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans the remaining bytes of a buffer, such as a memory mapped email.
+     * Array backed buffers are scanned in place, others in chunks.
+     *
+     * @param buffer    The bytes, its position is moved to its limit
+     */
+    public void feed(ByteBuffer buffer)
+    {
+        if (buffer.hasArray())
+        {
+            feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (scratch == null)
+        {
+            scratch = new byte[READ_BUFFER_SIZE];
+        }
+        while (buffer.hasRemaining())
+        {
+            int len = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, len);
+            feed(scratch, 0, len);
+        }
+    }
+
+    /**
+     * Sends the last word, call once the whole email has been fed
+     */
+    @Override
+    public void finish()
+    {
+        if (carryLength > 0)
+        {
+            emit(carry, 0, carryLength);
+            carryLength = 0;
+        }
+    }
+
+    /**
+     * Determines whether a byte separates words
+     *
+     * @param b A byte of an email
+     * @return  True for spaces, tabs, line breaks and form feeds
+     */
+    public static boolean isDelimiter(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0x0B;
+    }
+
+    /**
+     * Gets the FNV-1a hash of a word
+     *
+     * @param buf   The bytes holding the word
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      The hash
+     */
+    public static int hash(byte[] buf, int off, int len)
+    {
+        int h = 0x811C9DC5;
+        for (int i = off; i < off + len; i++)
+        {
+            h ^= buf[i] & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Turns a word into the String used as its key in the probability maps
+     *
+     * @param buf   The bytes holding the word
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      The word, one char per byte
+     */
+    public static String toWord(byte[] buf, int off, int len)
+    {
+        return new String(buf, off, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Turns a probability map key back into the bytes it was read from
+     *
+     * @param word  The word
+     * @return      Its bytes, one per char
+     */
+    public static byte[] toBytes(String word)
+    {
+        return word.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void emit(byte[] buf, int off, int len)
+    {
+        if (len <= MAX_TOKEN_LENGTH)
+        {
+            sink.token(buf, off, len);
+        }
+    }
+
+    private void appendCarry(byte[] buf, int off, int len)
+    {
+        //a word already too long is only followed to its end, not kept
+        if (len > MAX_TOKEN_LENGTH - carryLength)
+        {
+            carryLength = MAX_TOKEN_LENGTH + 1;
+            return;
+        }
+        if (carryLength + len > carry.length)
+        {
+            byte[] grown = new byte[Math.max(carry.length * 2, carryLength + len)];
+            System.arraycopy(carry, 0, grown, 0, carryLength);
+            carry = grown;
+        }
+        System.arraycopy(buf, off, carry, carryLength, len);
+        carryLength += len;
+    }
+}
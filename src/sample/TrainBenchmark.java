@@ -0,0 +1,88 @@
+package sample;
+import java.util.HashMap;
+
+/**
+ * Compares the serial TrainFile.trainEmailSet loop with the fork-join trainer
+ * and checks that both produce the same document frequencies.
+ *
+ * Usage: TrainBenchmark [trainingDirectory] [parallelism...]
+ *
+ * @version 1.0
+ */
+
+public class TrainBenchmark
+{
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args)
+    {
+        String trainingDir = args.length > 0 ? args[0] : "Email_Files/training";
+        int[] levels;
+        if (args.length > 1)
+        {
+            levels = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+            {
+                levels[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        else
+        {
+            int cores = Runtime.getRuntime().availableProcessors();
+            levels = cores > 2 ? new int[]{2, cores} : new int[]{2};
+        }
+
+        HashMap<String, Integer> serialCounts = train(trainingDir, 1);
+        double serialMillis = time(trainingDir, 1);
+        System.out.printf("serial         %10.1f ms  (%d words)%n", serialMillis, serialCounts.size());
+
+        for (int parallelism : levels)
+        {
+            HashMap<String, Integer> parallelCounts = train(trainingDir, parallelism);
+            if (!parallelCounts.equals(serialCounts))
+            {
+                System.out.println("Error, parallelism " + parallelism + " produced different counts than the serial loop");
+                System.exit(1);
+            }
+            double millis = time(trainingDir, parallelism);
+            System.out.printf("parallelism %-3d%10.1f ms  speedup %.2fx%n", parallelism, millis, serialMillis / millis);
+        }
+    }
+
+    /**
+     * Trains the spam and ham folders of a training directory into one Hashmap
+     *
+     * @param trainingDir   Directory holding the spam and ham folders
+     * @param parallelism   The number of worker threads
+     * @return              The combined word occurrences
+     */
+    private static HashMap<String, Integer> train(String trainingDir, int parallelism)
+    {
+        HashMap<String, Integer> counts = new HashMap<>();
+        TrainFile.trainEmailSet(counts, trainingDir + "/spam", parallelism);
+        TrainFile.trainEmailSet(counts, trainingDir + "/ham", parallelism);
+        return counts;
+    }
+
+    /**
+     * Gets the average training time after a few warmup runs
+     *
+     * @param trainingDir   Directory holding the spam and ham folders
+     * @param parallelism   The number of worker threads
+     * @return              Average milliseconds per run
+     */
+    private static double time(String trainingDir, int parallelism)
+    {
+        for (int i = 0; i < WARMUP_RUNS; i++)
+        {
+            train(trainingDir, parallelism);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++)
+        {
+            train(trainingDir, parallelism);
+        }
+        return (System.nanoTime() - start) / 1e6 / MEASURED_RUNS;
+    }
+}
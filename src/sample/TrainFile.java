@@ -7,7 +7,7 @@ import java.util.Map;
 /**
  * @author  Joshua  Lemmon  joshua.lemmon@uoit.net
  * @author  Tony    Wu      tony.wu@uoit.net
- * @version 1.5
+ * @version 1.13
  * @since   2016-03-02
  */
 
@@ -31,6 +31,19 @@ public class TrainFile
                                              "paid", "get", "lower", "interest", "payment", "bad", "investment",
                                              "stock", "refund", "full", "alert", "solution", "success", "satisfaction"};
 
+    //words a training table is first sized for
+    private static final int EXPECTED_WORDS = 1 << 12;
+
+    //the ignore words as raw bytes, so words can be checked without decoding them
+    private static final TokenTable ignoreTable = new TokenTable(ignoreStrings.length);
+    static
+    {
+        for (String s : ignoreStrings)
+        {
+            ignoreTable.add(s);
+        }
+    }
+
     /**
      * Record a word and increase occurrence by 1 if the word is in the email
      *
@@ -38,49 +51,29 @@ public class TrainFile
      * @param email The email that will be analyzed
      * @return      A Hashmap filled with words and their occurrences
      */
-    public static HashMap<String, Integer> scanEmail(HashMap<String, Integer> hMap, File email)
+    public static HashMap<String, Integer> scanEmail(final HashMap<String, Integer> hMap, File email)
     {
-        HashMap<String, Integer> compare = new HashMap<>();
-        try
-        {
-            FileReader fileReader = new FileReader(email);
-            BufferedReader input = new BufferedReader(fileReader);
-            String line;
-            try
-            {
-                while ((line = input.readLine()) != null)
-                {
-                    String[] currLine = line.split(" ");
-                    for(String word : currLine)
-                    {
-                        if(!containsIgnoreChar(word) && !inIgnoreStrings(word))
-                        {
-                            if (hMap.get(word) == null)
-                            {
-                                hMap.put(word, 1);
-                                compare.put(word, 1);
-
-                            }
-
-                            if (compare.get(word) == null)
-                            {
-                                hMap.put(word, hMap.get(word) + 1);
-                                compare.put(word, 1);
-                            }
-                        }
-                    }
-                }
-            } catch(IOException ioex)
-            {
-                System.out.println(ioex.getMessage());
-            }
-        } catch(FileNotFoundException e)
-        {
-            System.out.println("Error, file not found. Please verify paths.");
-        }
+        //the words are counted by id first, a String is only built once per distinct word
+        TokenCounts counts = new TokenCounts(256);
+        counts.scanEmail(email, true);
+        counts.addTo(hMap, true);
         return hMap;
     }
 
+    /**
+     * Determines whether a word is left out of training, because it contains an
+     * ignore character or is an ignore word
+     *
+     * @param buf   The bytes holding a word in an email
+     * @param off   Where the word starts
+     * @param len   The length of the word
+     * @return      True if the word is ignored, false if not
+     */
+    public static boolean isIgnored(byte[] buf, int off, int len)
+    {
+        return containsIgnoreChar(buf, off, len) || ignoreTable.find(buf, off, len) >= 0;
+    }
+
     /**
      * Gets the probability/frequency of a word appearing in an email
      *
@@ -111,6 +104,7 @@ public class TrainFile
      */
     public static HashMap<String, Double> getWordSpamProbability(HashMap<String, Double> spam, HashMap<String, Double> ham)
     {
+        long start = Metrics.start();
         HashMap<String, Double> probMap = new HashMap<>();
 
         Map<String, Double> map = spam;
@@ -132,63 +126,217 @@ public class TrainFile
                 }
             }
         }
+        Metrics.modelBuilt(start, probMap.size());
         return probMap;
     }
 
     /**
      * Determines whether an ignore character is used
      *
-     * @param word  A word in an email
+     * @param buf   The bytes holding a word in an email
+     * @param off   Where the word starts
+     * @param len   The length of the word
      * @return      True if there is, False if there's not
      */
-    private static boolean containsIgnoreChar(String word)
+    private static boolean containsIgnoreChar(byte[] buf, int off, int len)
     {
-        for(char c : ignoreChars)
+        for (int i = off; i < off + len; i++)
         {
-            if(word.indexOf(c) >= 0)
+            for (char c : ignoreChars)
             {
-                return true;
+                if (buf[i] == c)
+                {
+                    return true;
+                }
             }
         }
         return false;
     }
 
     /**
-     * Determines weather an ignore word is used
+     * Runs through a train email set to record words and their occurrence
      *
-     * @param word  A word in an email
-     * @return      True if word is in ignore list, false if not
+     * @param emailMap      The email Hashmap that will record words and their occurrence in an email set
+     * @param directoryPath The location of emails
      */
-    private static boolean inIgnoreStrings(String word)
+    public static void trainEmailSet(HashMap<String, Integer> emailMap, String directoryPath)
     {
-        for (String s : ignoreStrings)
-        {
-            if (word.equals(s)) //equalsIgnoreCase?
-            {
-                return true;
-            }
-        }
-        return false;
+        trainEmailSet(emailMap, directoryPath, 1, null);
     }
 
     /**
-     * Runs through a train email set to record words and their occurrence
+     * Runs through a train email set on a fork-join pool, gives the same counts as the serial version
      *
      * @param emailMap      The email Hashmap that will record words and their occurrence in an email set
      * @param directoryPath The location of emails
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
      */
-    public static void trainEmailSet(HashMap<String, Integer> emailMap, String directoryPath)
+    public static void trainEmailSet(HashMap<String, Integer> emailMap, String directoryPath, int parallelism)
+    {
+        trainEmailSet(emailMap, directoryPath, parallelism, null);
+    }
+
+    /**
+     * Runs through a train email set, reporting every scanned email.
+     * A cancelled run keeps the words of the emails scanned so far.
+     *
+     * @param emailMap      The email Hashmap that will record words and their occurrence in an email set
+     * @param directoryPath The location of emails
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
+     * @param listener      Receives the progress and can cancel the run, may be null
+     */
+    public static void trainEmailSet(HashMap<String, Integer> emailMap, String directoryPath, int parallelism,
+                                     ProgressListener listener)
+    {
+        TokenCounts counts = new TokenCounts(Math.max(emailMap.size(), EXPECTED_WORDS));
+        counts.trainEmailSet(directoryPath, true, parallelism, listener);
+        counts.addTo(emailMap, true);
+    }
+
+    /**
+     * Trains the spam and ham folders and builds the word spam probability map.
+     * Word frequencies are taken over the number of emails actually trained in each folder.
+     *
+     * @param spamPath      The location of the spam training emails
+     * @param hamPath       The location of the ham training emails
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
+     * @return              A probability map that is a record of words and their probability of being spam
+     */
+    public static HashMap<String, Double> trainModel(String spamPath, String hamPath, int parallelism)
+    {
+        TokenCounts counts = trainCounts(spamPath, hamPath, parallelism, null);
+        return counts.toProbabilities(counts.getEmailCount(true), counts.getEmailCount(false));
+    }
+
+    /**
+     * Trains the spam and ham folders and builds the word spam probability map
+     * of the words a pruner keeps
+     *
+     * @param spamPath      The location of the spam training emails
+     * @param hamPath       The location of the ham training emails
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
+     * @param pruner        Selects the words of the model
+     * @return              A probability map that is a record of words and their probability of being spam
+     */
+    public static HashMap<String, Double> trainModel(String spamPath, String hamPath, int parallelism,
+                                                     VocabularyPruner pruner)
+    {
+        TokenCounts counts = trainCounts(spamPath, hamPath, parallelism, null);
+        return pruner.toProbabilities(counts, counts.getEmailCount(true), counts.getEmailCount(false));
+    }
+
+    /**
+     * Trains the spam and ham folders into one table of spam and ham document frequencies
+     *
+     * @param spamPath      The location of the spam training emails
+     * @param hamPath       The location of the ham training emails
+     * @param parallelism   The number of worker threads, 1 uses the serial loop
+     * @param listener      Receives the progress and can cancel the run, may be null
+     * @return              The counts of every word
+     */
+    public static TokenCounts trainCounts(String spamPath, String hamPath, int parallelism, ProgressListener listener)
     {
-        File emailDir = new File(directoryPath);
-        File[] emailDirListing = emailDir.listFiles();
+        TokenCounts counts = new TokenCounts(EXPECTED_WORDS);
+        counts.trainEmailSet(spamPath, true, parallelism, listener);
+        counts.trainEmailSet(hamPath, false, parallelism, listener);
+        return counts;
+    }
+
+    /**
+     * Trains the spam and ham folders through a corpus cache, so only emails
+     * that are new or changed since the cache was built are read and tokenized
+     *
+     * @param spamPath      The location of the spam training emails
+     * @param hamPath       The location of the ham training emails
+     * @param cache         The cache the emails are read from
+     * @param listener      Receives the progress and can cancel the run, may be null
+     * @return              The counts of every word
+     */
+    public static TokenCounts trainCounts(String spamPath, String hamPath, CorpusCache cache, ProgressListener listener)
+    {
+        TokenCounts counts = new TokenCounts(EXPECTED_WORDS);
+        counts.trainEmailSet(cache, spamPath, true, listener);
+        counts.trainEmailSet(cache, hamPath, false, listener);
+        return counts;
+    }
+
+    /**
+     * Trains the spam and ham folders through a staged pipeline, so reading the
+     * emails overlaps with tokenizing them. Mboxes, gzip files and Maildirs are
+     * read through MailArchive, serially.
+     *
+     * @param spamPath      The location of the spam training emails
+     * @param hamPath       The location of the ham training emails
+     * @param pipeline      The pipeline the folders are read and counted in, its stats are those of the ham folder
+     * @param listener      Receives the progress and can cancel the run, may be null
+     * @return              The counts of every word
+     */
+    public static TokenCounts trainCounts(String spamPath, String hamPath, EmailPipeline pipeline,
+                                          ProgressListener listener)
+    {
+        TokenCounts counts = new TokenCounts(EXPECTED_WORDS);
+        trainEmailSet(counts, pipeline, spamPath, true, listener);
+        trainEmailSet(counts, pipeline, hamPath, false, listener);
+        return counts;
+    }
 
-        if (emailDirListing != null)
+    private static void trainEmailSet(TokenCounts counts, EmailPipeline pipeline, String directoryPath, boolean spam,
+                                      ProgressListener listener)
+    {
+        File path = new File(directoryPath);
+        if (MailArchive.isArchive(path))
+        {
+            counts.trainEmailSet(directoryPath, spam, 1, listener);
+            return;
+        }
+        try
+        {
+            pipeline.train(listEmails(path), spam, counts, listener);
+        } catch(IOException ioex)
+        {
+            System.out.println(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Lists the emails of a folder in name order, the order every run reads them in
+     *
+     * @param directory     The folder of emails
+     * @return              Its files, sorted
+     * @throws IOException  If the folder can't be listed
+     */
+    public static File[] listEmails(File directory) throws IOException
+    {
+        File[] emails = directory.listFiles();
+        if (emails == null)
         {
-            Arrays.sort(emailDirListing);
-            for (File email : emailDirListing)
+            throw new IOException("Error, could not list " + directory + ". Please verify paths.");
+        }
+        Arrays.sort(emails);
+        return emails;
+    }
+
+    /**
+     * Counts the emails in a directory, or in an mbox, gzip file or Maildir
+     *
+     * @param directoryPath The location of emails
+     * @return              The number of emails, at least 1 so it can be divided by
+     */
+    public static int countEmails(String directoryPath)
+    {
+        File path = new File(directoryPath);
+        if (MailArchive.isArchive(path))
+        {
+            try
+            {
+                return Math.max(1, MailArchive.count(path));
+            } catch (IOException ioex)
             {
-                emailMap = scanEmail(emailMap, email);
+                System.out.println(ioex.getMessage());
+                return 1;
             }
         }
+        File[] emailDirListing = path.listFiles();
+        return (emailDirListing == null || emailDirListing.length == 0) ? 1 : emailDirListing.length;
     }
 }
\ No newline at end of file
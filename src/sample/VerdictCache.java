@@ -0,0 +1,467 @@
+package sample;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded least recently used cache of spam probabilities, keyed by a 128
+ * bit digest of a message. A spam campaign sends the same message thousands
+ * of times with only unscored headers such as Message-ID or Received
+ * changed, and every copy after the first is answered from the cache instead
+ * of being parsed, tokenized and scored.
+ *
+ * The digest is taken over the raw bytes of the message without the top
+ * level header fields MimeParser skips, so two messages share a digest only
+ * if the parser reads the same text from them, and a hit gives the
+ * probability a full scoring would. Nothing is decoded or tokenized: the
+ * header lines are scanned for their names and everything else is hashed
+ * 8 bytes at a time with SipHash-2-4-128, keyed with a random key drawn for
+ * each cache so a sender can't craft a message that collides with the
+ * digest of a known verdict. Without MIME parsing every byte is scored, and
+ * the whole message is hashed.
+ *
+ * Every verdict belongs to a model. The cache is emptied as soon as it's used
+ * with other TokenWeights, or with the same weights after they've changed.
+ *
+ * Hits, misses, evictions, invalidations and the time the cache saved are
+ * counted for metrics. The saving is net: the scoring time of the hits less
+ * the time every lookup spent on its digest. A VerdictCache is thread safe.
+ *
+ * @version 1.4
+ */
+
+public class VerdictCache
+{
+    //longest message buffered whole to be digested
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = 1 << 20;
+
+    private final int maxEntries;
+    private final LinkedHashMap<Digest, Verdict> verdicts;
+    //the SipHash key
+    private final long key0;
+    private final long key1;
+    //digests are taken outside the lock
+    private final LongAdder digestNanos = new LongAdder();
+    private TokenWeights model;
+    private int modelVersion;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private long savedNanos;
+
+    /**
+     * VerdictCache constructor
+     *
+     * @param maxEntries    The number of verdicts kept, the least recently used is evicted past it
+     */
+    public VerdictCache(int maxEntries)
+    {
+        if (maxEntries < 1)
+        {
+            throw new IllegalArgumentException("A verdict cache needs at least 1 entry: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        SecureRandom random = new SecureRandom();
+        this.key0 = random.nextLong();
+        this.key1 = random.nextLong();
+        this.verdicts = new LinkedHashMap<Digest, Verdict>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Digest, Verdict> eldest)
+            {
+                if (size() > VerdictCache.this.maxEntries)
+                {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the digest of a message, the time it takes is charged to the savings
+     *
+     * @param message   The bytes of the message from its position to its limit, the position isn't moved
+     * @param mimeAware True if the model reads messages through a MimeParser, false if every byte
+     * @return          The keyed 128 bit digest of what the parser reads from it
+     */
+    public Digest digest(ByteBuffer message, boolean mimeAware)
+    {
+        long start = System.nanoTime();
+        ByteBuffer bytes = message.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        SipHash hash = new SipHash(key0, key1);
+        int rest = mimeAware ? hashHeaders(bytes, hash) : bytes.position();
+        hash.update(bytes, rest, bytes.limit());
+        Digest digest = hash.finish();
+        digestNanos.add(System.nanoTime() - start);
+        return digest;
+    }
+
+    /**
+     * Hashes the top level header block of a message, leaving out the fields
+     * MimeParser skips. Leaving a whole field out, folded lines included,
+     * changes nothing the parser reads, and the first line is always kept as
+     * it decides whether the message has headers at all. The scan stops at
+     * the blank line that ends the headers, or at a line too long for the
+     * parser to take whole.
+     *
+     * @return  Where the part of the message hashed as it is starts
+     */
+    private static int hashHeaders(ByteBuffer bytes, SipHash hash)
+    {
+        int start = bytes.position();
+        int kept = start;
+        int lineStart = start;
+        byte[] line = new byte[256];
+        boolean skipping = false;
+        while (lineStart < bytes.limit())
+        {
+            int lineEnd = lineStart;
+            while (lineEnd < bytes.limit() && bytes.get(lineEnd) != '\n')
+            {
+                lineEnd++;
+            }
+            int length = lineEnd - lineStart;
+            if (length >= MimeParser.MAX_LINE)
+            {
+                break;
+            }
+            if (length > 0 && bytes.get(lineEnd - 1) == '\r')
+            {
+                length--;
+            }
+            if (length == 0)
+            {
+                break;
+            }
+            if (length > line.length)
+            {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            bytes.position(lineStart);
+            bytes.get(line, 0, length);
+            if (lineStart == start)
+            {
+                if (!MimeParser.isHeaderField(line, length))
+                {
+                    //read as plain text
+                    break;
+                }
+            }
+            else if (line[0] != ' ' && line[0] != '\t')
+            {
+                skipping = isSkippedField(line, length);
+            }
+
+            int next = Math.min(lineEnd + 1, bytes.limit());
+            if (skipping)
+            {
+                hash.update(bytes, kept, lineStart);
+                kept = next;
+            }
+            lineStart = next;
+        }
+        return kept;
+    }
+
+    /**
+     * Determines whether a header line starts a field MimeParser skips
+     */
+    private static boolean isSkippedField(byte[] line, int length)
+    {
+        int colon = 0;
+        while (colon < length && line[colon] != ':')
+        {
+            colon++;
+        }
+        //without a colon on its first line, the field is kept to be safe
+        return colon < length
+               && !MimeParser.readsHeader(Tokenizer.toWord(line, 0, colon).trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the cached verdict of a message
+     *
+     * @param weights   The model the message is scored with
+     * @param digest    The digest of the message words
+     * @return          The spam probability, null on a miss
+     */
+    public synchronized Double get(TokenWeights weights, Digest digest)
+    {
+        checkModel(weights);
+        Verdict verdict = verdicts.get(digest);
+        if (verdict == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        savedNanos += verdict.scoreNanos;
+        return verdict.spamProbability;
+    }
+
+    /**
+     * Caches the verdict of a message
+     *
+     * @param weights           The model the message was scored with
+     * @param digest            The digest of the message words
+     * @param spamProbability   The spam probability it was given
+     * @param scoreNanos        How long scoring it took, credited to every later hit
+     */
+    public synchronized void put(TokenWeights weights, Digest digest, double spamProbability, long scoreNanos)
+    {
+        checkModel(weights);
+        verdicts.put(digest, new Verdict(spamProbability, scoreNanos));
+    }
+
+    /**
+     * Drops every verdict, e.g. after the model was retrained elsewhere
+     */
+    public synchronized void invalidate()
+    {
+        if (!verdicts.isEmpty())
+        {
+            invalidations++;
+            verdicts.clear();
+        }
+    }
+
+    public synchronized int size()
+    {
+        return verdicts.size();
+    }
+
+    public int getMaxEntries()
+    {
+        return this.maxEntries;
+    }
+
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    public synchronized long getInvalidations()
+    {
+        return this.invalidations;
+    }
+
+    /**
+     * Gets the share of lookups that were hits
+     *
+     * @return  The hit rate between 0 and 1, 0 before any lookup
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double)hits / lookups;
+    }
+
+    /**
+     * Gets the time the cache saved: the scoring time of the hits, the time
+     * their first copy took to score, less the time spent on every digest
+     *
+     * @return  The saved time in nanoseconds, negative if the cache cost more than it saved
+     */
+    public synchronized long getSavedNanos()
+    {
+        return this.savedNanos - digestNanos.sum();
+    }
+
+    /**
+     * Gets the time spent taking digests, on hits and misses
+     *
+     * @return  The time in nanoseconds
+     */
+    public long getDigestNanos()
+    {
+        return digestNanos.sum();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d/%d verdicts, %d hits (%.1f%%), %d misses, %d evictions, %d invalidations, "
+                             + "%.1f ms saved after %.1f ms of digests", verdicts.size(), maxEntries, hits,
+                             100 * getHitRate(), misses, evictions, invalidations, getSavedNanos() / 1e6,
+                             getDigestNanos() / 1e6);
+    }
+
+    /**
+     * Empties the cache when the model isn't the one its verdicts were made with
+     */
+    private void checkModel(TokenWeights weights)
+    {
+        int version = weights.getVersion();
+        if (weights != model || version != modelVersion)
+        {
+            invalidate();
+            model = weights;
+            modelVersion = version;
+        }
+    }
+
+    /**
+     * The 128 bit digest of a message
+     */
+    public static final class Digest
+    {
+        private final long high;
+        private final long low;
+
+        Digest(long high, long low)
+        {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Digest && ((Digest)other).high == high && ((Digest)other).low == low;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int)(low ^ (low >>> 32));
+        }
+    }
+
+    /**
+     * SipHash-2-4-128 of a stream of bytes under a 128 bit key
+     */
+    static final class SipHash
+    {
+        private long v0;
+        private long v1;
+        private long v2;
+        private long v3;
+        //bytes of the block being filled, little endian
+        private long block;
+        private long length;
+
+        SipHash(long k0, long k1)
+        {
+            v0 = k0 ^ 0x736f6d6570736575L;
+            v1 = k1 ^ 0x646f72616e646f6dL ^ 0xEE;
+            v2 = k0 ^ 0x6c7967656e657261L;
+            v3 = k1 ^ 0x7465646279746573L;
+        }
+
+        /**
+         * Hashes the bytes of a little endian buffer between two indexes, whole blocks at a time
+         */
+        void update(ByteBuffer bytes, int from, int to)
+        {
+            int i = from;
+            while (i < to && (length & 7) != 0)
+            {
+                update(bytes.get(i++));
+            }
+            for (; to - i >= 8; i += 8)
+            {
+                compress(bytes.getLong(i));
+                length += 8;
+            }
+            while (i < to)
+            {
+                update(bytes.get(i++));
+            }
+        }
+
+        void update(byte[] buf, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                update(buf[i]);
+            }
+        }
+
+        void update(byte b)
+        {
+            int shift = (int)(length & 7) * 8;
+            block |= (b & 0xFFL) << shift;
+            length++;
+            if ((length & 7) == 0)
+            {
+                compress(block);
+                block = 0;
+            }
+        }
+
+        Digest finish()
+        {
+            compress(block | (length << 56));
+            v2 ^= 0xEE;
+            for (int r = 0; r < 4; r++)
+            {
+                round();
+            }
+            long first = v0 ^ v1 ^ v2 ^ v3;
+            v1 ^= 0xDD;
+            for (int r = 0; r < 4; r++)
+            {
+                round();
+            }
+            return new Digest(first, v0 ^ v1 ^ v2 ^ v3);
+        }
+
+        private void compress(long m)
+        {
+            v3 ^= m;
+            round();
+            round();
+            v0 ^= m;
+        }
+
+        private void round()
+        {
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13);
+            v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16);
+            v3 ^= v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21);
+            v3 ^= v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17);
+            v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+    }
+
+    /**
+     * The spam probability given to a message and the time scoring it took
+     */
+    private static class Verdict
+    {
+        private final double spamProbability;
+        private final long scoreNanos;
+
+        Verdict(double spamProbability, long scoreNanos)
+        {
+            this.spamProbability = spamProbability;
+            this.scoreNanos = scoreNanos;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package sample;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Measures the verdict cache on the testing emails with campaign duplicates
+ * injected. Each of a share of the spam emails is resent several times with
+ * a new Message-ID and Received header, the way a campaign is relayed, and
+ * the whole stream is shuffled. The stream is scored without the cache, with
+ * a cache that holds every message and with a small one that has to evict, and the
+ * cached scores are checked against the uncached ones.
+ *
+ * Usage: VerdictCacheBenchmark [--emails DIR] [--campaigns SHARE] [--copies N] [--size N] [--small N] [--seed N]
+ *
+ * @version 1.3
+ */
+
+public class VerdictCacheBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        String emailDir = "Email_Files";
+        double campaignShare = 0.25;
+        int copies = 20;
+        int size = 10000;
+        int smallSize = 500;
+        long seed = 42;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "--emails":
+                    emailDir = args[i + 1];
+                    break;
+                case "--campaigns":
+                    campaignShare = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--copies":
+                    copies = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--small":
+                    smallSize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        String spamPath = emailDir + "/training/spam";
+        String hamPath = emailDir + "/training/ham";
+        TokenCounts counts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        TokenWeights weights = counts.toWeights(counts.getEmailCount(true), counts.getEmailCount(false));
+
+        Random random = new Random(seed);
+        ArrayList<byte[]> stream = new ArrayList<>();
+        File[] spam = TrainFile.listEmails(new File(emailDir, "testing/spam"));
+        int injected = 0;
+        for (File email : spam)
+        {
+            byte[] message = Files.readAllBytes(email.toPath());
+            stream.add(message);
+            if (random.nextDouble() < campaignShare)
+            {
+                for (int c = 0; c < copies; c++)
+                {
+                    stream.add(resend(message, injected++));
+                }
+            }
+        }
+        for (File email : TrainFile.listEmails(new File(emailDir, "testing/ham")))
+        {
+            stream.add(Files.readAllBytes(email.toPath()));
+        }
+        Collections.shuffle(stream, random);
+        System.out.printf("%d messages, %d of them injected copies of %d campaigns%n%n", stream.size(), injected,
+                          injected / Math.max(1, copies));
+
+        //unmeasured passes so no row is timed before the JIT has run
+        score(weights, stream, null);
+        score(weights, stream, new VerdictCache(size));
+
+        System.out.printf("%-14s %9s %9s %9s %9s %9s %10s %12s%n", "run", "ms", "hit rate", "hits", "evictions",
+                          "saved ms", "same class", "max |dp|");
+        long start = System.nanoTime();
+        double[] uncached = score(weights, stream, null);
+        System.out.printf("%-14s %9.0f %9s %9s %9s %9s %10s %12s%n", "no cache", (System.nanoTime() - start) / 1e6,
+                          "-", "-", "-", "-", "-", "-");
+        run("cache " + size, weights, stream, new VerdictCache(size), uncached);
+        run("cache " + smallSize, weights, stream, new VerdictCache(smallSize), uncached);
+
+        //a retrained model must not be answered with the old verdicts
+        VerdictCache verdicts = new VerdictCache(size);
+        score(weights, stream, verdicts);
+        counts = TrainFile.trainCounts(spamPath, hamPath, 1, null);
+        TokenWeights retrained = counts.toWeights(counts.getEmailCount(true), counts.getEmailCount(false));
+        score(retrained, stream, verdicts);
+        System.out.printf("%nafter retraining: %s%n", verdicts);
+    }
+
+    /**
+     * Scores the stream through a verdict cache and prints its row
+     */
+    private static void run(String name, TokenWeights weights, ArrayList<byte[]> stream, VerdictCache verdicts,
+                            double[] uncached)
+    {
+        long start = System.nanoTime();
+        double[] cached = score(weights, stream, verdicts);
+        double millis = (System.nanoTime() - start) / 1e6;
+        int sameClass = 0;
+        double maxDelta = 0.0;
+        for (int i = 0; i < cached.length; i++)
+        {
+            sameClass += (cached[i] > Evaluation.SPAM_THRESHOLD) == (uncached[i] > Evaluation.SPAM_THRESHOLD) ? 1 : 0;
+            maxDelta = Math.max(maxDelta, Math.abs(cached[i] - uncached[i]));
+        }
+        System.out.printf("%-14s %9.0f %8.1f%% %9d %9d %9.0f %10s %12.3e%n", name, millis,
+                          100 * verdicts.getHitRate(), verdicts.getHits(), verdicts.getEvictions(),
+                          verdicts.getSavedNanos() / 1e6, sameClass + "/" + cached.length, maxDelta);
+    }
+
+    /**
+     * Gets the spam probability of every message, through the verdict cache unless it's null
+     */
+    private static double[] score(TokenWeights weights, ArrayList<byte[]> stream, VerdictCache verdicts)
+    {
+        double[] probs = new double[stream.size()];
+        TestFile tested = new TestFile("", 0.0, "");
+        for (int i = 0; i < probs.length; i++)
+        {
+            ByteBuffer message = ByteBuffer.wrap(stream.get(i));
+            if (verdicts != null)
+            {
+                tested.getSpamEmailProbability(weights, message, verdicts);
+            }
+            else
+            {
+                tested.getSpamEmailProbability(weights, message);
+            }
+            probs[i] = tested.getSpamProbability();
+        }
+        return probs;
+    }
+
+    /**
+     * Makes a campaign copy of a message: the same message with a new
+     * Message-ID and Received header after its first line, headers the
+     * tokenizer doesn't score, as a mail server relaying the campaign adds
+     */
+    private static byte[] resend(byte[] message, int number)
+    {
+        int firstLine = 0;
+        while (firstLine < message.length && message[firstLine++] != '\n')
+        {
+        }
+        byte[] headers = ("Message-ID: <" + number + ".campaign@example.com>\nReceived: from relay" + number
+                          + ".example.com\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] copy = new byte[message.length + headers.length];
+        System.arraycopy(message, 0, copy, 0, firstLine);
+        System.arraycopy(headers, 0, copy, firstLine, headers.length);
+        System.arraycopy(message, firstLine, copy, firstLine + headers.length, message.length - firstLine);
+        return copy;
+    }
+}